@@ -13,6 +13,7 @@ plugins {
 	id("org.s7s.build.module")
 	id("org.s7s.build.protobuf")
 	id("org.s7s.build.publish")
+	id("me.champeau.jmh") version "0.6.6"
 }
 
 kotlin {
@@ -0,0 +1,96 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what it costs to collect a process's output through each of the
+ * available paths, from discarding it in the kernel to capturing it through
+ * {@link S7SProcess}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureBenchmark {
+
+	/**
+	 * The number of bytes the process writes to stdout.
+	 */
+	@Param({ "16", "65536", "4194304" })
+	public int size;
+
+	private String[] command() {
+		return new String[] { "head", "-c", String.valueOf(size), "/dev/zero" };
+	}
+
+	@Benchmark
+	public int discard() throws IOException, InterruptedException {
+		return new ProcessBuilder(command()).redirectOutput(Redirect.DISCARD).start().waitFor();
+	}
+
+	/**
+	 * Read the pipe of a process that isn't wrapped, as a baseline for capture.
+	 */
+	@Benchmark
+	public long readDirectly() throws IOException, InterruptedException {
+		var process = new ProcessBuilder(command()).start();
+		long read = process.getInputStream().transferTo(OutputStream.nullOutputStream());
+		process.waitFor();
+		return read;
+	}
+
+	@Benchmark
+	public long capture() {
+		var process = S7SProcess.exec(command());
+		process.complete();
+		return process.out().await().size();
+	}
+
+	/**
+	 * Read stdout through {@link Process#getInputStream()}, which reads from the
+	 * captured output rather than the pipe.
+	 */
+	@Benchmark
+	public long captureStream() throws IOException {
+		var process = S7SProcess.exec(command());
+		long read = process.process().getInputStream().transferTo(OutputStream.nullOutputStream());
+		process.complete();
+		return read;
+	}
+
+	@Benchmark
+	public int captureString() {
+		return S7SProcess.exec(command()).stdout().length();
+	}
+
+	@Benchmark
+	public long stream() throws IOException {
+		try (var in = S7SProcess.stream(command()).out().openStream()) {
+			return in.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+}
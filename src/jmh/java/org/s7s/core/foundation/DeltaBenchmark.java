@@ -0,0 +1,223 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.s7s.core.foundation.S7SFile.DeltaSignature;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Measures delta sync between two versions of a jar. Pass real jars with
+ * {@code -p base=old.jar -p target=new.jar}; otherwise the pair is generated.
+ * The "jar" pair re-packs the Guava jar from the classpath with every 50th
+ * entry changed, and the "synthetic" pair is 500 generated entries.
+ * <p>
+ * The scores are wall-clock time, so {@link #patch()} includes the disk writes
+ * and the copy of the base file isn't measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaBenchmark {
+
+	/**
+	 * Reports the size of the delta alongside the timings.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Transfer {
+
+		/**
+		 * The size of the target file which a full download would transfer.
+		 */
+		public long fullBytes;
+
+		/**
+		 * The size of the delta which a delta sync transfers.
+		 */
+		public long deltaBytes;
+
+		/**
+		 * The size of the signature sent from the agent to the server.
+		 */
+		public long signatureBytes;
+	}
+
+	@Param({ "jar", "synthetic" })
+	public String pair;
+
+	@Param({ "" })
+	public String base;
+
+	@Param({ "" })
+	public String target;
+
+	private Path temp;
+
+	private Path baseFile;
+
+	private Path targetFile;
+
+	private Path patchFile;
+
+	private DeltaSignature signature;
+
+	private byte[] delta;
+
+	@Setup
+	public void setup() throws Exception {
+		temp = Files.createTempDirectory("delta");
+
+		if (base.isEmpty() || target.isEmpty()) {
+			baseFile = temp.resolve("base.jar");
+			targetFile = temp.resolve("target.jar");
+			if (pair.equals("jar")) {
+				Files.copy(Paths.get(ImmutableList.class.getProtectionDomain().getCodeSource().getLocation().toURI()),
+						baseFile);
+				repack(baseFile, targetFile);
+			} else {
+				synthesize(baseFile, targetFile);
+			}
+		} else {
+			baseFile = Paths.get(base);
+			targetFile = Paths.get(target);
+		}
+
+		signature = S7SFile.of(baseFile).signature();
+
+		var out = new ByteArrayOutputStream();
+		S7SFile.of(targetFile).delta(signature, out);
+		delta = out.toByteArray();
+
+		patchFile = temp.resolve("patch.jar");
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() throws IOException {
+		Files.copy(baseFile, patchFile, REPLACE_EXISTING);
+	}
+
+	@TearDown
+	public void teardown() throws IOException {
+		try (var files = Files.walk(temp)) {
+			files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public DeltaSignature signature(Transfer transfer) throws IOException {
+		var out = new ByteArrayOutputStream();
+		var signature = S7SFile.of(baseFile).signature();
+		signature.write(out);
+
+		transfer.signatureBytes = out.size();
+		return signature;
+	}
+
+	@Benchmark
+	public long delta(Transfer transfer) throws IOException {
+		var out = new ByteArrayOutputStream();
+		S7SFile.of(targetFile).delta(signature, out);
+
+		transfer.fullBytes = Files.size(targetFile);
+		transfer.deltaBytes = out.size();
+		return out.size();
+	}
+
+	@Benchmark
+	public S7SFile patch() throws IOException {
+		return S7SFile.of(patchFile).patch(new ByteArrayInputStream(delta));
+	}
+
+	/**
+	 * Write two jars with 500 entries of which a handful differ.
+	 */
+	private static void synthesize(Path base, Path target) throws IOException {
+		var random = new SplittableRandom(0);
+
+		try (var a = new ZipOutputStream(Files.newOutputStream(base));
+				var b = new ZipOutputStream(Files.newOutputStream(target))) {
+			for (int i = 0; i < 500; i++) {
+				var content = new byte[2048 + random.nextInt(16384)];
+				for (int j = 0; j < content.length; j++) {
+					// Compressible but not trivially so, like class files
+					content[j] = (byte) ('A' + random.nextInt(random.nextInt(4) == 0 ? 64 : 8));
+				}
+
+				a.putNextEntry(entry(i));
+				a.write(content);
+
+				if (i % 50 == 0)
+					content[content.length / 2]++;
+
+				b.putNextEntry(entry(i));
+				b.write(content);
+			}
+		}
+	}
+
+	/**
+	 * Write a copy of a jar with every 50th entry changed, like a release that
+	 * touches a few classes.
+	 */
+	private static void repack(Path base, Path target) throws IOException {
+		try (var in = new ZipInputStream(Files.newInputStream(base));
+				var out = new ZipOutputStream(Files.newOutputStream(target))) {
+			ZipEntry entry;
+			for (int i = 0; (entry = in.getNextEntry()) != null; i++) {
+				var content = in.readAllBytes();
+				if (i % 50 == 0 && content.length > 0)
+					content[content.length / 2]++;
+
+				var copy = new ZipEntry(entry.getName());
+				copy.setTime(entry.getTime());
+				out.putNextEntry(copy);
+				out.write(content);
+			}
+		}
+	}
+
+	private static ZipEntry entry(int i) {
+		var entry = new ZipEntry("org/example/Class" + i + ".class");
+		entry.setTime(0);
+		return entry;
+	}
+}
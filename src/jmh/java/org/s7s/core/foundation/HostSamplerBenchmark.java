@@ -0,0 +1,55 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of sampling host metrics. Run with {@code -prof gc} to
+ * confirm that a sample allocates nothing in steady state, where
+ * gc.alloc.rate.norm should be close to zero bytes per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HostSamplerBenchmark {
+
+	private S7SHostSampler sampler;
+
+	@Setup
+	public void setup() {
+		sampler = S7SHostSampler.of(3600);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sampler.close();
+	}
+
+	@Benchmark
+	public double sample() {
+		sampler.sample();
+		return sampler.latest(S7SHostSampler.Metric.CPU_BUSY);
+	}
+}
@@ -0,0 +1,83 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of starting and reaping a trivial process. Each
+ * combination of parameters runs in its own JVM, so the launch mechanism is set
+ * before the JDK's process implementation reads it. The ballast is touched
+ * heap that inflates the JVM's resident set, which the FORK mechanism has to
+ * copy page tables for. Not every mechanism exists on every platform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms3g", "-Xmx3g" })
+public class LaunchBenchmark {
+
+	@Param({ "POSIX_SPAWN", "VFORK", "FORK" })
+	public String mechanism;
+
+	/**
+	 * The size of the heap ballast in MiB.
+	 */
+	@Param({ "0", "2048" })
+	public int ballast;
+
+	private byte[][] heap;
+
+	private ProcessBuilder builder;
+
+	@Setup
+	public void setup() {
+		System.setProperty("jdk.lang.Process.launchMechanism", mechanism);
+
+		heap = new byte[ballast][1 << 20];
+		for (var chunk : heap) {
+			for (int i = 0; i < chunk.length; i += 4096) {
+				chunk[i] = 1;
+			}
+		}
+
+		builder = new ProcessBuilder("true").redirectOutput(Redirect.DISCARD).redirectError(Redirect.DISCARD);
+	}
+
+	@Benchmark
+	public int runtimeExec() throws IOException, InterruptedException {
+		return Runtime.getRuntime().exec(new String[] { "true" }).waitFor();
+	}
+
+	@Benchmark
+	public int processBuilder() throws IOException, InterruptedException {
+		return builder.start().waitFor();
+	}
+
+	@Benchmark
+	public int s7sProcess() {
+		return S7SProcess.exec("true").complete();
+	}
+}
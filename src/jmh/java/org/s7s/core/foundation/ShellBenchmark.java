@@ -0,0 +1,53 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.s7s.core.foundation.S7SProcess.ShellResult;
+
+/**
+ * Compares the number of small commands per second that can be run with a new
+ * process each versus a pooled shell session. Run with {@code -t 4} to see how
+ * the pool behaves under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(1)
+public class ShellBenchmark {
+
+	@Param({ "uname -m", "true" })
+	public String command;
+
+	@Benchmark
+	public String exec() {
+		return S7SProcess.exec(command.split(" ")).stdout();
+	}
+
+	@Benchmark
+	public ShellResult shell() {
+		return S7SProcess.shell(command.split(" "));
+	}
+}
@@ -0,0 +1,58 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.s7s.core.foundation.Platform.ArchType;
+import org.s7s.core.foundation.S7SSystem.Topology;
+
+/**
+ * Measures platform detection the way a CLI tool experiences it: once, in a
+ * fresh JVM. The "uname" benchmark is how the architecture used to be
+ * detected and the "detect" benchmark is how it's detected now. The
+ * "fingerprint" benchmark gets the topology from the cached fingerprint after
+ * the first fork and "detectFingerprint" always detects it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class StartupBenchmark {
+
+	@Benchmark
+	public ArchType detect() {
+		return S7SSystem.archType();
+	}
+
+	@Benchmark
+	public Topology fingerprint() {
+		return S7SSystem.topology();
+	}
+
+	@Benchmark
+	public Topology detectFingerprint() {
+		return FingerprintCache.load(null, Paths.get("/")).topology();
+	}
+
+	@Benchmark
+	public ArchType uname() {
+		return S7SSystem.parseArchType(S7SProcess.exec("uname", "-m").stdout());
+	}
+}
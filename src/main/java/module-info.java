@@ -13,5 +13,6 @@ open module org.s7s.core.foundation {
 	requires com.google.protobuf;
 	requires java.prefs;
 	requires java.xml;
+	requires jdk.unsupported;
 	requires org.slf4j;
 }
@@ -0,0 +1,151 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of byte patterns compiled for a multi-pattern Horspool search. Pattern
+ * elements outside the range of a byte match any byte (see
+ * {@link S7SFile#ANY_BYTE}).
+ */
+final class BytePatterns {
+
+	/**
+	 * @param element A pattern element
+	 * @return Whether the element matches any byte
+	 */
+	static boolean isWildcard(short element) {
+		return element < Byte.MIN_VALUE || element > 0xFF;
+	}
+
+	private final byte[][] values;
+
+	private final boolean[][] wildcards;
+
+	/**
+	 * The length of the shortest pattern which determines the search window.
+	 */
+	final int minLength;
+
+	/**
+	 * The length of the longest pattern which determines how far a match can
+	 * extend beyond the search window.
+	 */
+	final int maxLength;
+
+	/**
+	 * The distance the window can be advanced given the last byte in the window.
+	 */
+	private final int[] shift = new int[256];
+
+	BytePatterns(List<short[]> patterns) {
+		if (patterns.isEmpty())
+			throw new IllegalArgumentException("No patterns given");
+
+		values = new byte[patterns.size()][];
+		wildcards = new boolean[patterns.size()][];
+
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		for (int i = 0; i < patterns.size(); i++) {
+			var pattern = patterns.get(i);
+			if (pattern.length == 0)
+				throw new IllegalArgumentException("Empty pattern");
+
+			values[i] = new byte[pattern.length];
+			wildcards[i] = new boolean[pattern.length];
+			for (int j = 0; j < pattern.length; j++) {
+				values[i][j] = (byte) pattern[j];
+				wildcards[i][j] = isWildcard(pattern[j]);
+			}
+
+			min = Math.min(min, pattern.length);
+			max = Math.max(max, pattern.length);
+		}
+		minLength = min;
+		maxLength = max;
+
+		// Build the shift table over the window formed by each pattern's prefix
+		Arrays.fill(shift, minLength);
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < minLength - 1; j++) {
+				int distance = minLength - 1 - j;
+				if (wildcards[i][j]) {
+					for (int b = 0; b < shift.length; b++)
+						shift[b] = Math.min(shift[b], distance);
+				} else {
+					int b = values[i][j] & 0xFF;
+					shift[b] = Math.min(shift[b], distance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of patterns in the set
+	 */
+	int size() {
+		return values.length;
+	}
+
+	/**
+	 * @param index The pattern index
+	 * @return The length of the pattern
+	 */
+	int length(int index) {
+		return values[index].length;
+	}
+
+	/**
+	 * Find the next position in the buffer where any pattern matches in full.
+	 *
+	 * @param buffer The buffer to search
+	 * @param from   The first candidate position (inclusive)
+	 * @param to     The last candidate position (exclusive)
+	 * @return The position of the match or -1
+	 */
+	int find(ByteBuffer buffer, int from, int to) {
+		to = Math.min(to, buffer.limit() - minLength + 1);
+
+		int i = from;
+		while (i < to) {
+			if (match(buffer, i) != -1)
+				return i;
+
+			i += shift[buffer.get(i + minLength - 1) & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * @param buffer   The buffer to check
+	 * @param position The candidate position
+	 * @return The index of the first pattern that matches at the given position or
+	 *         -1
+	 */
+	int match(ByteBuffer buffer, int position) {
+		find: for (int i = 0; i < values.length; i++) {
+			var value = values[i];
+			var wildcard = wildcards[i];
+
+			if (position + value.length > buffer.limit())
+				continue;
+
+			for (int j = 0; j < value.length; j++) {
+				if (!wildcard[j] && buffer.get(position + j) != value[j])
+					continue find;
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,274 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SSystem.ResourceLimits;
+
+/**
+ * The control groups that limit the current process. The group directories are
+ * located once and afterwards each {@link #read()} only reads a few small files
+ * into a reused buffer, so limits can be polled cheaply.
+ */
+final class CGroup {
+
+	private static final Logger log = LoggerFactory.getLogger(CGroup.class);
+
+	/**
+	 * cgroup v1 reports an unlimited memory limit as the largest page-aligned
+	 * value rather than a marker.
+	 */
+	private static final long UNLIMITED = 1L << 62;
+
+	private static final byte[] SOME = "some".getBytes(US_ASCII);
+
+	private static final byte[] AVG10 = "avg10=".getBytes(US_ASCII);
+
+	private static final byte[] NR_THROTTLED = "nr_throttled".getBytes(US_ASCII);
+
+	private static final byte[] THROTTLED_TIME = "throttled_time".getBytes(US_ASCII);
+
+	private static final byte[] THROTTLED_USEC = "throttled_usec".getBytes(US_ASCII);
+
+	/**
+	 * The cgroup version or 0 if the process isn't in a cgroup.
+	 */
+	final int version;
+
+	private final String cpu;
+
+	private final String cpuset;
+
+	private final String memory;
+
+	/**
+	 * The directory that contains the cpu, memory, and io pressure files.
+	 */
+	private final String pressure;
+
+	private final byte[] buffer = new byte[1 << 12];
+
+	/**
+	 * Locate the current process's control groups.
+	 *
+	 * @param root The filesystem root which is only different in tests
+	 * @return The process's control groups
+	 */
+	static CGroup detect(Path root) {
+		var mount = root.resolve("sys/fs/cgroup");
+		List<String> membership;
+		try {
+			membership = Files.readAllLines(root.resolve("proc/self/cgroup"));
+		} catch (IOException e) {
+			membership = List.of();
+		}
+
+		if (Files.exists(mount.resolve("cgroup.controllers"))) {
+			var group = resolve(mount, membership, "").toString();
+			return new CGroup(2, group, group, group, group);
+		}
+
+		var cpu = resolve(mount, membership, "cpu");
+		var cpuset = resolve(mount, membership, "cpuset");
+		var memory = resolve(mount, membership, "memory");
+		if (cpu == null && cpuset == null && memory == null)
+			return new CGroup(0, null, null, null, root.resolve("proc/pressure").toString());
+
+		// Pressure isn't accounted per group in v1
+		return new CGroup(1, cpu == null ? null : cpu.toString(), cpuset == null ? null : cpuset.toString(),
+				memory == null ? null : memory.toString(), root.resolve("proc/pressure").toString());
+	}
+
+	/**
+	 * Find the directory of the group that the process belongs to for the given
+	 * controller or the unified hierarchy.
+	 *
+	 * @return The group's directory or {@code null} if the controller isn't
+	 *         mounted
+	 */
+	private static Path resolve(Path mount, List<String> membership, String controller) {
+		Path hierarchy = mount;
+		if (!controller.isEmpty()) {
+			hierarchy = null;
+			try (var hierarchies = Files.newDirectoryStream(mount)) {
+				for (var dir : hierarchies) {
+					if (Arrays.asList(dir.getFileName().toString().split(",")).contains(controller)
+							&& Files.isDirectory(dir)) {
+						hierarchy = dir;
+						break;
+					}
+				}
+			} catch (IOException e) {
+				return null;
+			}
+			if (hierarchy == null)
+				return null;
+		}
+
+		// Each line is "hierarchy-ID:controller-list:path"
+		for (var line : membership) {
+			var fields = line.split(":", 3);
+			if (fields.length != 3)
+				continue;
+			if (controller.isEmpty() ? !fields[1].isEmpty()
+					: !Arrays.asList(fields[1].split(",")).contains(controller))
+				continue;
+
+			// A group outside the process's cgroup namespace isn't visible, in which case
+			// the namespace's root is the process's group
+			var group = hierarchy.resolve(fields[2].substring(1));
+			if (Files.isDirectory(group))
+				return group;
+			log.trace("Group {} isn't visible", group);
+			break;
+		}
+		return hierarchy;
+	}
+
+	private CGroup(int version, String cpu, String cpuset, String memory, String pressure) {
+		this.version = version;
+		this.cpu = cpu;
+		this.cpuset = cpuset;
+		this.memory = memory;
+		this.pressure = pressure;
+	}
+
+	/**
+	 * Read the current limits and usage.
+	 *
+	 * @return The limits
+	 */
+	synchronized ResourceLimits read() {
+		long quota = -1;
+		long period = -1;
+		long throttledPeriods = -1;
+		long throttledTime = -1;
+		if (cpu != null) {
+			if (version == 2) {
+				// "max 100000" or "50000 100000"
+				int n = ProcFile.read(cpu + "/cpu.max", buffer);
+				if (n > 0) {
+					quota = ProcFile.parseLong(buffer, n, 0);
+					period = ProcFile.parseLong(buffer, n, ProcFile.endOfField(buffer, n, 0));
+				}
+			} else {
+				// The quota is -1 when unlimited which doesn't parse
+				quota = readLong(cpu + "/cpu.cfs_quota_us");
+				period = readLong(cpu + "/cpu.cfs_period_us");
+			}
+
+			int n = ProcFile.read(cpu + "/cpu.stat", buffer);
+			if (n > 0) {
+				throttledPeriods = ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, NR_THROTTLED));
+				if (version == 2) {
+					long usec = ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, THROTTLED_USEC));
+					throttledTime = usec < 0 ? -1 : usec * 1000;
+				} else {
+					throttledTime = ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, THROTTLED_TIME));
+				}
+			}
+		}
+
+		int cpus = -1;
+		if (cpuset != null) {
+			int n = ProcFile.read(cpuset + (version == 2 ? "/cpuset.cpus.effective" : "/cpuset.effective_cpus"),
+					buffer);
+			if (n <= 0 && version == 1)
+				n = ProcFile.read(cpuset + "/cpuset.cpus", buffer);
+			if (n > 0)
+				cpus = countList(buffer, n);
+		}
+
+		long memoryLimit = -1;
+		long memoryUsage = -1;
+		if (memory != null) {
+			if (version == 2) {
+				memoryLimit = readLong(memory + "/memory.max");
+				memoryUsage = readLong(memory + "/memory.current");
+			} else {
+				memoryLimit = readLong(memory + "/memory.limit_in_bytes");
+				memoryUsage = readLong(memory + "/memory.usage_in_bytes");
+			}
+			if (memoryLimit >= UNLIMITED)
+				memoryLimit = -1;
+		}
+
+		return new ResourceLimits(version, quota, period, cpus, memoryLimit, memoryUsage, throttledPeriods,
+				throttledTime, readPressure(pressure + "/cpu.pressure"), readPressure(pressure + "/memory.pressure"),
+				readPressure(pressure + "/io.pressure"));
+	}
+
+	private long readLong(String path) {
+		int n = ProcFile.read(path, buffer);
+		return n > 0 ? ProcFile.parseLong(buffer, n, 0) : -1;
+	}
+
+	/**
+	 * Read the percentage of the last 10 seconds that some tasks were stalled.
+	 *
+	 * @return The percentage or -1 if pressure isn't available
+	 */
+	private double readPressure(String path) {
+		int n = ProcFile.read(path, buffer);
+		if (n <= 0)
+			return -1;
+
+		int line = ProcFile.find(buffer, n, SOME);
+		if (line < 0)
+			return -1;
+
+		// Find avg10 within the line
+		int end = ProcFile.nextLine(buffer, n, line) - 1;
+		for (int i = line; i <= end - AVG10.length; i++) {
+			if (Arrays.equals(buffer, i, i + AVG10.length, AVG10, 0, AVG10.length))
+				return ProcFile.parseDecimal(buffer, end, i + AVG10.length);
+		}
+		return -1;
+	}
+
+	/**
+	 * Count the entries in a list of ranges like "0-3,8,10-11".
+	 */
+	static int countList(byte[] buffer, int length) {
+		int count = 0;
+		int position = 0;
+		while (position < length) {
+			long first = ProcFile.parseLong(buffer, length, position);
+			if (first < 0)
+				break;
+			while (position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+				position++;
+			}
+
+			long last = first;
+			if (position < length && buffer[position] == '-') {
+				last = ProcFile.parseLong(buffer, length, ++position);
+				while (position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+					position++;
+				}
+			}
+			count += last - first + 1;
+
+			if (position >= length || buffer[position] != ',')
+				break;
+			position++;
+		}
+		return count;
+	}
+}
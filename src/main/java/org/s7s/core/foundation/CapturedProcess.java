@@ -0,0 +1,135 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A {@link Process} whose stdout and stderr are read from its captured output.
+ * The pump owns the real pipes, so reading them directly would race it for the
+ * process's output.
+ */
+final class CapturedProcess extends Process {
+
+	private final Process process;
+
+	private final ProcessOutput out;
+
+	private final ProcessOutput err;
+
+	private InputStream stdout;
+
+	private InputStream stderr;
+
+	CapturedProcess(Process process, ProcessOutput out, ProcessOutput err) {
+		this.process = process;
+		this.out = out;
+		this.err = err;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return process.getOutputStream();
+	}
+
+	/**
+	 * @return A stream over the captured stdout which is opened on first use
+	 */
+	@Override
+	public synchronized InputStream getInputStream() {
+		if (stdout == null)
+			stdout = out.openStream();
+		return stdout;
+	}
+
+	/**
+	 * @return A stream over the captured stderr which is opened on first use
+	 */
+	@Override
+	public synchronized InputStream getErrorStream() {
+		if (stderr == null)
+			stderr = err.openStream();
+		return stderr;
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException {
+		return process.waitFor();
+	}
+
+	@Override
+	public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+		return process.waitFor(timeout, unit);
+	}
+
+	@Override
+	public int exitValue() {
+		return process.exitValue();
+	}
+
+	@Override
+	public void destroy() {
+		process.destroy();
+	}
+
+	@Override
+	public Process destroyForcibly() {
+		process.destroyForcibly();
+		return this;
+	}
+
+	@Override
+	public boolean supportsNormalTermination() {
+		return process.supportsNormalTermination();
+	}
+
+	@Override
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+
+	@Override
+	public long pid() {
+		return process.pid();
+	}
+
+	@Override
+	public CompletableFuture<Process> onExit() {
+		return process.onExit().thenApply(p -> this);
+	}
+
+	@Override
+	public ProcessHandle toHandle() {
+		return process.toHandle();
+	}
+
+	@Override
+	public ProcessHandle.Info info() {
+		return process.info();
+	}
+
+	@Override
+	public Stream<ProcessHandle> children() {
+		return process.children();
+	}
+
+	@Override
+	public Stream<ProcessHandle> descendants() {
+		return process.descendants();
+	}
+
+	@Override
+	public String toString() {
+		return process.toString();
+	}
+}
@@ -0,0 +1,150 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves bytes from a channel into a {@link FileChannel} at a given position.
+ * File sources are transferred by the kernel without entering the JVM. Other
+ * sources are staged through a small pool of direct buffers so no transfer
+ * allocates on the heap.
+ */
+final class ChannelTransfer {
+
+	private static final Logger log = LoggerFactory.getLogger(ChannelTransfer.class);
+
+	/**
+	 * The size of each pooled direct buffer.
+	 */
+	static final int BUFFER_SIZE = 1 << 18;
+
+	/**
+	 * The upper bound on the bytes moved by a single kernel transfer so progress
+	 * can be reported between calls.
+	 */
+	private static final long TRANSFER_SIZE = 1 << 23;
+
+	private static final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(
+			Runtime.getRuntime().availableProcessors() * 2);
+
+	/**
+	 * Take a direct buffer from the pool, allocating a new one if the pool is
+	 * empty.
+	 *
+	 * @return A cleared direct buffer
+	 */
+	static ByteBuffer acquire() {
+		var buffer = pool.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		return buffer.clear();
+	}
+
+	/**
+	 * Return a buffer obtained from {@link #acquire()} to the pool. Buffers beyond
+	 * the pool's capacity are left for the garbage collector.
+	 *
+	 * @param buffer The buffer to return
+	 */
+	static void release(ByteBuffer buffer) {
+		pool.offer(buffer);
+	}
+
+	/**
+	 * Releases a mapping immediately or {@code null} if the JDK doesn't allow it.
+	 */
+	private static final MethodHandle UNMAP = unmapper();
+
+	private static MethodHandle unmapper() {
+		try {
+			var unsafe = Class.forName("sun.misc.Unsafe");
+			var field = unsafe.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafe, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.debug("Mappings will be released by the garbage collector", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Release a mapping without waiting for the garbage collector. The buffer and
+	 * every view of it must not be used afterwards.
+	 *
+	 * @param buffer A buffer returned by {@link FileChannel#map}
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (UNMAP == null)
+			return;
+
+		try {
+			UNMAP.invokeExact((ByteBuffer) buffer);
+		} catch (Throwable e) {
+			log.debug("Failed to release mapping", e);
+		}
+	}
+
+	/**
+	 * Transfer up to {@code count} bytes from the source into the destination.
+	 *
+	 * @param src      The source channel
+	 * @param dst      The destination file
+	 * @param position The destination offset
+	 * @param count    The maximum number of bytes to transfer
+	 * @return The number of bytes transferred or -1 if the source is exhausted
+	 * @throws IOException
+	 */
+	static long transfer(ReadableByteChannel src, FileChannel dst, long position, long count) throws IOException {
+
+		if (src instanceof FileChannel) {
+			long n = dst.transferFrom(src, position, Math.min(count, TRANSFER_SIZE));
+			return n == 0 ? -1 : n;
+		}
+
+		var buffer = acquire();
+		try {
+			buffer.limit((int) Math.min(buffer.capacity(), count));
+
+			// Fill the buffer to keep writes large
+			int read = 0;
+			while (buffer.hasRemaining() && (read = src.read(buffer)) != -1)
+				;
+
+			if (buffer.position() == 0)
+				return read == -1 ? -1 : 0;
+
+			buffer.flip();
+			long n = 0;
+			while (buffer.hasRemaining()) {
+				n += dst.write(buffer, position + n);
+			}
+			return n;
+		} finally {
+			release(buffer);
+		}
+	}
+
+	private ChannelTransfer() {
+	}
+}
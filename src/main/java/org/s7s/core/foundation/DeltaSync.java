@@ -0,0 +1,347 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+import org.s7s.core.foundation.S7SFile.DeltaSignature;
+
+/**
+ * Content-defined chunking and delta encoding. Files are split where a Gear
+ * rolling hash matches a mask, so an insertion or deletion only changes the
+ * chunks around it. A delta against an older file is a sequence of copies from
+ * the older file and literal data.
+ */
+final class DeltaSync {
+
+	static final String ALGORITHM = "SHA-256";
+
+	static final int DIGEST_LENGTH = 32;
+
+	static final int MIN_CHUNK = 1 << 11;
+
+	static final int AVG_CHUNK = 1 << 13;
+
+	static final int MAX_CHUNK = 1 << 16;
+
+	/**
+	 * The mask used before a chunk reaches the average size. It has more bits than
+	 * the average requires so small chunks are less likely.
+	 */
+	private static final long MASK_SMALL = 0x0003_5907_0353_0000L;
+
+	/**
+	 * The mask used after a chunk reaches the average size. It has fewer bits than
+	 * the average requires so large chunks are less likely.
+	 */
+	private static final long MASK_LARGE = 0x0000_d900_0353_0000L;
+
+	private static final int SIGNATURE_MAGIC = 0x53375353;
+
+	private static final int DELTA_MAGIC = 0x53375350;
+
+	private static final byte OP_COPY = 1;
+
+	private static final byte OP_DATA = 2;
+
+	/**
+	 * The Gear table must never change because signatures depend on it.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		var random = new SplittableRandom(0x5337_5346_4f55_4e44L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * A run of bytes in the delta that's either copied from the older file or
+	 * taken literally from the newer file.
+	 */
+	private static final class Op {
+
+		final byte type;
+
+		/**
+		 * The offset in the older file for copies or in the newer file for data.
+		 */
+		final long offset;
+
+		long length;
+
+		Op(byte type, long offset, long length) {
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	interface ChunkConsumer {
+		public void chunk(long offset, int length, byte[] digest) throws IOException;
+	}
+
+	/**
+	 * Split a file into content-defined chunks.
+	 *
+	 * @param file     The file to split
+	 * @param whole    A digest that receives every byte of the file or
+	 *                 {@code null}
+	 * @param consumer Receives each chunk in order
+	 * @throws IOException
+	 */
+	static void chunk(Path file, MessageDigest whole, ChunkConsumer consumer) throws IOException {
+		var digest = FileHasher.digest(ALGORITHM);
+		var buffer = new byte[1 << 20];
+
+		try (var in = Files.newInputStream(file)) {
+			long offset = 0;
+			int length = 0;
+			long hash = 0;
+
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				if (whole != null)
+					whole.update(buffer, 0, n);
+
+				int start = 0;
+				for (int i = 0; i < n; i++) {
+					hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+
+					if (++length < MIN_CHUNK)
+						continue;
+
+					if ((hash & (length < AVG_CHUNK ? MASK_SMALL : MASK_LARGE)) == 0 || length >= MAX_CHUNK) {
+						digest.update(buffer, start, i + 1 - start);
+						consumer.chunk(offset, length, digest.digest());
+
+						offset += length;
+						length = 0;
+						hash = 0;
+						start = i + 1;
+					}
+				}
+				digest.update(buffer, start, n - start);
+			}
+
+			if (length > 0)
+				consumer.chunk(offset, length, digest.digest());
+		}
+	}
+
+	static DeltaSignature signature(Path file) throws IOException {
+		var lengths = new ArrayList<Integer>();
+		var digests = new ArrayList<byte[]>();
+		chunk(file, null, (offset, length, digest) -> {
+			lengths.add(length);
+			digests.add(digest);
+		});
+
+		return new DeltaSignature(lengths.stream().mapToInt(Integer::intValue).toArray(),
+				digests.toArray(byte[][]::new));
+	}
+
+	static void writeSignature(DeltaSignature signature, OutputStream stream) throws IOException {
+		var out = new DataOutputStream(stream);
+		out.writeInt(SIGNATURE_MAGIC);
+		out.writeInt(signature.lengths().length);
+		for (int i = 0; i < signature.lengths().length; i++) {
+			out.writeInt(signature.lengths()[i]);
+			out.write(signature.digests()[i]);
+		}
+		out.flush();
+	}
+
+	static DeltaSignature readSignature(InputStream stream) throws IOException {
+		var in = new DataInputStream(stream);
+		if (in.readInt() != SIGNATURE_MAGIC)
+			throw new IOException("Invalid signature");
+
+		int count = in.readInt();
+		if (count < 0)
+			throw new IOException("Invalid signature");
+
+		// The count isn't trusted, so only allocate for chunks that were actually read
+		var lengths = new ArrayList<Integer>(Math.min(count, 1 << 12));
+		var digests = new ArrayList<byte[]>(Math.min(count, 1 << 12));
+		for (int i = 0; i < count; i++) {
+			lengths.add(in.readInt());
+			var digest = new byte[DIGEST_LENGTH];
+			in.readFully(digest);
+			digests.add(digest);
+		}
+		return new DeltaSignature(lengths.stream().mapToInt(Integer::intValue).toArray(),
+				digests.toArray(byte[][]::new));
+	}
+
+	/**
+	 * Write a delta that transforms the file described by the signature into the
+	 * target file.
+	 *
+	 * @param signature The signature of the older file
+	 * @param target    The newer file
+	 * @param stream    The delta output
+	 * @return The number of literal bytes in the delta
+	 * @throws IOException
+	 */
+	static long delta(DeltaSignature signature, Path target, OutputStream stream) throws IOException {
+
+		// Index the older file's chunks by digest
+		var known = new HashMap<ByteBuffer, Long>();
+		long position = 0;
+		for (int i = 0; i < signature.lengths().length; i++) {
+			known.putIfAbsent(ByteBuffer.wrap(signature.digests()[i]), position);
+			position += signature.lengths()[i];
+		}
+
+		var ops = new ArrayList<Op>();
+		var whole = FileHasher.digest(ALGORITHM);
+		chunk(target, whole, (offset, length, digest) -> {
+			var source = known.get(ByteBuffer.wrap(digest));
+			var last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+
+			if (source != null) {
+				if (last != null && last.type == OP_COPY && last.offset + last.length == source)
+					last.length += length;
+				else
+					ops.add(new Op(OP_COPY, source, length));
+			} else {
+				if (last != null && last.type == OP_DATA && last.offset + last.length == offset)
+					last.length += length;
+				else
+					ops.add(new Op(OP_DATA, offset, length));
+			}
+		});
+
+		var out = new DataOutputStream(stream);
+		out.writeInt(DELTA_MAGIC);
+		out.writeLong(Files.size(target));
+		out.write(whole.digest());
+
+		long literal = 0;
+		try (var ch = FileChannel.open(target, READ)) {
+			var buffer = new byte[1 << 16];
+			for (var op : ops) {
+				out.writeByte(op.type);
+				out.writeLong(op.offset);
+				out.writeLong(op.length);
+
+				if (op.type == OP_DATA) {
+					literal += op.length;
+					for (long done = 0; done < op.length;) {
+						int n = ch.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, op.length - done)),
+								op.offset + done);
+						if (n == -1)
+							throw new IOException("Target changed while computing delta");
+						out.write(buffer, 0, n);
+						done += n;
+					}
+				}
+			}
+		}
+		out.writeByte(0);
+		out.flush();
+		return literal;
+	}
+
+	/**
+	 * Apply a delta to a file. The result is assembled in a temporary file,
+	 * verified, and then moved over the original.
+	 *
+	 * @param file   The older file
+	 * @param stream The delta input
+	 * @throws IOException
+	 */
+	static void patch(Path file, InputStream stream) throws IOException {
+		var in = new DataInputStream(stream);
+		if (in.readInt() != DELTA_MAGIC)
+			throw new IOException("Invalid delta");
+
+		long size = in.readLong();
+		var expected = new byte[DIGEST_LENGTH];
+		in.readFully(expected);
+
+		var temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), null);
+		try {
+			try (var base = FileChannel.open(file, READ);
+					var out = FileChannel.open(temp, WRITE)) {
+
+				var buffer = new byte[1 << 16];
+				int op;
+				while ((op = in.readByte()) != 0) {
+					long offset = in.readLong();
+					long length = in.readLong();
+
+					switch (op) {
+					case OP_COPY:
+						if (offset < 0 || length < 0 || offset > base.size() - length)
+							throw new IOException("Invalid delta");
+
+						for (long done = 0; done < length;) {
+							long n = base.transferTo(offset + done, length - done, out);
+							if (n == 0)
+								throw new IOException("Invalid delta");
+							done += n;
+						}
+						break;
+					case OP_DATA:
+						if (length < 0)
+							throw new IOException("Invalid delta");
+
+						for (long remaining = length; remaining > 0;) {
+							int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+							if (n == -1)
+								throw new IOException("Truncated delta");
+							out.write(ByteBuffer.wrap(buffer, 0, n));
+							remaining -= n;
+						}
+						break;
+					default:
+						throw new IOException("Invalid delta operation: " + op);
+					}
+				}
+			}
+
+			if (Files.size(temp) != size || !Arrays.equals(FileHasher.hash(temp, ALGORITHM), expected))
+				throw new IOException("Patched file does not match the delta");
+
+			// Temporary files are only readable by the owner
+			var posix = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+			if (posix != null)
+				Files.setPosixFilePermissions(temp, posix.readAttributes().permissions());
+
+			Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private DeltaSync() {
+	}
+}
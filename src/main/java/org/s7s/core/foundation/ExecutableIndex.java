@@ -0,0 +1,221 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the file names in every directory of a search path. The index is
+ * built once from directory listings alone and rebuilt lazily when the search
+ * path changes or when the modification time of one of its directories changes.
+ * Whether a candidate is executable is only checked when it's looked up, so
+ * permission changes take effect immediately.
+ */
+final class ExecutableIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(ExecutableIndex.class);
+
+	private static final class Snapshot {
+
+		final String searchPath;
+
+		final List<Path> directories;
+
+		final List<FileTime> modified;
+
+		/**
+		 * Every file on the search path keyed by name in search path order.
+		 */
+		final Map<String, List<Path>> files;
+
+		/**
+		 * When the directories were last checked for modifications.
+		 */
+		volatile long validated;
+
+		Snapshot(String searchPath, List<Path> directories, List<FileTime> modified, Map<String, List<Path>> files) {
+			this.searchPath = searchPath;
+			this.directories = directories;
+			this.modified = modified;
+			this.files = files;
+			this.validated = System.nanoTime();
+		}
+	}
+
+	private final Supplier<String> searchPath;
+
+	private final String separator;
+
+	private final boolean ignoreCase;
+
+	/**
+	 * The minimum time in nanoseconds between modification checks.
+	 */
+	private final long interval;
+
+	private volatile Snapshot snapshot;
+
+	/**
+	 * @param searchPath A supplier of the current search path
+	 * @param separator  The search path separator
+	 * @param ignoreCase Whether executable names are case insensitive
+	 * @param interval   The minimum nanoseconds between modification checks
+	 */
+	ExecutableIndex(Supplier<String> searchPath, String separator, boolean ignoreCase, long interval) {
+		this.searchPath = searchPath;
+		this.separator = separator;
+		this.ignoreCase = ignoreCase;
+		this.interval = interval;
+	}
+
+	/**
+	 * @param executable The executable name or a path relative to the search path
+	 * @return The first executable with the given name on the search path
+	 */
+	Optional<Path> find(String executable) {
+		return Optional.ofNullable(find(current(), executable));
+	}
+
+	/**
+	 * @param executables The executable names
+	 * @return The executables that were found keyed by name
+	 */
+	Map<String, Path> findAll(Iterable<String> executables) {
+		var current = current();
+
+		var found = new HashMap<String, Path>();
+		for (var executable : executables) {
+			var path = find(current, executable);
+			if (path != null)
+				found.put(executable, path);
+		}
+		return found;
+	}
+
+	private Path find(Snapshot current, String executable) {
+
+		// Names with a separator can't be indexed, so resolve them against each directory
+		if (executable.indexOf('/') != -1 || executable.indexOf(File.separatorChar) != -1) {
+			for (var directory : current.directories) {
+				try {
+					var file = directory.resolve(executable);
+					if (isExecutable(file))
+						return file;
+				} catch (InvalidPathException e) {
+					return null;
+				}
+			}
+			return null;
+		}
+
+		var candidates = current.files.get(key(executable));
+		if (candidates != null) {
+			for (var file : candidates) {
+				if (isExecutable(file))
+					return file;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isExecutable(Path file) {
+		return Files.isExecutable(file) && !Files.isDirectory(file);
+	}
+
+	/**
+	 * Discard the index so the next lookup rebuilds it.
+	 */
+	void invalidate() {
+		snapshot = null;
+	}
+
+	private String key(String executable) {
+		return ignoreCase ? executable.toLowerCase(Locale.ROOT) : executable;
+	}
+
+	private Snapshot current() {
+		var current = snapshot;
+		var path = searchPath.get();
+
+		if (current != null && current.searchPath.equals(path)) {
+			long now = System.nanoTime();
+			if (now - current.validated < interval)
+				return current;
+
+			if (current.modified.equals(modified(current.directories))) {
+				current.validated = now;
+				return current;
+			}
+		}
+
+		current = build(path);
+		snapshot = current;
+		return current;
+	}
+
+	private Snapshot build(String path) {
+		var directories = new ArrayList<Path>();
+		for (var entry : path.split(separator)) {
+			if (entry.isBlank())
+				continue;
+
+			try {
+				directories.add(Paths.get(entry));
+			} catch (InvalidPathException e) {
+				continue;
+			}
+		}
+
+		// Read modification times first so changes made during the scan are noticed
+		var modified = modified(directories);
+
+		// Only list names here because checking each file would stat the entire path
+		var files = new HashMap<String, List<Path>>();
+		for (var directory : directories) {
+			try (var stream = Files.newDirectoryStream(directory)) {
+				for (var file : stream) {
+					files.computeIfAbsent(key(file.getFileName().toString()), name -> new ArrayList<>(1)).add(file);
+				}
+			} catch (IOException e) {
+				continue;
+			}
+		}
+
+		log.trace("Indexed {} names in {} directories", files.size(), directories.size());
+		return new Snapshot(path, directories, modified, files);
+	}
+
+	private static List<FileTime> modified(List<Path> directories) {
+		var modified = new ArrayList<FileTime>(directories.size());
+		for (var directory : directories) {
+			try {
+				modified.add(Files.getLastModifiedTime(directory));
+			} catch (IOException e) {
+				modified.add(null);
+			}
+		}
+		return modified;
+	}
+}
@@ -0,0 +1,111 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * Computes file digests by feeding mapped segments directly to
+ * {@link MessageDigest}, which avoids staging the file through heap buffers.
+ */
+final class FileHasher {
+
+	/**
+	 * @param algorithm The digest algorithm name
+	 * @return A new digest for the given algorithm
+	 */
+	static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Compute the digest of an entire file.
+	 *
+	 * @param file      The file to hash
+	 * @param algorithm The digest algorithm name
+	 * @return The file's digest
+	 * @throws IOException
+	 */
+	static byte[] hash(Path file, String algorithm) throws IOException {
+		var digest = digest(algorithm);
+
+		try (var ch = FileChannel.open(file, READ)) {
+			long size = ch.size();
+			for (long position = 0; position < size; position += S7SFile.SEGMENT_SIZE) {
+				var segment = ch.map(MapMode.READ_ONLY, position, Math.min(S7SFile.SEGMENT_SIZE, size - position));
+				try {
+					digest.update(segment);
+				} finally {
+					ChannelTransfer.unmap(segment);
+				}
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Compute the leaf digest of each fixed-size chunk of a file in parallel. Each
+	 * leaf is the digest of a 0x00 byte followed by the chunk so it can't be
+	 * confused with a parent node. The file is mapped a segment at a time and the
+	 * chunks within a segment are hashed concurrently.
+	 *
+	 * @param file      The file to hash
+	 * @param algorithm The digest algorithm name
+	 * @param chunkSize The size of each chunk
+	 * @return The leaf digest of each chunk in order
+	 * @throws IOException
+	 */
+	static byte[][] chunks(Path file, String algorithm, int chunkSize) throws IOException {
+		// Fail early on an unknown algorithm
+		digest(algorithm);
+
+		try (var ch = FileChannel.open(file, READ)) {
+			long size = ch.size();
+			var chunks = new byte[(int) ((size + chunkSize - 1) / chunkSize)][];
+
+			// Segments hold a whole number of chunks
+			int perSegment = (int) Math.max(1, S7SFile.SEGMENT_SIZE / chunkSize);
+			long segmentSize = (long) perSegment * chunkSize;
+
+			for (int first = 0; first < chunks.length; first += perSegment) {
+				long start = (long) first * chunkSize;
+				var segment = ch.map(MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+				try {
+					IntStream.range(first, Math.min(chunks.length, first + perSegment)).parallel().forEach(i -> {
+						int offset = (int) ((long) i * chunkSize - start);
+						var digest = digest(algorithm);
+						digest.update((byte) 0);
+						digest.update(segment.slice(offset, Math.min(chunkSize, segment.limit() - offset)));
+						chunks[i] = digest.digest();
+					});
+				} finally {
+					ChannelTransfer.unmap(segment);
+				}
+			}
+
+			return chunks;
+		}
+	}
+
+	private FileHasher() {
+	}
+}
@@ -0,0 +1,342 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.Platform.PlatformFingerprint;
+import org.s7s.core.foundation.S7SSystem.Topology;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Persists the {@link PlatformFingerprint} between launches. A cached
+ * fingerprint is only used if it was taken during the current boot of the
+ * current kernel, which costs two small reads to check.
+ * <p>
+ * Loading the protobuf runtime costs far more than detecting the platform, so
+ * the cache file is decoded directly from the wire format, a detected
+ * fingerprint is only encoded when it's written, and the message itself is
+ * only built when it's requested.
+ */
+final class FingerprintCache {
+
+	private static final Logger log = LoggerFactory.getLogger(FingerprintCache.class);
+
+	/**
+	 * The current fingerprint format which must be incremented whenever the
+	 * meaning of a field changes, including the order of
+	 * {@link S7SSystem.CpuFeature}.
+	 */
+	static final int FORMAT = 2;
+
+	/**
+	 * One more than the highest field number in the fingerprint.
+	 */
+	private static final int FIELDS = PlatformFingerprint.CPU_FEATURES_FIELD_NUMBER + 1;
+
+	/**
+	 * A fingerprint's fields which are either decoded from the cache or detected.
+	 */
+	static final class Snapshot {
+
+		private final long[] numbers = new long[FIELDS];
+
+		private final String[] strings = new String[FIELDS];
+
+		/**
+		 * The encoded fingerprint or {@code null} if it was detected.
+		 */
+		private final byte[] encoded;
+
+		private volatile PlatformFingerprint fingerprint;
+
+		private Snapshot() {
+			this.encoded = null;
+			Arrays.fill(strings, "");
+		}
+
+		/**
+		 * Decode the fields of an encoded fingerprint. Fields that aren't known are
+		 * skipped.
+		 *
+		 * @throws IOException If the fingerprint is malformed
+		 */
+		Snapshot(byte[] encoded) throws IOException {
+			this.encoded = encoded;
+			Arrays.fill(strings, "");
+
+			var in = ByteBuffer.wrap(encoded);
+			try {
+				while (in.hasRemaining()) {
+					long tag = readVarint(in);
+					int field = (int) (tag >>> 3);
+					switch ((int) tag & 7) {
+					case 0:
+						long value = readVarint(in);
+						if (field < FIELDS)
+							numbers[field] = value;
+						break;
+					case 1:
+						in.position(in.position() + 8);
+						break;
+					case 2:
+						int length = (int) readVarint(in);
+						if (field < FIELDS)
+							strings[field] = new String(encoded, in.position(), length, UTF_8);
+						in.position(in.position() + length);
+						break;
+					case 5:
+						in.position(in.position() + 4);
+						break;
+					default:
+						throw new IOException("Invalid wire type: " + tag);
+					}
+				}
+			} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+				throw new IOException("Truncated fingerprint", e);
+			}
+		}
+
+		private static long readVarint(ByteBuffer in) throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = in.get();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("Invalid varint");
+		}
+
+		boolean isCurrent(String bootId, String kernel) {
+			return numbers[PlatformFingerprint.FORMAT_FIELD_NUMBER] == FORMAT
+					&& strings[PlatformFingerprint.BOOT_ID_FIELD_NUMBER].equals(bootId)
+					&& strings[PlatformFingerprint.KERNEL_RELEASE_FIELD_NUMBER].equals(kernel)
+					&& numbers[PlatformFingerprint.OS_TYPE_FIELD_NUMBER] == S7SSystem.OS_TYPE.getNumber();
+		}
+
+		/**
+		 * @return The parsed or built fingerprint
+		 */
+		PlatformFingerprint fingerprint() {
+			if (fingerprint == null) {
+				if (encoded == null) {
+					fingerprint = build();
+				} else {
+					try {
+						fingerprint = PlatformFingerprint.parseFrom(encoded);
+					} catch (InvalidProtocolBufferException e) {
+						// The fields were already decoded
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+			return fingerprint;
+		}
+
+		private PlatformFingerprint build() {
+			return PlatformFingerprint.newBuilder() //
+					.setFormat((int) numbers[PlatformFingerprint.FORMAT_FIELD_NUMBER]) //
+					.setBootId(strings[PlatformFingerprint.BOOT_ID_FIELD_NUMBER]) //
+					.setKernelRelease(strings[PlatformFingerprint.KERNEL_RELEASE_FIELD_NUMBER]) //
+					.setOsTypeValue((int) numbers[PlatformFingerprint.OS_TYPE_FIELD_NUMBER]) //
+					.setArchTypeValue((int) numbers[PlatformFingerprint.ARCH_TYPE_FIELD_NUMBER]) //
+					.setDistroId(strings[PlatformFingerprint.DISTRO_ID_FIELD_NUMBER]) //
+					.setDistroVersion(strings[PlatformFingerprint.DISTRO_VERSION_FIELD_NUMBER]) //
+					.setDistroName(strings[PlatformFingerprint.DISTRO_NAME_FIELD_NUMBER]) //
+					.setLogicalCores((int) numbers[PlatformFingerprint.LOGICAL_CORES_FIELD_NUMBER]) //
+					.setPhysicalCores((int) numbers[PlatformFingerprint.PHYSICAL_CORES_FIELD_NUMBER]) //
+					.setPackages((int) numbers[PlatformFingerprint.PACKAGES_FIELD_NUMBER]) //
+					.setNumaNodes((int) numbers[PlatformFingerprint.NUMA_NODES_FIELD_NUMBER]) //
+					.setL1DCache(numbers[PlatformFingerprint.L1D_CACHE_FIELD_NUMBER]) //
+					.setL1ICache(numbers[PlatformFingerprint.L1I_CACHE_FIELD_NUMBER]) //
+					.setL2Cache(numbers[PlatformFingerprint.L2_CACHE_FIELD_NUMBER]) //
+					.setL3Cache(numbers[PlatformFingerprint.L3_CACHE_FIELD_NUMBER]) //
+					.setCacheLineSize((int) numbers[PlatformFingerprint.CACHE_LINE_SIZE_FIELD_NUMBER]) //
+					.setPageSize((int) numbers[PlatformFingerprint.PAGE_SIZE_FIELD_NUMBER]) //
+					.setHugePageSize(numbers[PlatformFingerprint.HUGE_PAGE_SIZE_FIELD_NUMBER]) //
+					.setTransparentHugePages(numbers[PlatformFingerprint.TRANSPARENT_HUGE_PAGES_FIELD_NUMBER] != 0) //
+					.setMemoryTotal(numbers[PlatformFingerprint.MEMORY_TOTAL_FIELD_NUMBER]) //
+					.setCpuFeatures(numbers[PlatformFingerprint.CPU_FEATURES_FIELD_NUMBER]) //
+					.build();
+		}
+
+		/**
+		 * @return The recorded topology
+		 */
+		Topology topology() {
+			return new Topology((int) numbers[PlatformFingerprint.LOGICAL_CORES_FIELD_NUMBER],
+					(int) numbers[PlatformFingerprint.PHYSICAL_CORES_FIELD_NUMBER],
+					(int) numbers[PlatformFingerprint.PACKAGES_FIELD_NUMBER],
+					(int) numbers[PlatformFingerprint.NUMA_NODES_FIELD_NUMBER],
+					numbers[PlatformFingerprint.L1D_CACHE_FIELD_NUMBER],
+					numbers[PlatformFingerprint.L1I_CACHE_FIELD_NUMBER],
+					numbers[PlatformFingerprint.L2_CACHE_FIELD_NUMBER],
+					numbers[PlatformFingerprint.L3_CACHE_FIELD_NUMBER],
+					(int) numbers[PlatformFingerprint.CACHE_LINE_SIZE_FIELD_NUMBER],
+					(int) numbers[PlatformFingerprint.PAGE_SIZE_FIELD_NUMBER],
+					numbers[PlatformFingerprint.HUGE_PAGE_SIZE_FIELD_NUMBER],
+					numbers[PlatformFingerprint.TRANSPARENT_HUGE_PAGES_FIELD_NUMBER] != 0);
+		}
+
+		/**
+		 * @return The recorded CPU features as bits indexed by
+		 *         {@link S7SSystem.CpuFeature}
+		 */
+		long cpuFeatures() {
+			return numbers[PlatformFingerprint.CPU_FEATURES_FIELD_NUMBER];
+		}
+	}
+
+	/**
+	 * Load the fingerprint from the cache or take a new one if the cache is
+	 * missing or stale. The cache is skipped on systems without a boot ID because
+	 * a reboot couldn't be detected.
+	 *
+	 * @param cache The cache file or {@code null} to skip the cache
+	 * @param root  The filesystem root which is only different in tests
+	 * @return The current platform's fingerprint
+	 */
+	static Snapshot load(Path cache, Path root) {
+		var bootId = S7SSystem.readString(root.resolve("proc/sys/kernel/random/boot_id")).orElse("");
+		var kernel = S7SSystem.readString(root.resolve("proc/sys/kernel/osrelease"))
+				.orElse(System.getProperty("os.version", ""));
+
+		if (bootId.isEmpty())
+			cache = null;
+
+		if (cache != null) {
+			try {
+				var snapshot = new Snapshot(Files.readAllBytes(cache));
+				if (snapshot.isCurrent(bootId, kernel))
+					return snapshot;
+
+				log.debug("Platform fingerprint is stale");
+			} catch (NoSuchFileException e) {
+				// Not cached yet
+			} catch (IOException e) {
+				log.debug("Failed to read platform fingerprint", e);
+			}
+		}
+
+		// The protobuf runtime is only loaded if the fingerprint is written
+		var snapshot = detect(root, bootId, kernel);
+		if (cache != null)
+			write(cache, snapshot.fingerprint().toByteArray());
+		return snapshot;
+	}
+
+	/**
+	 * Take a new fingerprint without starting a process.
+	 */
+	static Snapshot detect(Path root, String bootId, String kernel) {
+		var topology = Topology.read(root);
+		var snapshot = new Snapshot();
+		var numbers = snapshot.numbers;
+		var strings = snapshot.strings;
+
+		var arch = S7SSystem.archType();
+		numbers[PlatformFingerprint.FORMAT_FIELD_NUMBER] = FORMAT;
+		strings[PlatformFingerprint.BOOT_ID_FIELD_NUMBER] = bootId;
+		strings[PlatformFingerprint.KERNEL_RELEASE_FIELD_NUMBER] = kernel;
+		numbers[PlatformFingerprint.OS_TYPE_FIELD_NUMBER] = S7SSystem.OS_TYPE.getNumber();
+		numbers[PlatformFingerprint.ARCH_TYPE_FIELD_NUMBER] = arch.getNumber();
+		numbers[PlatformFingerprint.LOGICAL_CORES_FIELD_NUMBER] = topology.logicalCores();
+		numbers[PlatformFingerprint.PHYSICAL_CORES_FIELD_NUMBER] = topology.physicalCores();
+		numbers[PlatformFingerprint.PACKAGES_FIELD_NUMBER] = topology.packages();
+		numbers[PlatformFingerprint.NUMA_NODES_FIELD_NUMBER] = topology.numaNodes();
+		numbers[PlatformFingerprint.L1D_CACHE_FIELD_NUMBER] = topology.l1dCache();
+		numbers[PlatformFingerprint.L1I_CACHE_FIELD_NUMBER] = topology.l1iCache();
+		numbers[PlatformFingerprint.L2_CACHE_FIELD_NUMBER] = topology.l2Cache();
+		numbers[PlatformFingerprint.L3_CACHE_FIELD_NUMBER] = topology.l3Cache();
+		numbers[PlatformFingerprint.CACHE_LINE_SIZE_FIELD_NUMBER] = topology.cacheLineSize();
+		numbers[PlatformFingerprint.PAGE_SIZE_FIELD_NUMBER] = topology.pageSize();
+		numbers[PlatformFingerprint.HUGE_PAGE_SIZE_FIELD_NUMBER] = topology.hugePageSize();
+		numbers[PlatformFingerprint.TRANSPARENT_HUGE_PAGES_FIELD_NUMBER] = topology.transparentHugePages() ? 1 : 0;
+		numbers[PlatformFingerprint.CPU_FEATURES_FIELD_NUMBER] = S7SSystem.readCpuFeatures(root, arch);
+
+		try {
+			var release = parseOsRelease(Files.readAllLines(root.resolve("etc/os-release")));
+			strings[PlatformFingerprint.DISTRO_ID_FIELD_NUMBER] = release.getOrDefault("ID", "linux");
+			strings[PlatformFingerprint.DISTRO_VERSION_FIELD_NUMBER] = release.getOrDefault("VERSION_ID", "");
+			strings[PlatformFingerprint.DISTRO_NAME_FIELD_NUMBER] = release.getOrDefault("PRETTY_NAME",
+					release.getOrDefault("NAME", ""));
+		} catch (IOException e) {
+			log.trace("Failed to read os-release", e);
+		}
+
+		S7SSystem.readString(root.resolve("proc/meminfo")).flatMap(meminfo -> S7SSystem.field(meminfo, "MemTotal:"))
+				.map(S7SSystem::parseSize).filter(total -> total > 0)
+				.ifPresent(total -> numbers[PlatformFingerprint.MEMORY_TOTAL_FIELD_NUMBER] = total);
+
+		return snapshot;
+	}
+
+	/**
+	 * Parse the "KEY=value" lines of an os-release file.
+	 */
+	static Map<String, String> parseOsRelease(List<String> lines) {
+		var release = new HashMap<String, String>();
+		for (var line : lines) {
+			int equals = line.indexOf('=');
+			if (equals <= 0 || line.startsWith("#"))
+				continue;
+
+			var value = line.substring(equals + 1).trim();
+			if (value.length() >= 2 && (value.startsWith("\"") || value.startsWith("'"))
+					&& value.endsWith(value.substring(0, 1)))
+				value = value.substring(1, value.length() - 1);
+			release.put(line.substring(0, equals).trim(), value);
+		}
+		return release;
+	}
+
+	/**
+	 * Replace the cache file atomically so concurrent launches never read a
+	 * partial fingerprint.
+	 */
+	private static void write(Path cache, byte[] encoded) {
+		Path temp = null;
+		try {
+			Files.createDirectories(cache.toAbsolutePath().getParent());
+			temp = Files.createTempFile(cache.toAbsolutePath().getParent(), "platform", ".tmp");
+			Files.write(temp, encoded);
+			Files.move(temp, cache, ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (IOException | UnsupportedOperationException e) {
+			log.debug("Failed to write platform fingerprint", e);
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ignored) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private FingerprintCache() {
+	}
+}
@@ -0,0 +1,140 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Delivers the lines of a stream to a {@link Flow.Subscriber}. Lines are only
+ * read while the subscriber has outstanding demand, and no thread is used
+ * while it has none. Every signal is sent from the serialized drain loop, and
+ * the stream is closed once the subscription ends.
+ */
+final class LinePublisher<T> implements Flow.Subscription, Runnable {
+
+	private static class LazyExecutor {
+		private static final ExecutorService INSTANCE = Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-process-publisher-%d").build());
+	}
+
+	/**
+	 * Start a subscription.
+	 *
+	 * @param in         The stream to split into lines
+	 * @param subscriber The subscriber
+	 * @param mapper     Converts each line view to the published type
+	 */
+	static <T> void subscribe(InputStream in, Flow.Subscriber<? super T> subscriber,
+			Function<CharSequence, T> mapper) {
+		subscriber.onSubscribe(new LinePublisher<>(in, subscriber, mapper));
+	}
+
+	private final InputStream in;
+
+	private final LineReader reader;
+
+	private final Flow.Subscriber<? super T> subscriber;
+
+	private final Function<CharSequence, T> mapper;
+
+	private final AtomicLong demand = new AtomicLong();
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private volatile boolean cancelled;
+
+	/**
+	 * The error for a non-positive request, which the drain loop signals.
+	 */
+	private volatile IllegalArgumentException invalid;
+
+	private LinePublisher(InputStream in, Flow.Subscriber<? super T> subscriber, Function<CharSequence, T> mapper) {
+		this.in = in;
+		this.reader = new LineReader(in);
+		this.subscriber = subscriber;
+		this.mapper = mapper;
+	}
+
+	@Override
+	public void request(long n) {
+		if (n <= 0)
+			invalid = new IllegalArgumentException("Non-positive request: " + n);
+		else
+			demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+
+		if (!cancelled && running.compareAndSet(false, true))
+			LazyExecutor.INSTANCE.execute(this);
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+
+		// Wake a blocked read and release the output. The reader isn't closed because
+		// it holds its lock while a read is blocked.
+		close();
+	}
+
+	@Override
+	public void run() {
+		do {
+			try {
+				while (!cancelled) {
+					if (invalid != null) {
+						cancel();
+						subscriber.onError(invalid);
+						return;
+					}
+					if (demand.get() <= 0)
+						break;
+
+					var line = reader.next();
+					if (line == null) {
+						cancel();
+						subscriber.onComplete();
+						return;
+					}
+					if (cancelled)
+						return;
+
+					demand.decrementAndGet();
+					subscriber.onNext(mapper.apply(line));
+				}
+			} catch (IOException | RuntimeException e) {
+				// A read fails when it's woken by cancel()
+				if (cancelled)
+					return;
+				cancel();
+				subscriber.onError(e);
+				return;
+			}
+
+			running.set(false);
+
+			// Demand or an invalid request may have arrived after the loop ended
+		} while (!cancelled && (invalid != null || demand.get() > 0) && running.compareAndSet(false, true));
+	}
+
+	private void close() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+}
@@ -0,0 +1,89 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into lines without creating a {@link String} for each line.
+ * Each line is returned as a view over a buffer that's reused by the next call.
+ */
+final class LineReader implements Closeable {
+
+	private final Reader reader;
+
+	private final char[] chunk = new char[1 << 13];
+
+	private int position;
+
+	private int end;
+
+	private char[] line = new char[1 << 8];
+
+	private CharBuffer view = CharBuffer.wrap(line);
+
+	LineReader(InputStream in) {
+		this.reader = new InputStreamReader(in);
+	}
+
+	/**
+	 * @return A view of the next line without its terminator or {@code null} at
+	 *         the end of the stream
+	 * @throws IOException
+	 */
+	CharSequence next() throws IOException {
+		int length = 0;
+		while (true) {
+			if (position == end) {
+				end = reader.read(chunk);
+				position = 0;
+				if (end == -1) {
+					end = 0;
+					return length > 0 ? view(length) : null;
+				}
+			}
+
+			int start = position;
+			while (position < end && chunk[position] != '\n') {
+				position++;
+			}
+
+			int n = position - start;
+			if (length + n > line.length) {
+				line = Arrays.copyOf(line, Math.max(line.length * 2, length + n));
+				view = CharBuffer.wrap(line);
+			}
+			System.arraycopy(chunk, start, line, length, n);
+			length += n;
+
+			if (position < end) {
+				// Skip the newline
+				position++;
+				if (length > 0 && line[length - 1] == '\r')
+					length--;
+				return view(length);
+			}
+		}
+	}
+
+	private CharSequence view(int length) {
+		return view.clear().limit(length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,245 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.module.FindException;
+import java.lang.module.ModuleFinder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SFile.ModuleJar;
+
+/**
+ * An index of the modules contained in a directory of jar files and exploded
+ * modules. The index is persisted next to the directory and each entry is keyed
+ * by the size and modification time of the jar or of the exploded module's
+ * descriptor, so only modules that changed since the index was written have
+ * their descriptors read again.
+ */
+final class ModuleIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(ModuleIndex.class);
+
+	private static final int INDEX_MAGIC = 0x5337534D;
+
+	/**
+	 * The maximum number of directories whose indexes are kept in memory.
+	 */
+	private static final int MAX_INDEXES = 16;
+
+	private static final Map<Path, ModuleIndex> indexes = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, ModuleIndex> eldest) {
+			return size() > MAX_INDEXES;
+		}
+	};
+
+	/**
+	 * An indexed jar file.
+	 *
+	 * @param file    The jar or exploded module directory name
+	 * @param module  The module name or an empty string if the jar isn't a module
+	 * @param version The module version or an empty string
+	 */
+	private record Entry(String file, long size, long modified, String module, String version) {
+	}
+
+	/**
+	 * @param directory The directory to index
+	 * @return The shared index for the given directory
+	 */
+	static ModuleIndex of(Path directory) {
+		synchronized (indexes) {
+			return indexes.computeIfAbsent(directory.toAbsolutePath().normalize(),
+					d -> new ModuleIndex(d, TimeUnit.SECONDS.toNanos(1)));
+		}
+	}
+
+	/**
+	 * @param directory The indexed directory
+	 * @return The file that persists the index for the given directory, which is
+	 *         inside the directory if it's a filesystem root
+	 */
+	static Path indexFile(Path directory) {
+		if (directory.getFileName() == null)
+			return directory.resolve(".modules");
+		return directory.resolveSibling(directory.getFileName() + ".modules");
+	}
+
+	private final Path directory;
+
+	private final Path file;
+
+	/**
+	 * The minimum time in nanoseconds between directory scans.
+	 */
+	private final long interval;
+
+	private Map<String, Entry> entries;
+
+	private Map<String, ModuleJar> modules;
+
+	private long validated;
+
+	ModuleIndex(Path directory, long interval) {
+		this.directory = directory;
+		this.file = indexFile(directory);
+		this.interval = interval;
+	}
+
+	/**
+	 * @return The modules in the directory keyed by name
+	 * @throws IOException
+	 * @throws FindException If a module is contained in more than one file or a
+	 *                       module descriptor is invalid
+	 */
+	synchronized Map<String, ModuleJar> modules() throws IOException {
+		long now = System.nanoTime();
+		if (modules != null && now - validated < interval)
+			return modules;
+
+		if (entries == null)
+			entries = load();
+
+		boolean changed = false;
+
+		var current = new TreeMap<String, Entry>();
+		try (var stream = Files.newDirectoryStream(directory)) {
+			for (var jar : stream) {
+				var name = jar.getFileName().toString();
+
+				BasicFileAttributes attributes;
+				if (name.endsWith(".jar") || name.endsWith(".jmod")) {
+					attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+					if (!attributes.isRegularFile())
+						continue;
+				} else {
+					// An exploded module's directory doesn't change when its descriptor does
+					try {
+						attributes = Files.readAttributes(jar.resolve("module-info.class"), BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue;
+					}
+					if (!attributes.isRegularFile())
+						continue;
+				}
+
+				var entry = entries.get(name);
+				if (entry == null || entry.size() != attributes.size()
+						|| entry.modified() != attributes.lastModifiedTime().toMillis()) {
+					entry = read(jar, attributes);
+					changed = true;
+				}
+				current.put(name, entry);
+			}
+		}
+
+		if (changed || current.size() != entries.size()) {
+			entries = current;
+			modules = null;
+			save();
+		}
+
+		if (modules == null) {
+			var index = new HashMap<String, ModuleJar>();
+			for (var entry : entries.values()) {
+				if (entry.module().isEmpty())
+					continue;
+
+				var existing = index.get(entry.module());
+				if (existing != null)
+					throw new FindException("Two versions of module " + entry.module() + " found in " + directory
+							+ " (" + existing.path().getFileName() + " and " + entry.file() + ")");
+
+				index.put(entry.module(), new ModuleJar(entry.module(),
+						entry.version().isEmpty() ? Optional.empty() : Optional.of(entry.version()),
+						directory.resolve(entry.file())));
+			}
+			modules = Map.copyOf(index);
+		}
+
+		validated = now;
+		return modules;
+	}
+
+	private static Entry read(Path jar, BasicFileAttributes attributes) {
+		log.trace("Reading module descriptor: {}", jar);
+
+		String module = "";
+		String version = "";
+		for (var reference : ModuleFinder.of(jar).findAll()) {
+			module = reference.descriptor().name();
+			version = reference.descriptor().version().map(Object::toString).orElse("");
+		}
+
+		return new Entry(jar.getFileName().toString(), attributes.size(), attributes.lastModifiedTime().toMillis(),
+				module, version);
+	}
+
+	private Map<String, Entry> load() {
+		var loaded = new HashMap<String, Entry>();
+		if (!Files.exists(file))
+			return loaded;
+
+		try (var in = new DataInputStream(Files.newInputStream(file))) {
+			if (in.readInt() != INDEX_MAGIC)
+				return loaded;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				var entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+				loaded.put(entry.file(), entry);
+			}
+			return loaded;
+		} catch (EOFException e) {
+			return new HashMap<>();
+		} catch (IOException e) {
+			log.debug("Failed to load module index: {}", file, e);
+			return new HashMap<>();
+		}
+	}
+
+	private void save() {
+		try {
+			var temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), null);
+			try (var out = new DataOutputStream(Files.newOutputStream(temp))) {
+				out.writeInt(INDEX_MAGIC);
+				out.writeInt(entries.size());
+				for (var entry : entries.values()) {
+					out.writeUTF(entry.file());
+					out.writeLong(entry.size());
+					out.writeLong(entry.modified());
+					out.writeUTF(entry.module());
+					out.writeUTF(entry.version());
+				}
+			}
+			Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (IOException e) {
+			// The index still works in memory
+			log.debug("Failed to save module index: {}", file, e);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+
+/**
+ * Produces the offsets of every pattern match in a file. The file is divided
+ * into segments which are mapped, scanned, and unmapped one at a time as
+ * offsets are consumed. Splitting hands off ranges of segments so a parallel
+ * stream scans them concurrently, and segments are sized so that even a small
+ * file has a few segments for every worker.
+ */
+final class PatternSpliterator implements Spliterator.OfLong {
+
+	/**
+	 * The smallest segment that's worth scanning on its own.
+	 */
+	static final long MIN_SEGMENT_SIZE = 1 << 20;
+
+	/**
+	 * The number of segments to aim for per worker so uneven segments balance.
+	 */
+	private static final int SEGMENTS_PER_WORKER = 4;
+
+	private final FileChannel channel;
+
+	private final BytePatterns patterns;
+
+	private final long size;
+
+	private final long segmentSize;
+
+	/**
+	 * The next segment to scan.
+	 */
+	private long segment;
+
+	/**
+	 * The segment after the last segment to scan.
+	 */
+	private final long fence;
+
+	/**
+	 * Offsets found in the most recently scanned segment.
+	 */
+	private long[] pending = new long[16];
+
+	private int pendingIndex;
+
+	private int pendingCount;
+
+	PatternSpliterator(FileChannel channel, BytePatterns patterns) throws IOException {
+		this(channel, patterns, segmentSize(channel.size(), ForkJoinPool.getCommonPoolParallelism()));
+	}
+
+	PatternSpliterator(FileChannel channel, BytePatterns patterns, long segmentSize) throws IOException {
+		this(channel, patterns, channel.size(), segmentSize, 0, (channel.size() + segmentSize - 1) / segmentSize);
+	}
+
+	private PatternSpliterator(FileChannel channel, BytePatterns patterns, long size, long segmentSize, long segment,
+			long fence) {
+		this.channel = channel;
+		this.patterns = patterns;
+		this.size = size;
+		this.segmentSize = segmentSize;
+		this.segment = segment;
+		this.fence = fence;
+	}
+
+	/**
+	 * Choose a segment size that divides a file among the given number of
+	 * workers.
+	 *
+	 * @param size        The file size
+	 * @param parallelism The number of workers
+	 * @return The segment size
+	 */
+	static long segmentSize(long size, int parallelism) {
+		long target = size / ((long) Math.max(1, parallelism) * SEGMENTS_PER_WORKER);
+		return Math.max(MIN_SEGMENT_SIZE, Math.min(S7SFile.SEGMENT_SIZE, target));
+	}
+
+	@Override
+	public boolean tryAdvance(LongConsumer action) {
+		while (pendingIndex == pendingCount) {
+			if (segment >= fence)
+				return false;
+
+			scan(segment++);
+		}
+
+		action.accept(pending[pendingIndex++]);
+		return true;
+	}
+
+	@Override
+	public Spliterator.OfLong trySplit() {
+
+		// Offsets from a scanned segment must be delivered before any later segment
+		if (pendingIndex != pendingCount || fence - segment < 2)
+			return null;
+
+		long mid = (segment + fence) >>> 1;
+		var prefix = new PatternSpliterator(channel, patterns, size, segmentSize, segment, mid);
+		segment = mid;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return fence - segment + pendingCount - pendingIndex;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | SORTED | DISTINCT | NONNULL | IMMUTABLE;
+	}
+
+	@Override
+	public Comparator<? super Long> getComparator() {
+		return null;
+	}
+
+	private void scan(long index) {
+		long position = index * segmentSize;
+		long end = Math.min(size, position + segmentSize);
+
+		pendingIndex = 0;
+		pendingCount = 0;
+
+		try {
+			// Extend the mapping so matches that start in this segment can be completed
+			var buffer = channel.map(MapMode.READ_ONLY, position,
+					Math.min(size, end + patterns.maxLength - 1) - position);
+			try {
+				int i = 0;
+				while ((i = patterns.find(buffer, i, (int) (end - position))) != -1) {
+					if (pendingCount == pending.length)
+						pending = Arrays.copyOf(pending, pendingCount * 2);
+
+					pending[pendingCount++] = position + i++;
+				}
+			} finally {
+				ChannelTransfer.unmap(buffer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
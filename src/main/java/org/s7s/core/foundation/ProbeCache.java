@@ -0,0 +1,141 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import org.s7s.core.foundation.S7SProcess.ShellResult;
+
+/**
+ * Caches the output of commands whose answer rarely changes. Each entry has its
+ * own time to live, concurrent requests for the same command share a single
+ * process, and the least recently used entries are evicted once the cache is
+ * full. Failures and non-zero exits are never cached.
+ */
+final class ProbeCache {
+
+	/**
+	 * The maximum number of cached commands. It can be changed with the
+	 * "s7s.process.probe_cache_size" system property.
+	 */
+	private static final int DEFAULT_SIZE = S7SSystemProperty.of("s7s.process.probe_cache_size").asInt(256, 1);
+
+	/**
+	 * The maximum number of seconds a probe may run before it's killed. It can be
+	 * changed with the "s7s.process.probe_timeout" system property.
+	 */
+	private static final int DEFAULT_TIMEOUT = S7SSystemProperty.of("s7s.process.probe_timeout").asInt(30, 1);
+
+	private static class LazyDefaultCache {
+		private static final ProbeCache INSTANCE = new ProbeCache(DEFAULT_SIZE, cmdLine -> {
+			var process = S7SProcess.exec(cmdLine.toArray(String[]::new));
+			int exit = process.complete(Duration.ofSeconds(DEFAULT_TIMEOUT));
+			return new ShellResult(exit, process.stdout(), process.stderr());
+		});
+	}
+
+	static ProbeCache getDefault() {
+		return LazyDefaultCache.INSTANCE;
+	}
+
+	private static final class Entry {
+
+		final CompletableFuture<String> output = new CompletableFuture<>();
+
+		/**
+		 * The {@link System#nanoTime()} after which the entry is stale. It's set just
+		 * before the output completes so the time to live doesn't include the run.
+		 */
+		volatile long expires;
+	}
+
+	private final Map<List<String>, Entry> entries;
+
+	private final Function<List<String>, ShellResult> runner;
+
+	ProbeCache(int size, Function<List<String>, ShellResult> runner) {
+		this.runner = runner;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<String>, Entry> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * @param ttl     How long the output remains valid
+	 * @param cmdLine The command executable and arguments
+	 * @return The command's stdout
+	 */
+	String get(Duration ttl, String... cmdLine) {
+		var key = List.of(cmdLine);
+
+		Entry entry;
+		boolean owner = false;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null || (entry.output.isDone() && System.nanoTime() - entry.expires >= 0)) {
+				entry = new Entry();
+				entries.put(key, entry);
+				owner = true;
+			}
+		}
+
+		if (owner) {
+			ShellResult result;
+			try {
+				result = runner.apply(key);
+			} catch (Throwable e) {
+				// Don't cache failures
+				evict(key, entry);
+				entry.output.completeExceptionally(e);
+				throw e;
+			}
+
+			// Don't cache non-zero exits, but still answer the requests waiting on them
+			if (result.exit() != 0)
+				evict(key, entry);
+
+			entry.expires = System.nanoTime() + ttl.toNanos();
+			entry.output.complete(result.stdout());
+		}
+
+		try {
+			return entry.output.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException cause)
+				throw cause;
+			if (e.getCause() instanceof Error cause)
+				throw cause;
+			throw e;
+		}
+	}
+
+	private void evict(List<String> key, Entry entry) {
+		synchronized (entries) {
+			entries.remove(key, entry);
+		}
+	}
+
+	/**
+	 * Remove every entry.
+	 */
+	void invalidate() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+}
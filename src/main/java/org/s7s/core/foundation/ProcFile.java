@@ -0,0 +1,175 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads small text files from procfs and sysfs into caller-provided buffers and
+ * parses numbers directly from the bytes, so polling them produces little
+ * garbage.
+ */
+final class ProcFile {
+
+	/**
+	 * Read a file into the given buffer.
+	 *
+	 * @param path   The file to read
+	 * @param buffer The destination which should be large enough for the file
+	 * @return The number of bytes read or -1 if the file can't be read
+	 */
+	static int read(String path, byte[] buffer) {
+		try (var in = new FileInputStream(path)) {
+			int length = 0;
+			int n;
+			while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += n;
+			}
+			return length;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Read a file that's kept open into the given buffer. Files in procfs are
+	 * regenerated when they're read from the beginning.
+	 *
+	 * @param file   The file to read
+	 * @param buffer The destination which should be large enough for the file
+	 * @return The number of bytes read or -1 if the file can't be read
+	 */
+	static int read(RandomAccessFile file, byte[] buffer) {
+		try {
+			file.seek(0);
+			int length = 0;
+			int n;
+			while (length < buffer.length && (n = file.read(buffer, length, buffer.length - length)) != -1) {
+				length += n;
+			}
+			return length;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Find a line that starts with the given key.
+	 *
+	 * @return The position after the key or -1 if there's no such line
+	 */
+	static int find(byte[] buffer, int length, byte[] key) {
+		outer: for (int i = 0; i <= length - key.length; i = nextLine(buffer, length, i)) {
+			for (int j = 0; j < key.length; j++) {
+				if (buffer[i + j] != key[j])
+					continue outer;
+			}
+			return i + key.length;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The position after the next newline
+	 */
+	static int nextLine(byte[] buffer, int length, int position) {
+		while (position < length && buffer[position] != '\n') {
+			position++;
+		}
+		return position + 1;
+	}
+
+	/**
+	 * Skip whitespace-separated fields.
+	 *
+	 * @return The position of the first field after the skipped ones
+	 */
+	static int skip(byte[] buffer, int length, int position, int fields) {
+		position = skipSpace(buffer, length, position);
+		for (int i = 0; i < fields; i++) {
+			while (position < length && !isSpace(buffer[position])) {
+				position++;
+			}
+			position = skipSpace(buffer, length, position);
+		}
+		return position;
+	}
+
+	/**
+	 * Parse a non-negative decimal number after any leading spaces.
+	 *
+	 * @return The number or -1 if there are no digits at the position
+	 */
+	static long parseLong(byte[] buffer, int length, int position) {
+		if (position < 0)
+			return -1;
+
+		position = skipSpace(buffer, length, position);
+
+		long value = 0;
+		int start = position;
+		while (position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+			value = value * 10 + (buffer[position++] - '0');
+		}
+		return position == start ? -1 : value;
+	}
+
+	/**
+	 * Parse a non-negative decimal like "12.34" after any leading spaces.
+	 *
+	 * @return The number or -1 if there are no digits at the position
+	 */
+	static double parseDecimal(byte[] buffer, int length, int position) {
+		long whole = parseLong(buffer, length, position);
+		if (whole < 0)
+			return -1;
+
+		position = skipSpace(buffer, length, position);
+		while (position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+			position++;
+		}
+		if (position >= length || buffer[position] != '.')
+			return whole;
+
+		double fraction = 0;
+		double scale = 1;
+		while (++position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+			fraction = fraction * 10 + (buffer[position] - '0');
+			scale *= 10;
+		}
+		return whole + fraction / scale;
+	}
+
+	/**
+	 * @return The position after the field that starts at the given position
+	 */
+	static int endOfField(byte[] buffer, int length, int position) {
+		position = skipSpace(buffer, length, position);
+		while (position < length && !isSpace(buffer[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	private static int skipSpace(byte[] buffer, int length, int position) {
+		while (position < length && (buffer[position] == ' ' || buffer[position] == '\t')) {
+			position++;
+		}
+		return position;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n';
+	}
+
+	private ProcFile() {
+	}
+}
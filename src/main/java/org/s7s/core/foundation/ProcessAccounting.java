@@ -0,0 +1,353 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.s7s.core.foundation.S7SProcess.CommandUsage;
+import org.s7s.core.foundation.S7SProcess.ResourceUsage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Tracks the resources used by processes started through {@link S7SProcess}.
+ * A process's accounting disappears from /proc as soon as the JDK reaps it, so
+ * the CPU time of a finished process is read once from the growth of this
+ * process's reaped children counters. Live processes are only sampled when
+ * asked for their usage, or periodically if "s7s.process.accounting_interval"
+ * is set. Finished processes are added to per-command totals.
+ */
+final class ProcessAccounting {
+
+	/**
+	 * Whether per-process files are available in /proc.
+	 */
+	private static final boolean PROCFS = Files.isReadable(Paths.get("/proc/self/stat"));
+
+	/**
+	 * The length of a clock tick in /proc/[pid]/stat.
+	 */
+	private static final long TICK = TimeUnit.SECONDS.toNanos(1) / clockTicks();
+
+	/**
+	 * The number of milliseconds between samples of every live process or 0 to
+	 * only sample on demand. It can be changed with the
+	 * "s7s.process.accounting_interval" system property.
+	 */
+	private static final int SAMPLE_INTERVAL = S7SSystemProperty.of("s7s.process.accounting_interval").asInt(0, 0);
+
+	private static final byte[] VM_HWM = "VmHWM:".getBytes(US_ASCII);
+
+	private static final byte[] READ_BYTES = "read_bytes:".getBytes(US_ASCII);
+
+	private static final byte[] WRITE_BYTES = "write_bytes:".getBytes(US_ASCII);
+
+	private static class LazySampler {
+		private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-process-accounting").build());
+
+		static {
+			if (SAMPLE_INTERVAL > 0)
+				INSTANCE.scheduleWithFixedDelay(ProcessAccounting::sampleAll, SAMPLE_INTERVAL, SAMPLE_INTERVAL,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static final class Tracked {
+
+		/**
+		 * The process's handle. The process itself isn't referenced so it can be
+		 * collected while it's a weak key.
+		 */
+		final ProcessHandle handle;
+
+		final String command;
+
+		final long start = System.nanoTime();
+
+		volatile long end;
+
+		volatile ResourceUsage last;
+
+		Tracked(Process process, String command) {
+			this.handle = process.toHandle();
+			this.command = command;
+			this.last = new ResourceUsage(0, -1, -1, -1, -1, -1);
+		}
+
+		long wallTime() {
+			return (end == 0 ? System.nanoTime() : end) - start;
+		}
+	}
+
+	private static final class Totals {
+		final LongAdder processes = new LongAdder();
+		final LongAdder wallTime = new LongAdder();
+		final LongAdder userTime = new LongAdder();
+		final LongAdder systemTime = new LongAdder();
+		final LongAccumulator peakRss = new LongAccumulator(Math::max, 0);
+		final LongAdder readBytes = new LongAdder();
+		final LongAdder writeBytes = new LongAdder();
+	}
+
+	private static final Map<Process, Tracked> tracked = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private static final Queue<Tracked> live = new ConcurrentLinkedQueue<>();
+
+	private static final Map<String, Totals> totals = new ConcurrentHashMap<>();
+
+	/**
+	 * A buffer for the sampler thread.
+	 */
+	private static final byte[] buffer = new byte[1 << 12];
+
+	/**
+	 * A buffer for reading this process's children counters, guarded by the class.
+	 */
+	private static final byte[] reapedBuffer = new byte[1 << 12];
+
+	/**
+	 * The children counters in clock ticks that were already attributed to
+	 * finished processes, guarded by the class.
+	 */
+	private static long reapedUser;
+
+	private static long reapedSystem;
+
+	static {
+		var reaped = readReaped();
+		if (reaped != null) {
+			reapedUser = reaped[0];
+			reapedSystem = reaped[1];
+		}
+	}
+
+	/**
+	 * Start tracking a process. Tracking a process more than once has no effect.
+	 */
+	static void track(Process process) {
+		var t = new Tracked(process, process.info().command().map(c -> Paths.get(c).getFileName().toString())
+				.orElse("unknown"));
+		if (tracked.putIfAbsent(process, t) != null)
+			return;
+
+		if (SAMPLE_INTERVAL > 0) {
+			live.add(t);
+			LazySampler.INSTANCE.execute(() -> sample(t, buffer));
+		}
+		process.onExit().thenRun(() -> finish(t));
+	}
+
+	/**
+	 * @return The process's latest resource usage or {@code null} if it isn't
+	 *         tracked
+	 */
+	static ResourceUsage usage(Process process) {
+		var t = tracked.get(process);
+		if (t == null)
+			return null;
+
+		if (t.end == 0) {
+			if (process.isAlive())
+				sample(t, new byte[buffer.length]);
+			else
+				// The process was reaped but onExit() hasn't run yet
+				finish(t);
+		}
+
+		synchronized (t) {
+			var last = t.last;
+			return new ResourceUsage(t.wallTime(), last.userTime(), last.systemTime(), last.peakRss(),
+					last.readBytes(), last.writeBytes());
+		}
+	}
+
+	/**
+	 * @return The totals for every command keyed by executable name
+	 */
+	static Map<String, CommandUsage> totals() {
+		var snapshot = new TreeMap<String, CommandUsage>();
+		totals.forEach((command, t) -> {
+			snapshot.put(command,
+					new CommandUsage(command, t.processes.sum(), t.wallTime.sum(), t.userTime.sum(),
+							t.systemTime.sum(), t.peakRss.get(), t.readBytes.sum(), t.writeBytes.sum()));
+		});
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	private static void sampleAll() {
+		for (var t : live) {
+			sample(t, buffer);
+		}
+	}
+
+	private static void finish(Tracked t) {
+		ResourceUsage last;
+		synchronized (t) {
+			if (t.end != 0)
+				return;
+			t.end = System.nanoTime();
+
+			// The process was reaped before this runs, so its CPU time is whatever the
+			// children counters gained since the last process finished. Processes that
+			// are reaped together are attributed to whichever finishes first.
+			var reaped = attributeReaped();
+			last = t.last;
+			if (reaped != null) {
+				last = new ResourceUsage(0, Math.max(last.userTime(), reaped[0] * TICK),
+						Math.max(last.systemTime(), reaped[1] * TICK), last.peakRss(), last.readBytes(),
+						last.writeBytes());
+				t.last = last;
+			}
+		}
+		live.remove(t);
+
+		var total = totals.computeIfAbsent(t.command, c -> new Totals());
+		total.processes.increment();
+		total.wallTime.add(t.wallTime());
+		if (last.userTime() > 0)
+			total.userTime.add(last.userTime());
+		if (last.systemTime() > 0)
+			total.systemTime.add(last.systemTime());
+		if (last.peakRss() > 0)
+			total.peakRss.accumulate(last.peakRss());
+		if (last.readBytes() > 0)
+			total.readBytes.add(last.readBytes());
+		if (last.writeBytes() > 0)
+			total.writeBytes.add(last.writeBytes());
+	}
+
+	/**
+	 * @return The growth of this process's children counters in clock ticks since
+	 *         the last call or {@code null} if they're unavailable
+	 */
+	private static synchronized long[] attributeReaped() {
+		var reaped = readReaped();
+		if (reaped == null)
+			return null;
+
+		var delta = new long[] { reaped[0] - reapedUser, reaped[1] - reapedSystem };
+		reapedUser = reaped[0];
+		reapedSystem = reaped[1];
+		return delta;
+	}
+
+	/**
+	 * @return The user and system time of this process's reaped children in clock
+	 *         ticks or {@code null} if they're unavailable
+	 */
+	private static synchronized long[] readReaped() {
+		if (!PROCFS)
+			return null;
+
+		int n = ProcFile.read("/proc/self/stat", reapedBuffer);
+		if (n <= 0)
+			return null;
+
+		int position = n;
+		while (position > 0 && reapedBuffer[position - 1] != ')') {
+			position--;
+		}
+
+		// Skip from the state to cutime
+		position = ProcFile.skip(reapedBuffer, n, position, 13);
+		long user = ProcFile.parseLong(reapedBuffer, n, position);
+		long system = ProcFile.parseLong(reapedBuffer, n, ProcFile.endOfField(reapedBuffer, n, position));
+		if (user < 0 || system < 0)
+			return null;
+
+		return new long[] { user, system };
+	}
+
+	/**
+	 * @return The kernel's USER_HZ from AT_CLKTCK in the auxiliary vector
+	 */
+	private static long clockTicks() {
+		if (PROCFS) {
+			try {
+				long hz = S7SSystem.readAuxv(Files.readAllBytes(Paths.get("/proc/self/auxv")), S7SSystem.AT_CLKTCK);
+				if (hz > 0)
+					return hz;
+			} catch (IOException e) {
+				// Fall back to the usual value
+			}
+		}
+		return 100;
+	}
+
+	/**
+	 * Update a process's latest sample. Samples that fail because the process has
+	 * exited are ignored.
+	 */
+	private static void sample(Tracked t, byte[] buffer) {
+		long pid = t.handle.pid();
+
+		if (!PROCFS) {
+			t.handle.info().totalCpuDuration().map(Duration::toNanos).ifPresent(cpu -> {
+				// Only the total is available, so report it as user time
+				t.last = new ResourceUsage(0, cpu, -1, -1, -1, -1);
+			});
+			return;
+		}
+
+		int n = ProcFile.read("/proc/" + pid + "/stat", buffer);
+		if (n <= 0)
+			return;
+
+		// The command name may contain spaces and parentheses
+		int position = n;
+		while (position > 0 && buffer[position - 1] != ')') {
+			position--;
+		}
+
+		// Skip from the state to utime
+		position = ProcFile.skip(buffer, n, position, 11);
+		long user = ProcFile.parseLong(buffer, n, position);
+		long system = ProcFile.parseLong(buffer, n, ProcFile.endOfField(buffer, n, position));
+		if (user < 0 || system < 0)
+			return;
+
+		n = ProcFile.read("/proc/" + pid + "/status", buffer);
+		long rss = n > 0 ? ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, VM_HWM)) : -1;
+
+		long read = -1;
+		long write = -1;
+		n = ProcFile.read("/proc/" + pid + "/io", buffer);
+		if (n > 0) {
+			read = ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, READ_BYTES));
+			write = ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, WRITE_BYTES));
+		}
+
+		synchronized (t) {
+			// Don't replace the final usage with a sample that raced the exit
+			if (t.end == 0)
+				t.last = new ResourceUsage(0, user * TICK, system * TICK, rss > 0 ? rss * 1024 : -1, read, write);
+		}
+	}
+
+	private ProcessAccounting() {
+	}
+}
@@ -0,0 +1,479 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.s7s.core.foundation.S7SProcess.ProcessException;
+
+/**
+ * The captured output of one of a process's streams. The stream is drained as
+ * soon as the process starts, so the process never blocks on a full pipe. Up
+ * to a fixed number of bytes are kept in memory and the next
+ * {@link S7SProcess#DEFAULT_SPILL_LIMIT} bytes are spilled to a temporary file
+ * which is deleted once the output is unreachable. Anything beyond that is
+ * drained and discarded, and the output is marked as truncated.
+ * <p>
+ * An output that isn't retained is instead a ring buffer with a single reader.
+ * Bytes are discarded once they're read and the stream isn't drained while the
+ * ring is full, so a process that outputs faster than it's read blocks on its
+ * pipe. This is suitable for following long-running processes.
+ */
+public final class ProcessOutput {
+
+	private static final Cleaner cleaner = Cleaner.create();
+
+	/**
+	 * The initial size of the in-memory buffer which grows up to the limit.
+	 */
+	private static final int INITIAL_SIZE = 1 << 12;
+
+	/**
+	 * The temporary file that receives output beyond the limit. It's separate from
+	 * the output so the cleaner doesn't keep the output reachable.
+	 */
+	private static final class Spill implements Runnable {
+
+		final FileChannel channel;
+
+		Spill() throws IOException {
+			channel = FileChannel.open(Files.createTempFile("s7s-process", ".out"), READ, WRITE, DELETE_ON_CLOSE);
+		}
+
+		@Override
+		public void run() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * The process that writes the output or {@code null}.
+	 */
+	private final Process process;
+
+	private final int limit;
+
+	/**
+	 * The maximum number of bytes to spill to a temporary file.
+	 */
+	private final long spillLimit;
+
+	private final boolean retain;
+
+	private byte[] memory;
+
+	private Spill spill;
+
+	private long size;
+
+	private boolean complete;
+
+	private IOException failure;
+
+	/**
+	 * The number of bytes that were discarded because the spill limit was reached.
+	 */
+	private long discarded;
+
+	/**
+	 * The number of bytes that have been read from an output that isn't retained.
+	 */
+	private long consumed;
+
+	private boolean opened;
+
+	/**
+	 * Whether the stream of an output that isn't retained was closed, after which
+	 * the process's output is drained and dropped.
+	 */
+	private boolean released;
+
+	/**
+	 * @param process The process that writes the output or {@code null}
+	 * @param limit   The number of bytes to keep in memory
+	 * @param retain  Whether to keep output after it's read
+	 */
+	ProcessOutput(Process process, int limit, boolean retain) {
+		this(process, limit, S7SProcess.DEFAULT_SPILL_LIMIT, retain);
+	}
+
+	/**
+	 * @param process    The process that writes the output or {@code null}
+	 * @param limit      The number of bytes to keep in memory
+	 * @param spillLimit The number of bytes to spill to a temporary file
+	 * @param retain     Whether to keep output after it's read
+	 */
+	ProcessOutput(Process process, int limit, long spillLimit, boolean retain) {
+		if (limit < (retain ? 0 : 1))
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+		if (spillLimit < 0)
+			throw new IllegalArgumentException("Invalid spill limit: " + spillLimit);
+
+		this.process = process;
+		this.limit = limit;
+		this.spillLimit = spillLimit;
+		this.retain = retain;
+		this.memory = new byte[retain ? Math.min(limit, INITIAL_SIZE) : limit];
+	}
+
+	/**
+	 * @return The number of bytes that can be written without overwriting unread
+	 *         output
+	 */
+	synchronized int space() {
+		return retain || released ? Integer.MAX_VALUE : (int) (limit - (size - consumed));
+	}
+
+	/**
+	 * Append output read from the process. Outputs that aren't retained must have
+	 * enough {@link #space()}.
+	 */
+	synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+		if (!retain) {
+			if (released) {
+				size += length;
+				consumed = size;
+				return;
+			}
+			if (length > space())
+				throw new IllegalStateException();
+
+			int index = (int) (size % limit);
+			int n = Math.min(length, limit - index);
+			System.arraycopy(buffer, offset, memory, index, n);
+			System.arraycopy(buffer, offset + n, memory, 0, length - n);
+			size += length;
+			notifyAll();
+			return;
+		}
+
+		if (size < limit) {
+			int n = (int) Math.min(length, limit - size);
+			if (size + n > memory.length) {
+				var grown = new byte[(int) Math.min(limit, Math.max(size + n, memory.length * 2L))];
+				System.arraycopy(memory, 0, grown, 0, (int) size);
+				memory = grown;
+			}
+			System.arraycopy(buffer, offset, memory, (int) size, n);
+			size += n;
+			offset += n;
+			length -= n;
+		}
+
+		// Keep draining the process past the spill limit, but drop the output
+		long room = (long) limit + spillLimit - size;
+		if (length > room) {
+			discarded += length - room;
+			length = (int) room;
+		}
+
+		if (length > 0) {
+			if (spill == null) {
+				spill = new Spill();
+				cleaner.register(this, spill);
+			}
+			var src = ByteBuffer.wrap(buffer, offset, length);
+			while (src.hasRemaining()) {
+				spill.channel.write(src, size - limit + (length - src.remaining()));
+			}
+			size += length;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Mark the output as complete.
+	 *
+	 * @param e The error that ended the output or {@code null}
+	 */
+	synchronized void finish(IOException e) {
+		complete = true;
+		failure = e;
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of bytes captured so far
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * @return Whether the stream has ended
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return Whether part of the output was spilled to a temporary file
+	 */
+	public synchronized boolean isSpilled() {
+		return spill != null;
+	}
+
+	/**
+	 * @return Whether output was discarded because it exceeded the spill limit
+	 */
+	public synchronized boolean isTruncated() {
+		return discarded > 0;
+	}
+
+	/**
+	 * Wait for the stream to end.
+	 *
+	 * @return {@code this}
+	 */
+	public ProcessOutput await() {
+		try {
+			// Waiting for the exit here finishes the output without waiting for the
+			// pump's next poll. A ring can't be finished before it's read, so it
+			// relies on the pump instead.
+			if (retain && process != null) {
+				process.waitFor();
+				ProcessPump.exited();
+			}
+
+			synchronized (this) {
+				while (!complete) {
+					wait();
+				}
+				if (failure != null)
+					throw new ProcessException(failure);
+			}
+		} catch (InterruptedException e) {
+			throw new ProcessException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Read the output from the beginning. The stream blocks for more output until
+	 * the process's stream ends, so it can be used to follow a running process.
+	 * Closing the stream wakes a blocked read. An output that isn't retained can
+	 * only be opened once, and closing its stream drops the rest of the output so
+	 * the process isn't blocked by an abandoned reader.
+	 *
+	 * @return A new stream over the output
+	 */
+	public InputStream openStream() {
+		synchronized (this) {
+			if (!retain && opened)
+				throw new IllegalStateException("The output has already been opened");
+			opened = true;
+		}
+
+		return new Cursor();
+	}
+
+	/**
+	 * A stream's position in the output.
+	 */
+	private final class Cursor extends InputStream {
+
+		long position;
+
+		boolean closed;
+
+		@Override
+		public int read() throws IOException {
+			var b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			int n = ProcessOutput.this.read(this, b, off, len);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			synchronized (ProcessOutput.this) {
+				return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, size - position);
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (ProcessOutput.this) {
+				if (closed)
+					return;
+				closed = true;
+
+				if (!retain) {
+					released = true;
+					consumed = size;
+				}
+				ProcessOutput.this.notifyAll();
+			}
+
+			// The pump may have stopped polling a full output
+			if (!retain)
+				ProcessPump.requested();
+		}
+	}
+
+	/**
+	 * @return The output's lines as they become available
+	 */
+	public Stream<String> lines() {
+		return new BufferedReader(new InputStreamReader(openStream())).lines();
+	}
+
+	/**
+	 * Publish the output's lines. Output is only read when a subscriber has
+	 * outstanding demand, so a slow subscriber on an output that isn't retained
+	 * eventually blocks the process until it requests more or cancels. Each
+	 * subscription opens the output.
+	 *
+	 * @return A publisher of the output's lines
+	 */
+	public Flow.Publisher<String> linePublisher() {
+		return subscriber -> LinePublisher.subscribe(openStream(), subscriber, CharSequence::toString);
+	}
+
+	/**
+	 * Publish the output's lines without creating a {@link String} for each line.
+	 * Each line is a view over a reused buffer that's only valid until
+	 * {@link Flow.Subscriber#onNext(Object)} returns.
+	 *
+	 * @return A publisher of views of the output's lines
+	 */
+	public Flow.Publisher<CharSequence> lineViewPublisher() {
+		return subscriber -> LinePublisher.subscribe(openStream(), subscriber, line -> line);
+	}
+
+	/**
+	 * Wait for a line that matches the given predicate. Lines are examined one at a
+	 * time and aren't kept. The predicate receives a view over a reused buffer.
+	 *
+	 * @param predicate The line condition
+	 * @return The first matching line or nothing if the stream ended first
+	 */
+	public Optional<String> awaitLine(Predicate<CharSequence> predicate) {
+		try (var reader = new LineReader(openStream())) {
+			CharSequence line;
+			while ((line = reader.next()) != null) {
+				if (predicate.test(line))
+					return Optional.of(line.toString());
+			}
+			return Optional.empty();
+		} catch (IOException e) {
+			throw new ProcessException(e);
+		}
+	}
+
+	/**
+	 * Wait for the stream to end and decode the entire output. An output that
+	 * isn't retained is read by this method.
+	 *
+	 * @return The output decoded with the default charset
+	 */
+	public String text() {
+		if (retain)
+			await();
+		try (var in = openStream()) {
+			var out = new ByteArrayOutputStream((int) Math.min(size(), Integer.MAX_VALUE - 8));
+			in.transferTo(out);
+			return out.toString(Charset.defaultCharset());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Describe the output without waiting for it or reading it.
+	 *
+	 * @see #text()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "ProcessOutput[size=" + size + ", complete=" + complete + ", spilled=" + (spill != null)
+				+ ", truncated=" + (discarded > 0) + "]";
+	}
+
+	private synchronized int read(Cursor cursor, byte[] b, int off, int len) throws IOException {
+		long position = cursor.position;
+		try {
+			if (position >= size && !complete && !cursor.closed)
+				ProcessPump.requested();
+
+			while (position >= size && !complete && !cursor.closed) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+
+		if (cursor.closed)
+			throw new IOException("Stream closed");
+
+		if (position >= size) {
+			if (failure != null)
+				throw failure;
+			return -1;
+		}
+
+		len = (int) Math.min(len, size - position);
+		if (!retain) {
+			if (position != consumed)
+				throw new IllegalStateException();
+
+			boolean full = size - consumed == limit;
+
+			int index = (int) (position % limit);
+			len = Math.min(len, limit - index);
+			System.arraycopy(memory, index, b, off, len);
+			consumed += len;
+			notifyAll();
+
+			// The pump stops polling a full output, so tell it there's room
+			if (full)
+				ProcessPump.requested();
+			return len;
+		}
+
+		if (position < limit) {
+			len = (int) Math.min(len, Math.min(size, limit) - position);
+			System.arraycopy(memory, (int) position, b, off, len);
+			return len;
+		}
+
+		return spill.channel.read(ByteBuffer.wrap(b, off, len), position - limit);
+	}
+}
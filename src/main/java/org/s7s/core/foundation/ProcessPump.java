@@ -0,0 +1,238 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains the output streams of every running process on a single thread. Only
+ * the bytes reported by {@link InputStream#available()} are read, so the thread
+ * never blocks on a pipe. A stream that had nothing to read is polled less and
+ * less often, up to {@link #MAX_IDLE} apart, so idle processes cost only a few
+ * wakeups a second. The thread is woken early when a caller sees a process
+ * exit, when a reader starts waiting, or when a reader makes room in an output
+ * that was full.
+ * <p>
+ * Once a process has exited everything it wrote is already in the pipe, so its
+ * streams are finished on this thread as soon as nothing is available. Output
+ * that a descendant writes after the process exits isn't captured, just as the
+ * JDK discards it when it closes the pipe.
+ */
+final class ProcessPump implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(ProcessPump.class);
+
+	/**
+	 * The delay before polling a stream again after it first had nothing to read.
+	 */
+	private static final long MIN_IDLE = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * The longest delay between polls of an idle stream.
+	 */
+	static final long MAX_IDLE = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private static class LazyInstance {
+		private static final ProcessPump INSTANCE = new ProcessPump();
+	}
+
+	/**
+	 * A process's stream and where its output goes.
+	 */
+	private static final class Source {
+
+		final Process process;
+
+		final InputStream in;
+
+		final ProcessOutput output;
+
+		/**
+		 * The delay before the next poll if it finds nothing to read.
+		 */
+		long idle = MIN_IDLE;
+
+		/**
+		 * The {@link System#nanoTime()} of the next poll.
+		 */
+		long due = System.nanoTime();
+
+		Source(Process process, InputStream in, ProcessOutput output) {
+			this.process = process;
+			this.in = in;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * Start capturing a process's stream.
+	 *
+	 * @param process The process that owns the stream
+	 * @param in      The process's stdout or stderr
+	 * @param limit   The number of bytes to keep in memory
+	 * @param retain  Whether to keep output after it's read
+	 * @return The captured output
+	 */
+	static ProcessOutput capture(Process process, InputStream in, int limit, boolean retain) {
+		var output = new ProcessOutput(process, limit, retain);
+		var pump = LazyInstance.INSTANCE;
+		pump.pending.add(new Source(process, in, output));
+		pump.wake();
+		return output;
+	}
+
+	/**
+	 * Notify the pump that a process has exited so that its output is finished
+	 * without waiting for the next poll.
+	 */
+	static void exited() {
+		LazyInstance.INSTANCE.wake();
+	}
+
+	/**
+	 * Notify the pump that a reader is waiting for output or made room in an
+	 * output that was full, so every stream is polled now.
+	 */
+	static void requested() {
+		LazyInstance.INSTANCE.wake();
+	}
+
+	private final ConcurrentLinkedQueue<Source> pending = new ConcurrentLinkedQueue<>();
+
+	private final Thread thread;
+
+	private volatile boolean woken;
+
+	private ProcessPump() {
+		thread = new Thread(this, "s7s-process-pump");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void wake() {
+		woken = true;
+		LockSupport.unpark(thread);
+	}
+
+	@Override
+	public void run() {
+		var active = new ArrayList<Source>();
+		var buffer = new byte[1 << 16];
+
+		// Whether to poll every stream regardless of its delay
+		boolean all = true;
+
+		while (true) {
+			Source source;
+			while ((source = pending.poll()) != null) {
+				active.add(source);
+			}
+
+			if (active.isEmpty()) {
+				if (!woken)
+					LockSupport.park(this);
+				woken = false;
+				continue;
+			}
+
+			long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+			for (var it = active.iterator(); it.hasNext();) {
+				source = it.next();
+				if (!all && source.due - now > 0) {
+					next = Math.min(next, source.due - now);
+					continue;
+				}
+
+				int n = poll(source, buffer);
+				if (n < 0) {
+					it.remove();
+					continue;
+				}
+
+				if (n > 0) {
+					// There may be more, so poll again right away
+					source.idle = MIN_IDLE;
+					source.due = now;
+					next = 0;
+				} else {
+					source.due = now + source.idle;
+					next = Math.min(next, source.idle);
+					source.idle = Math.min(source.idle * 2, MAX_IDLE);
+				}
+			}
+
+			all = false;
+			if (!woken && next > 0 && next != Long.MAX_VALUE)
+				LockSupport.parkNanos(this, next);
+			if (woken) {
+				woken = false;
+				all = true;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes read, or -1 if the source is finished
+	 */
+	private int poll(Source source, byte[] buffer) {
+		try {
+			// Leave output in the pipe until the reader catches up
+			int space = source.output.space();
+			if (space == 0)
+				return 0;
+
+			// Check for exit first so that output written just before exiting is seen
+			boolean exited = !source.process.isAlive();
+
+			int available = source.in.available();
+			if (available > 0) {
+				int n = source.in.read(buffer, 0, Math.min(available, Math.min(space, buffer.length)));
+				if (n == -1) {
+					source.output.finish(null);
+					return -1;
+				}
+				source.output.write(buffer, 0, n);
+				return n;
+			}
+
+			if (exited) {
+				source.output.finish(null);
+				return -1;
+			}
+			return 0;
+		} catch (IOException e) {
+			finish(source, e);
+			return -1;
+		} catch (Throwable e) {
+			// Don't let one stream stop the pump for every other process
+			log.error("Failed to pump process output", e);
+			source.output.finish(new IOException(e));
+			return -1;
+		}
+	}
+
+	private static void finish(Source source, IOException e) {
+		if (source.process.isAlive()) {
+			log.debug("Failed to read process output", e);
+			source.output.finish(e);
+		} else {
+			// The stream was closed when the process was destroyed
+			source.output.finish(null);
+		}
+	}
+}
@@ -11,25 +11,262 @@ package org.s7s.core.foundation;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.lang.module.ModuleFinder;
+import java.io.UncheckedIOException;
+import java.lang.module.FindException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.nio.ByteOrder;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 public record S7SFile(Path path) {
 
+	/**
+	 * Receives periodic progress updates from a transfer. Updates are delivered at
+	 * most a few times per second and always once when the transfer completes.
+	 */
+	public static interface TransferListener {
+
+		/**
+		 * @param transferred The number of bytes transferred so far
+		 * @param total       The total number of bytes or -1 if unknown
+		 * @param rate        The transfer rate since the last update in bytes per
+		 *                    second
+		 * @param eta         The estimated milliseconds remaining or -1 if unknown
+		 */
+		public void progress(long transferred, long total, double rate, long eta);
+	}
+
+	/**
+	 * A placeholder element that matches any byte. Any element outside the range of
+	 * a byte is treated the same way.
+	 */
+	public static final short ANY_BYTE = 0x100;
+
+	/**
+	 * A placeholder and the payload that replaces it.
+	 *
+	 * @param placeholder The placeholder which may contain {@link #ANY_BYTE}
+	 * @param replacement The payload which cannot be larger than the placeholder
+	 */
+	public static record Replacement(short[] placeholder, byte[] replacement) {
+
+		public Replacement {
+			if (placeholder.length == 0)
+				throw new IllegalArgumentException("Empty placeholder");
+			if (replacement.length > placeholder.length)
+				throw new IllegalArgumentException("The replacement cannot be larger than the placeholder");
+		}
+	}
+
+	/**
+	 * A location in a file where a replacement was made.
+	 *
+	 * @param offset      The file offset of the placeholder
+	 * @param replacement The index of the {@link Replacement} that was applied
+	 */
+	public static record Patch(long offset, int replacement) {
+	}
+
+	/**
+	 * The content written by a single pass of {@link S7SFile#overwrite()}.
+	 */
+	public static enum WipePattern {
+
+		/**
+		 * Every byte is 0x00.
+		 */
+		ZEROS,
+
+		/**
+		 * Every byte is 0xFF.
+		 */
+		ONES,
+
+		/**
+		 * Bytes from a fast non-cryptographic generator.
+		 */
+		RANDOM;
+
+		private void fill(ByteBuffer buffer) {
+			switch (this) {
+			case ZEROS:
+				while (buffer.remaining() >= Long.BYTES)
+					buffer.putLong(0L);
+				while (buffer.hasRemaining())
+					buffer.put((byte) 0);
+				break;
+			case ONES:
+				while (buffer.remaining() >= Long.BYTES)
+					buffer.putLong(-1L);
+				while (buffer.hasRemaining())
+					buffer.put((byte) -1);
+				break;
+			case RANDOM:
+				var random = ThreadLocalRandom.current();
+				while (buffer.remaining() >= Long.BYTES)
+					buffer.putLong(random.nextLong());
+				while (buffer.hasRemaining())
+					buffer.put((byte) random.nextInt());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * A module contained in a jar file.
+	 *
+	 * @param name    The module name
+	 * @param version The module version if it has one
+	 * @param path    The jar file
+	 */
+	public static record ModuleJar(String name, Optional<String> version, Path path) {
+	}
+
+	/**
+	 * A Merkle tree built from the digests of a file's fixed-size chunks. Two
+	 * trees can be compared to find exactly which regions of a file differ. Trees
+	 * are equal when their fields and chunk digests are equal.
+	 *
+	 * @param algorithm The digest algorithm name
+	 * @param chunkSize The size of every chunk except possibly the last
+	 * @param size      The size of the file
+	 * @param chunks    The leaf digest of each chunk in order, which is the digest
+	 *                  of a 0x00 byte followed by the chunk
+	 */
+	public static record ChunkTree(String algorithm, int chunkSize, long size, byte[][] chunks) {
+
+		/**
+		 * Compute the root of the tree. Each parent is the digest of a 0x01 byte
+		 * followed by its children's digests, so it can't collide with a leaf. An
+		 * unpaired node is promoted to the next level unchanged.
+		 *
+		 * @return The root digest
+		 */
+		public byte[] root() {
+			var digest = FileHasher.digest(algorithm);
+			if (chunks.length == 0)
+				return digest.digest();
+
+			var level = chunks;
+			while (level.length > 1) {
+				var parents = new byte[(level.length + 1) / 2][];
+				for (int i = 0; i < parents.length; i++) {
+					if (2 * i + 1 == level.length) {
+						parents[i] = level[2 * i];
+					} else {
+						digest.update((byte) 1);
+						digest.update(level[2 * i]);
+						digest.update(level[2 * i + 1]);
+						parents[i] = digest.digest();
+					}
+				}
+				level = parents;
+			}
+			return level[0];
+		}
+
+		/**
+		 * Find the chunks that differ from an expected tree.
+		 *
+		 * @param expected The tree of the correct file
+		 * @return The indices of every chunk that's missing or doesn't match
+		 */
+		public int[] diff(ChunkTree expected) {
+			if (!algorithm.equals(expected.algorithm) || chunkSize != expected.chunkSize)
+				throw new IllegalArgumentException("Incompatible trees");
+
+			return IntStream.range(0, expected.chunks.length).filter(i -> {
+				if (i >= chunks.length || !Arrays.equals(chunks[i], expected.chunks[i]))
+					return true;
+
+				// The last chunk also differs if the file was truncated or extended
+				return i == expected.chunks.length - 1 && size != expected.size;
+			}).toArray();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof ChunkTree other && algorithm.equals(other.algorithm) && chunkSize == other.chunkSize
+					&& size == other.size && Arrays.deepEquals(chunks, other.chunks);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Objects.hash(algorithm, chunkSize, size) + Arrays.deepHashCode(chunks);
+		}
+
+		@Override
+		public String toString() {
+			return "ChunkTree[algorithm=" + algorithm + ", chunkSize=" + chunkSize + ", size=" + size + ", chunks="
+					+ chunks.length + "]";
+		}
+	}
+
+	/**
+	 * The content-defined chunks of a file which a newer version of the file can
+	 * be compared against to produce a delta. Signatures are equal when their
+	 * chunk lengths and digests are equal.
+	 *
+	 * @param lengths The length of each chunk in order
+	 * @param digests The SHA-256 digest of each chunk in order
+	 */
+	public static record DeltaSignature(int[] lengths, byte[][] digests) {
+
+		public static DeltaSignature read(InputStream in) throws IOException {
+			return DeltaSync.readSignature(in);
+		}
+
+		public void write(OutputStream out) throws IOException {
+			DeltaSync.writeSignature(this, out);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DeltaSignature other && Arrays.equals(lengths, other.lengths)
+					&& Arrays.deepEquals(digests, other.digests);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(lengths) + Arrays.deepHashCode(digests);
+		}
+
+		@Override
+		public String toString() {
+			return "DeltaSignature[chunks=" + lengths.length + "]";
+		}
+	}
+
+	/**
+	 * The size of each mapped segment when searching a file.
+	 */
+	static final long SEGMENT_SIZE = 1 << 26;
+
 	public static S7SFile of(Path path) {
 		return new S7SFile(path);
 	}
@@ -43,37 +280,50 @@ public record S7SFile(Path path) {
 	}
 
 	/**
-	 * Attempt to locate an executable on the PATH.
+	 * An index of the executables on the PATH.
+	 */
+	private static class LazyExecutableIndex {
+		private static final ExecutableIndex INDEX = switch (S7SSystem.OS_TYPE) {
+		case MACOS, LINUX -> new ExecutableIndex(
+				() -> S7SEnvironmentVariable.of("PATH").value().orElse("/usr/bin:/bin:/usr/sbin:/usr/local/bin"), ":",
+				false, TimeUnit.SECONDS.toNanos(1));
+		case WINDOWS -> new ExecutableIndex(
+				() -> S7SEnvironmentVariable.of("PATH").value().orElse("C:\\Windows\\system32;C:\\Windows"), ";", true,
+				TimeUnit.SECONDS.toNanos(1));
+		default -> null;
+		};
+	}
+
+	/**
+	 * Attempt to locate an executable on the PATH. Lookups are served from an
+	 * index of the PATH that's rebuilt when the PATH or one of its directories
+	 * changes.
 	 *
 	 * @param executable The name to find
 	 * @return The executable if found
 	 */
 	public static Optional<S7SFile> which(String executable) {
 
-		// Search PATH environment variable or default
-		switch (S7SSystem.OS_TYPE) {
-		case MACOS:
-		case LINUX:
-			for (var path : S7SEnvironmentVariable.of("PATH").value().orElse("/usr/bin:/bin:/usr/sbin:/usr/local/bin")
-					.split(":")) {
-				if (Files.isExecutable(Paths.get(path).resolve(executable))) {
-					return Optional.of(S7SFile.of(Paths.get(path).resolve(executable)));
-				}
-			}
-			break;
-		case WINDOWS:
-			for (var path : S7SEnvironmentVariable.of("PATH").value().orElse("C:\\Windows\\system32;C:\\Windows")
-					.split(";")) {
-				if (Files.isExecutable(Paths.get(path).resolve(executable))) {
-					return Optional.of(S7SFile.of(Paths.get(path).resolve(executable)));
-				}
-			}
-			break;
-		default:
-			break;
-		}
+		if (LazyExecutableIndex.INDEX == null)
+			return Optional.empty();
+
+		return LazyExecutableIndex.INDEX.find(executable).map(S7SFile::of);
+	}
+
+	/**
+	 * Attempt to locate many executables on the PATH in one pass.
+	 *
+	 * @param executables The names to find
+	 * @return The executables that were found keyed by name
+	 */
+	public static Map<String, S7SFile> which(Collection<String> executables) {
+
+		if (LazyExecutableIndex.INDEX == null)
+			return Map.of();
 
-		return Optional.empty();
+		var found = new HashMap<String, S7SFile>();
+		LazyExecutableIndex.INDEX.findAll(executables).forEach((name, path) -> found.put(name, S7SFile.of(path)));
+		return found;
 	}
 
 	/**
@@ -81,15 +331,31 @@ public record S7SFile(Path path) {
 	 *
 	 * @param module The module name
 	 * @return The file containing the desired module
+	 * @see #findModules()
 	 */
 	public Optional<Path> findModule(String module) {
+		return Optional.ofNullable(findModules().get(module)).map(ModuleJar::path);
+	}
+
+	/**
+	 * Find every module in the given directory. The result comes from an index
+	 * that's persisted next to the directory and updated incrementally, so only
+	 * jars that changed since the last call have their descriptors read.
+	 *
+	 * @return The modules in the directory keyed by name
+	 * @throws FindException If a module is contained in more than one file or a
+	 *                       module descriptor is invalid
+	 */
+	public Map<String, ModuleJar> findModules() {
 
 		if (!Files.isDirectory(path))
 			throw new IllegalArgumentException();
 
-		return ModuleFinder.of(path).find(module).flatMap(ref -> {
-			return ref.location().map(Paths::get);
-		});
+		try {
+			return ModuleIndex.of(path).modules();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
 	/**
@@ -113,18 +379,42 @@ public record S7SFile(Path path) {
 	 * @throws IOException
 	 */
 	public S7SFile download(URL url) throws IOException {
+		return download(url, 1, null);
+	}
 
-		if (url == null)
-			throw new IllegalArgumentException();
+	/**
+	 * Download a file from the Internet to a local file over multiple concurrent
+	 * range requests. If the transfer is interrupted, calling this method again
+	 * resumes from the progress recorded in a sidecar file. Servers that don't
+	 * support range requests are downloaded over a single connection.
+	 *
+	 * @param url      The resource location
+	 * @param segments The maximum number of concurrent connections
+	 * @return this
+	 * @throws IOException
+	 */
+	public S7SFile download(URL url, int segments) throws IOException {
+		return download(url, segments, null);
+	}
 
-		URLConnection con = url.openConnection();
+	/**
+	 * Download a file from the Internet to a local file over multiple concurrent
+	 * range requests, reporting progress to the given listener.
+	 *
+	 * @param url      The resource location
+	 * @param segments The maximum number of concurrent connections
+	 * @param listener The progress listener or {@code null}
+	 * @return this
+	 * @throws IOException
+	 */
+	public S7SFile download(URL url, int segments, TransferListener listener) throws IOException {
 
-		try (DataInputStream in = new DataInputStream(con.getInputStream())) {
-			try (OutputStream out = Files.newOutputStream(path)) {
-				in.transferTo(out);
-			}
-		}
+		if (url == null)
+			throw new IllegalArgumentException();
+		if (segments < 1)
+			throw new IllegalArgumentException("Invalid segment count: " + segments);
 
+		new SegmentedDownload(url, path, segments, listener).run();
 		return this;
 	}
 
@@ -137,33 +427,115 @@ public record S7SFile(Path path) {
 	 * @throws IOException
 	 */
 	public S7SFile overwrite() throws IOException {
+		return overwrite(null, WipePattern.ZEROS);
+	}
+
+	/**
+	 * Logically overwrite a file once for each of the given patterns. Each pass is
+	 * flushed to the storage device before the next begins. The same caveats as
+	 * {@link #overwrite()} apply.
+	 *
+	 * @param listener The progress listener or {@code null}
+	 * @param passes   The pattern of each pass
+	 * @return this
+	 * @throws IOException
+	 */
+	public S7SFile overwrite(TransferListener listener, WipePattern... passes) throws IOException {
 
 		if (!Files.exists(path))
 			throw new FileNotFoundException();
 
-		byte[] zeros = new byte[4096];
+		var meter = new TransferMeter(listener, Files.size(path) * passes.length, 0);
+		wipe(meter, passes);
+		meter.finish();
+		return this;
+	}
 
-		try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rws")) {
-			if (raf.length() < zeros.length) {
-				raf.write(new byte[(int) raf.length()]);
-				return this;
-			}
+	/**
+	 * Logically overwrite many files concurrently.
+	 *
+	 * @param files       The files to overwrite
+	 * @param parallelism The maximum number of files to overwrite at once
+	 * @param listener    The progress listener for the entire batch or
+	 *                    {@code null}
+	 * @param passes      The pattern of each pass
+	 * @throws IOException
+	 * @see #overwrite(TransferListener, WipePattern...)
+	 */
+	public static void overwrite(List<S7SFile> files, int parallelism, TransferListener listener,
+			WipePattern... passes) throws IOException {
+
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
 
-			for (long i = 0; i < raf.length(); i += zeros.length) {
-				raf.write(zeros);
+		long total = 0;
+		for (var file : files) {
+			if (!Files.exists(file.path()))
+				throw new FileNotFoundException(file.path().toString());
+
+			total += Files.size(file.path()) * passes.length;
+		}
+
+		var meter = new TransferMeter(listener, total, 0);
+		var executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, files.size())));
+		try {
+			var futures = new ArrayList<Future<?>>(files.size());
+			for (var file : files) {
+				futures.add(executor.submit(() -> {
+					file.wipe(meter, passes);
+					return null;
+				}));
 			}
-			for (long i = 0; i < raf.length() % zeros.length; i++) {
-				raf.writeByte(0);
+
+			for (var future : futures) {
+				future.get();
 			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io)
+				throw io;
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
 		}
+		meter.finish();
+	}
 
-		return this;
+	private void wipe(TransferMeter meter, WipePattern[] passes) throws IOException {
+
+		var buffer = ChannelTransfer.acquire();
+		try (var ch = FileChannel.open(path, WRITE)) {
+			long size = ch.size();
+
+			for (var pass : passes) {
+				if (pass != WipePattern.RANDOM)
+					pass.fill(buffer.clear());
+
+				for (long position = 0; position < size;) {
+					if (pass == WipePattern.RANDOM)
+						pass.fill(buffer.clear());
+
+					buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+					while (buffer.hasRemaining()) {
+						int n = ch.write(buffer, position);
+						position += n;
+						meter.add(n);
+					}
+				}
+
+				// Flush once per pass rather than once per write
+				ch.force(false);
+			}
+		} finally {
+			ChannelTransfer.release(buffer);
+		}
 	}
 
 	/**
 	 * Replace the first occurrence of the placeholder in the binary file with the
-	 * given replacement. This method uses a standard needle/haystack linear search
-	 * algorithm with backtracking.
+	 * given replacement.
 	 *
 	 * @param placeholder The unique placeholder
 	 * @param replacement The payload buffer
@@ -171,37 +543,192 @@ public record S7SFile(Path path) {
 	 * @throws IOException
 	 */
 	public S7SFile replace(short[] placeholder, byte[] replacement) throws IOException {
+		replace(List.of(new Replacement(placeholder, replacement)), 1);
+		return this;
+	}
+
+	/**
+	 * Replace every occurrence of each placeholder in the binary file with its
+	 * replacement. The file is searched in a sliding window of mapped segments, so
+	 * its size is not limited by the size of a single mapping. Where placeholders
+	 * overlap, the earliest match wins and the first given replacement takes
+	 * priority.
+	 *
+	 * @param replacements The placeholders and their replacements
+	 * @return Every location that was patched in ascending order
+	 * @throws IOException
+	 */
+	public List<Patch> replace(List<Replacement> replacements) throws IOException {
+		return replace(replacements, Integer.MAX_VALUE);
+	}
+
+	private List<Patch> replace(List<Replacement> replacements, int limit) throws IOException {
 
 		if (!Files.exists(path))
 			throw new FileNotFoundException();
 
-		// Check the replacement buffer size
-		if (replacement.length > placeholder.length)
-			throw new IllegalArgumentException("The replacement cannot be larger than the placeholder");
+		var patterns = new BytePatterns(replacements.stream().map(Replacement::placeholder).toList());
+		var patches = new ArrayList<Patch>();
 
 		try (var ch = FileChannel.open(path, READ, WRITE)) {
-			var buffer = ch.map(MapMode.READ_WRITE, ch.position(), ch.size()).order(ByteOrder.nativeOrder());
-
-			buffer.mark();
-			find: while (buffer.remaining() >= placeholder.length) {
-				for (int i = 0; i < placeholder.length; i++) {
-					if (buffer.get() != (byte) placeholder[i]) {
-						buffer.reset();
-						buffer.position(buffer.position() + 1).mark();
-						continue find;
-					}
-				}
+			long size = ch.size();
 
-				// Return to the start of the placeholder
-				buffer.position(buffer.position() - placeholder.length);
+			long position = 0;
+			while (position < size) {
+				long end = Math.min(size, position + SEGMENT_SIZE);
 
-				// Overwrite
-				buffer.put(replacement);
-				return this;
+				// Extend the mapping so matches that start in this segment can be completed
+				var buffer = ch.map(MapMode.READ_WRITE, position,
+						Math.min(size, end + patterns.maxLength - 1) - position);
+
+				long next = end;
+				int i = 0;
+				while ((i = patterns.find(buffer, i, (int) (end - position))) != -1) {
+					int index = patterns.match(buffer, i);
+					buffer.put(i, replacements.get(index).replacement());
+					patches.add(new Patch(position + i, index));
+
+					if (patches.size() >= limit)
+						return patches;
+
+					i += patterns.length(index);
+					next = Math.max(next, position + i);
+				}
+				position = next;
 			}
+		}
+
+		return patches;
+	}
+
+	/**
+	 * Find every offset in the file where the given pattern matches.
+	 *
+	 * @param pattern The pattern which may contain {@link #ANY_BYTE}
+	 * @return The match offsets in ascending order
+	 * @throws IOException
+	 * @see #search(List)
+	 */
+	public LongStream search(short[] pattern) throws IOException {
+		return search(List.of(pattern));
+	}
+
+	/**
+	 * Find every offset in the file where any of the given patterns match. The file
+	 * is split into mapped segments that are scanned lazily and in parallel on the
+	 * {@link ForkJoinPool} that runs the stream's terminal operation. Matches may
+	 * overlap and may cross segment boundaries.
+	 *
+	 * <p>
+	 * The returned stream holds the file open and should be closed like
+	 * {@link Files#lines(Path)}.
+	 *
+	 * @param patterns The patterns which may contain {@link #ANY_BYTE}
+	 * @return The match offsets in ascending order
+	 * @throws IOException
+	 */
+	public LongStream search(List<short[]> patterns) throws IOException {
+
+		if (!Files.exists(path))
+			throw new FileNotFoundException();
 
-			// Placeholder not found
-			return this;
+		var compiled = new BytePatterns(patterns);
+		var ch = FileChannel.open(path, READ);
+		try {
+			return StreamSupport.longStream(new PatternSpliterator(ch, compiled), true).onClose(() -> {
+				try {
+					ch.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			ch.close();
+			throw e;
 		}
 	}
+
+	/**
+	 * Compute the digest of the file in a single pass over mapped segments.
+	 *
+	 * @param algorithm The digest algorithm name such as "SHA-256"
+	 * @return The file's digest
+	 * @throws IOException
+	 */
+	public byte[] hash(String algorithm) throws IOException {
+
+		if (!Files.exists(path))
+			throw new FileNotFoundException();
+
+		return FileHasher.hash(path, algorithm);
+	}
+
+	/**
+	 * Compute a {@link ChunkTree} over the file. The chunk digests are computed in
+	 * parallel.
+	 *
+	 * @param algorithm The digest algorithm name such as "SHA-256"
+	 * @param chunkSize The chunk size in bytes
+	 * @return The file's chunk tree
+	 * @throws IOException
+	 */
+	public ChunkTree chunkTree(String algorithm, int chunkSize) throws IOException {
+
+		if (!Files.exists(path))
+			throw new FileNotFoundException();
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+
+		return new ChunkTree(algorithm, chunkSize, Files.size(path), FileHasher.chunks(path, algorithm, chunkSize));
+	}
+
+	/**
+	 * Compute the file's {@link DeltaSignature}.
+	 *
+	 * @return The file's signature
+	 * @throws IOException
+	 */
+	public DeltaSignature signature() throws IOException {
+
+		if (!Files.exists(path))
+			throw new FileNotFoundException();
+
+		return DeltaSync.signature(path);
+	}
+
+	/**
+	 * Write a delta that transforms an older version of this file into this file.
+	 * Only the chunks of this file that don't appear in the older version are
+	 * included literally.
+	 *
+	 * @param base The signature of the older version
+	 * @param out  The delta output
+	 * @return The number of literal bytes written to the delta
+	 * @throws IOException
+	 */
+	public long delta(DeltaSignature base, OutputStream out) throws IOException {
+
+		if (!Files.exists(path))
+			throw new FileNotFoundException();
+
+		return DeltaSync.delta(base, path, out);
+	}
+
+	/**
+	 * Apply a delta produced by {@link #delta(DeltaSignature, OutputStream)} to
+	 * this file. The new version is assembled beside this file and verified before
+	 * it atomically replaces this file.
+	 *
+	 * @param in The delta input
+	 * @return this
+	 * @throws IOException
+	 */
+	public S7SFile patch(InputStream in) throws IOException {
+
+		if (!Files.exists(path))
+			throw new FileNotFoundException();
+
+		DeltaSync.patch(path, in);
+		return this;
+	}
 }
@@ -0,0 +1,281 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.s7s.core.foundation.S7SFile.Patch;
+import org.s7s.core.foundation.S7SFile.Replacement;
+import org.s7s.core.foundation.S7SFile.TransferListener;
+import org.s7s.core.foundation.S7SFile.WipePattern;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs {@link S7SFile} operations asynchronously with a limit on how many can
+ * be in flight at once. Operations beyond the limit wait in a queue without
+ * holding a thread or a file descriptor. Cancelling a returned future skips the
+ * operation if it's still queued or interrupts it if it's running, and its
+ * permit is returned once it stops.
+ */
+public final class S7SFileScheduler {
+
+	interface IOTask<T> {
+		public T run() throws IOException;
+	}
+
+	/**
+	 * The number of operations that can be in flight on the default scheduler. It
+	 * can be changed with the "s7s.file.concurrency" system property.
+	 */
+	private static final int DEFAULT_LIMIT = S7SSystemProperty.of("s7s.file.concurrency").asInt(64, 1);
+
+	private static class LazyDefaultScheduler {
+		private static final S7SFileScheduler INSTANCE = new S7SFileScheduler(DEFAULT_LIMIT);
+	}
+
+	/**
+	 * @return The shared scheduler
+	 */
+	public static S7SFileScheduler getDefault() {
+		return LazyDefaultScheduler.INSTANCE;
+	}
+
+	/**
+	 * @param limit The maximum number of operations in flight
+	 * @return A new scheduler
+	 */
+	public static S7SFileScheduler of(int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+
+		return new S7SFileScheduler(limit);
+	}
+
+	private final ExecutorService executor;
+
+	private final Semaphore permits;
+
+	private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The number of drain requests since the current drain pass started.
+	 */
+	private final AtomicInteger draining = new AtomicInteger();
+
+	private S7SFileScheduler(int limit) {
+		this.permits = new Semaphore(limit);
+		this.executor = Executors
+				.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-file-%d").build());
+	}
+
+	/**
+	 * @see S7SFile#download(URL, int, TransferListener)
+	 */
+	public CompletableFuture<S7SFile> download(S7SFile file, URL url, int segments, TransferListener listener) {
+		return submit(() -> file.download(url, segments, listener));
+	}
+
+	/**
+	 * @see S7SFile#overwrite(TransferListener, WipePattern...)
+	 */
+	public CompletableFuture<S7SFile> overwrite(S7SFile file, TransferListener listener, WipePattern... passes) {
+		return submit(() -> file.overwrite(listener, passes));
+	}
+
+	/**
+	 * @see S7SFile#replace(List)
+	 */
+	public CompletableFuture<List<Patch>> replace(S7SFile file, List<Replacement> replacements) {
+		return submit(() -> file.replace(replacements));
+	}
+
+	/**
+	 * Compute the digest of a file. Reads are issued through an
+	 * {@link AsynchronousFileChannel} so no thread waits on the disk on platforms
+	 * with native asynchronous file I/O.
+	 *
+	 * @see S7SFile#hash(String)
+	 */
+	public CompletableFuture<byte[]> hash(S7SFile file, String algorithm) {
+		var future = new CompletableFuture<byte[]>();
+		admit(future, release -> {
+			try {
+				if (!Files.exists(file.path()))
+					throw new FileNotFoundException();
+
+				var digest = FileHasher.digest(algorithm);
+				var channel = AsynchronousFileChannel.open(file.path(), Set.of(READ), executor);
+				var buffer = ChannelTransfer.acquire();
+
+				channel.read(buffer, 0, 0L, new CompletionHandler<Integer, Long>() {
+
+					private boolean closed;
+
+					@Override
+					public void completed(Integer read, Long position) {
+						try {
+							if (read == -1) {
+								var hash = digest.digest();
+								close();
+								future.complete(hash);
+								return;
+							}
+							if (future.isDone()) {
+								close();
+								return;
+							}
+
+							digest.update(buffer.flip());
+							channel.read(buffer.clear(), position + read, position + read, this);
+						} catch (RuntimeException e) {
+							failed(e, position);
+						}
+					}
+
+					@Override
+					public void failed(Throwable e, Long position) {
+						close();
+						future.completeExceptionally(e);
+					}
+
+					private void close() {
+						if (closed)
+							return;
+						closed = true;
+
+						ChannelTransfer.release(buffer);
+						try {
+							channel.close();
+						} catch (IOException e) {
+							// Ignore
+						} finally {
+							release.run();
+						}
+					}
+				});
+
+				// Closing the channel fails the outstanding read, which then cleans up
+				future.whenComplete((hash, e) -> {
+					if (future.isCancelled()) {
+						try {
+							channel.close();
+						} catch (IOException x) {
+							// Ignore
+						}
+					}
+				});
+			} catch (IOException | RuntimeException e) {
+				release.run();
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Run a blocking task on the scheduler's executor once a permit is available.
+	 */
+	<T> CompletableFuture<T> submit(IOTask<T> task) {
+		var future = new CompletableFuture<T>();
+
+		// The thread running the task while it's running
+		var runner = new AtomicReference<Thread>();
+		future.whenComplete((result, e) -> {
+			if (future.isCancelled()) {
+				synchronized (runner) {
+					var thread = runner.get();
+					if (thread != null)
+						thread.interrupt();
+				}
+			}
+		});
+
+		admit(future, release -> executor.execute(() -> {
+			synchronized (runner) {
+				runner.set(Thread.currentThread());
+			}
+			try {
+				if (!future.isDone())
+					future.complete(task.run());
+			} catch (Exception e) {
+				future.completeExceptionally(e);
+			} finally {
+				synchronized (runner) {
+					runner.set(null);
+
+					// Don't leak an interrupt meant for this task to the next one
+					Thread.interrupted();
+				}
+				release.run();
+			}
+		}));
+		return future;
+	}
+
+	/**
+	 * Queue an operation and start as many queued operations as there are
+	 * permits. Each operation is given a callback that returns its permit once the
+	 * operation has released all of its resources. Operations whose future
+	 * completed while queued are skipped.
+	 */
+	private void admit(CompletableFuture<?> future, Consumer<Runnable> start) {
+		waiting.add(() -> {
+			Runnable release = () -> {
+				permits.release();
+				drain();
+			};
+
+			if (future.isDone())
+				release.run();
+			else
+				start.accept(release);
+		});
+		drain();
+	}
+
+	/**
+	 * Start queued operations while there are permits. Operations that fail
+	 * immediately release their permit from inside this loop, so a nested call
+	 * only records that another pass is needed instead of recursing.
+	 */
+	private void drain() {
+		if (draining.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+		do {
+			while (!waiting.isEmpty() && permits.tryAcquire()) {
+				var next = waiting.poll();
+				if (next == null) {
+					permits.release();
+					continue;
+				}
+				next.run();
+			}
+		} while ((missed = draining.addAndGet(-missed)) != 0);
+	}
+}
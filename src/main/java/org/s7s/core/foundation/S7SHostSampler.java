@@ -0,0 +1,641 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Samples host metrics from procfs and keeps a fixed amount of history for
+ * each metric. The files are kept open and read into reused buffers, numbers
+ * are parsed directly from the bytes, and history is stored in primitive ring
+ * buffers, so sampling produces no garbage once the buffers are sized.
+ * <p>
+ * Counters like CPU time and network bytes are reported as rates over the time
+ * since the previous sample, so they're {@link Double#NaN} in the first sample.
+ * <p>
+ * Disks that are built from other disks like device mapper and md arrays, and
+ * network interfaces without a device like bridges and veth pairs, aren't
+ * counted because their traffic is already counted on the underlying devices.
+ */
+public final class S7SHostSampler implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(S7SHostSampler.class);
+
+	public static enum Metric {
+
+		/**
+		 * The fraction of CPU time that wasn't idle or waiting for IO.
+		 */
+		CPU_BUSY,
+
+		/**
+		 * The fraction of CPU time spent in user mode.
+		 */
+		CPU_USER,
+
+		/**
+		 * The fraction of CPU time spent in the kernel.
+		 */
+		CPU_SYSTEM,
+
+		/**
+		 * The fraction of CPU time spent idle while waiting for IO.
+		 */
+		CPU_IOWAIT,
+
+		/**
+		 * The fraction of CPU time taken by the hypervisor.
+		 */
+		CPU_STEAL,
+
+		/**
+		 * Context switches per second.
+		 */
+		CONTEXT_SWITCHES,
+
+		/**
+		 * The number of runnable threads.
+		 */
+		PROCESSES_RUNNING,
+
+		/**
+		 * The total usable memory in bytes.
+		 */
+		MEMORY_TOTAL,
+
+		/**
+		 * The memory in bytes available to new applications without swapping.
+		 */
+		MEMORY_AVAILABLE,
+
+		/**
+		 * The swap space in use in bytes.
+		 */
+		SWAP_USED,
+
+		/**
+		 * The 1 minute load average.
+		 */
+		LOAD_1,
+
+		/**
+		 * The 5 minute load average.
+		 */
+		LOAD_5,
+
+		/**
+		 * The 15 minute load average.
+		 */
+		LOAD_15,
+
+		/**
+		 * Bytes received per second on every physical interface.
+		 */
+		NETWORK_RX,
+
+		/**
+		 * Bytes transmitted per second on every physical interface.
+		 */
+		NETWORK_TX,
+
+		/**
+		 * Packets received per second on every physical interface.
+		 */
+		NETWORK_RX_PACKETS,
+
+		/**
+		 * Packets transmitted per second on every physical interface.
+		 */
+		NETWORK_TX_PACKETS,
+
+		/**
+		 * Bytes read per second from every physical disk.
+		 */
+		DISK_READ,
+
+		/**
+		 * Bytes written per second to every physical disk.
+		 */
+		DISK_WRITE,
+
+		/**
+		 * Read requests completed per second on every physical disk.
+		 */
+		DISK_READ_OPS,
+
+		/**
+		 * Write requests completed per second on every physical disk.
+		 */
+		DISK_WRITE_OPS;
+	}
+
+	private static final Metric[] METRICS = Metric.values();
+
+	private static final Metric[] LOADS = { Metric.LOAD_1, Metric.LOAD_5, Metric.LOAD_15 };
+
+	// Indexes of raw counters
+	private static final int CPU_TOTAL = 0;
+	private static final int CPU_IDLE = 1;
+	private static final int CPU_USER_TIME = 2;
+	private static final int CPU_SYSTEM_TIME = 3;
+	private static final int CPU_IOWAIT_TIME = 4;
+	private static final int CPU_STEAL_TIME = 5;
+	private static final int CTXT = 6;
+	private static final int NET_RX = 7;
+	private static final int NET_RX_PACKETS = 8;
+	private static final int NET_TX = 9;
+	private static final int NET_TX_PACKETS = 10;
+	private static final int DISK_READ_SECTORS = 11;
+	private static final int DISK_WRITE_SECTORS = 12;
+	private static final int DISK_READS = 13;
+	private static final int DISK_WRITES = 14;
+	private static final int COUNTERS = 15;
+
+	/**
+	 * The unit of sector counts in /proc/diskstats regardless of the disk.
+	 */
+	private static final int SECTOR_SIZE = 512;
+
+	private static final byte[] CPU = "cpu ".getBytes(US_ASCII);
+
+	private static final byte[] CTXT_KEY = "ctxt".getBytes(US_ASCII);
+
+	private static final byte[] PROCS_RUNNING = "procs_running".getBytes(US_ASCII);
+
+	private static final byte[] MEM_TOTAL = "MemTotal:".getBytes(US_ASCII);
+
+	private static final byte[] MEM_AVAILABLE = "MemAvailable:".getBytes(US_ASCII);
+
+	private static final byte[] SWAP_TOTAL = "SwapTotal:".getBytes(US_ASCII);
+
+	private static final byte[] SWAP_FREE = "SwapFree:".getBytes(US_ASCII);
+
+	private static final byte[] LOOPBACK = "lo".getBytes(US_ASCII);
+
+	private static class LazyScheduler {
+		private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-host-sampler").build());
+	}
+
+	/**
+	 * Create a sampler that reads the host's procfs.
+	 *
+	 * @param capacity The number of samples to keep for each metric
+	 * @return A new sampler
+	 */
+	public static S7SHostSampler of(int capacity) {
+		return new S7SHostSampler(Paths.get("/"), capacity);
+	}
+
+	private final int capacity;
+
+	private final RandomAccessFile stat;
+
+	private final RandomAccessFile meminfo;
+
+	private final RandomAccessFile loadavg;
+
+	private final RandomAccessFile netdev;
+
+	private final RandomAccessFile diskstats;
+
+	/**
+	 * The names of whole disks or {@code null} to count every device except loop
+	 * and ram devices.
+	 */
+	private final byte[][] disks;
+
+	/**
+	 * The names of interfaces backed by a device or {@code null} to count every
+	 * interface except loopback.
+	 */
+	private final byte[][] interfaces;
+
+	/**
+	 * Whether this is the shared sampler which can't be closed.
+	 */
+	private boolean shared;
+
+	private byte[] buffer = new byte[1 << 14];
+
+	private final long[] fields = new long[10];
+
+	private long[] counters = new long[COUNTERS];
+
+	private long[] previous = new long[COUNTERS];
+
+	private long previousTime;
+
+	/**
+	 * Each metric's history in consecutive blocks of {@link #capacity}.
+	 */
+	private final double[] history;
+
+	private final long[] timestamps;
+
+	/**
+	 * The slot of the next sample.
+	 */
+	private int head;
+
+	private int size;
+
+	private ScheduledFuture<?> schedule;
+
+	/**
+	 * @param root     The filesystem root which is only different in tests
+	 * @param capacity The number of samples to keep for each metric
+	 */
+	S7SHostSampler(Path root, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+		this.capacity = capacity;
+		this.history = new double[METRICS.length * capacity];
+		this.timestamps = new long[capacity];
+
+		this.stat = open(root.resolve("proc/stat"));
+		this.meminfo = open(root.resolve("proc/meminfo"));
+		this.loadavg = open(root.resolve("proc/loadavg"));
+		this.netdev = open(root.resolve("proc/net/dev"));
+		this.diskstats = open(root.resolve("proc/diskstats"));
+
+		this.disks = listDevices(root.resolve("sys/block"),
+				device -> !isVirtual(device.getFileName().toString()) && !hasEntries(device.resolve("slaves")));
+		this.interfaces = listDevices(root.resolve("sys/class/net"), device -> Files.exists(device.resolve("device")));
+	}
+
+	/**
+	 * @return The names of the matching devices or {@code null} if there are none
+	 */
+	private static byte[][] listDevices(Path directory, Predicate<Path> filter) {
+		var names = new ArrayList<byte[]>();
+		try (var devices = Files.newDirectoryStream(directory)) {
+			for (var device : devices) {
+				if (filter.test(device))
+					names.add(device.getFileName().toString().getBytes(US_ASCII));
+			}
+		} catch (IOException e) {
+			log.trace("Failed to list {}", directory, e);
+		}
+		return names.isEmpty() ? null : names.toArray(byte[][]::new);
+	}
+
+	private static boolean hasEntries(Path directory) {
+		try (var entries = Files.newDirectoryStream(directory)) {
+			return entries.iterator().hasNext();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static RandomAccessFile open(Path file) {
+		try {
+			return new RandomAccessFile(file.toFile(), "r");
+		} catch (IOException e) {
+			log.debug("Failed to open {}", file);
+			return null;
+		}
+	}
+
+	private static boolean isVirtual(String device) {
+		return device.startsWith("loop") || device.startsWith("ram") || device.startsWith("zram");
+	}
+
+	/**
+	 * Sample every metric in a background thread until the sampler is closed.
+	 *
+	 * @param period The time between samples
+	 * @return {@code this}
+	 */
+	public synchronized S7SHostSampler start(Duration period) {
+		if (schedule != null)
+			throw new IllegalStateException("The sampler has already been started");
+
+		schedule = LazyScheduler.INSTANCE.scheduleAtFixedRate(this::sample, 0, period.toNanos(),
+				TimeUnit.NANOSECONDS);
+		return this;
+	}
+
+	/**
+	 * Take a sample of every metric.
+	 */
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		int slot = head;
+
+		int n = read(stat);
+		if (n > 0) {
+			// user nice system idle iowait irq softirq steal
+			parseFields(buffer, n, ProcFile.find(buffer, n, CPU), 8);
+			counters[CPU_USER_TIME] = fields[0] + fields[1];
+			counters[CPU_SYSTEM_TIME] = fields[2] + fields[5] + fields[6];
+			counters[CPU_IDLE] = fields[3] + fields[4];
+			counters[CPU_IOWAIT_TIME] = fields[4];
+			counters[CPU_STEAL_TIME] = fields[7];
+			counters[CPU_TOTAL] = counters[CPU_USER_TIME] + counters[CPU_SYSTEM_TIME] + counters[CPU_IDLE]
+					+ fields[7];
+			counters[CTXT] = ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, CTXT_KEY));
+			record(slot, Metric.PROCESSES_RUNNING,
+					ProcFile.parseLong(buffer, n, ProcFile.find(buffer, n, PROCS_RUNNING)));
+		} else {
+			record(slot, Metric.PROCESSES_RUNNING, Double.NaN);
+		}
+
+		n = read(meminfo);
+		if (n > 0) {
+			record(slot, Metric.MEMORY_TOTAL, kilobytes(n, MEM_TOTAL));
+			record(slot, Metric.MEMORY_AVAILABLE, kilobytes(n, MEM_AVAILABLE));
+			record(slot, Metric.SWAP_USED, kilobytes(n, SWAP_TOTAL) - kilobytes(n, SWAP_FREE));
+		} else {
+			record(slot, Metric.MEMORY_TOTAL, Double.NaN);
+			record(slot, Metric.MEMORY_AVAILABLE, Double.NaN);
+			record(slot, Metric.SWAP_USED, Double.NaN);
+		}
+
+		n = read(loadavg);
+		int position = 0;
+		for (var metric : LOADS) {
+			record(slot, metric, n > 0 ? ProcFile.parseDecimal(buffer, n, position) : Double.NaN);
+			position = ProcFile.endOfField(buffer, n, position);
+		}
+
+		counters[NET_RX] = counters[NET_RX_PACKETS] = counters[NET_TX] = counters[NET_TX_PACKETS] = 0;
+		n = read(netdev);
+		// Skip the two header lines
+		for (int line = ProcFile.nextLine(buffer, n, ProcFile.nextLine(buffer, n, 0)); line < n; line = ProcFile
+				.nextLine(buffer, n, line)) {
+			int start = ProcFile.skip(buffer, n, line, 0);
+			int colon = start;
+			while (colon < n && buffer[colon] != ':' && buffer[colon] != '\n') {
+				colon++;
+			}
+			if (colon >= n || buffer[colon] != ':' || !isInterface(start, colon))
+				continue;
+
+			// rx: bytes packets errs drop fifo frame compressed multicast, tx: bytes packets
+			parseFields(buffer, n, colon + 1, 10);
+			counters[NET_RX] += fields[0];
+			counters[NET_RX_PACKETS] += fields[1];
+			counters[NET_TX] += fields[8];
+			counters[NET_TX_PACKETS] += fields[9];
+		}
+
+		counters[DISK_READ_SECTORS] = counters[DISK_WRITE_SECTORS] = counters[DISK_READS] = counters[DISK_WRITES] = 0;
+		n = read(diskstats);
+		for (int line = 0; line < n; line = ProcFile.nextLine(buffer, n, line)) {
+			// major minor name
+			int start = ProcFile.skip(buffer, n, line, 2);
+			int end = ProcFile.endOfField(buffer, n, start);
+			if (end == start || !isDisk(start, end))
+				continue;
+
+			// reads merged sectors ms writes merged sectors
+			parseFields(buffer, n, end, 7);
+			counters[DISK_READS] += fields[0];
+			counters[DISK_READ_SECTORS] += fields[2];
+			counters[DISK_WRITES] += fields[4];
+			counters[DISK_WRITE_SECTORS] += fields[6];
+		}
+
+		boolean first = size == 0;
+		double elapsed = (now - previousTime) / 1e9;
+		long cpu = delta(CPU_TOTAL);
+		recordFraction(slot, Metric.CPU_BUSY, cpu - delta(CPU_IDLE), cpu, first);
+		recordFraction(slot, Metric.CPU_USER, delta(CPU_USER_TIME), cpu, first);
+		recordFraction(slot, Metric.CPU_SYSTEM, delta(CPU_SYSTEM_TIME), cpu, first);
+		recordFraction(slot, Metric.CPU_IOWAIT, delta(CPU_IOWAIT_TIME), cpu, first);
+		recordFraction(slot, Metric.CPU_STEAL, delta(CPU_STEAL_TIME), cpu, first);
+		recordRate(slot, Metric.CONTEXT_SWITCHES, delta(CTXT), elapsed, first);
+		recordRate(slot, Metric.NETWORK_RX, delta(NET_RX), elapsed, first);
+		recordRate(slot, Metric.NETWORK_TX, delta(NET_TX), elapsed, first);
+		recordRate(slot, Metric.NETWORK_RX_PACKETS, delta(NET_RX_PACKETS), elapsed, first);
+		recordRate(slot, Metric.NETWORK_TX_PACKETS, delta(NET_TX_PACKETS), elapsed, first);
+		recordRate(slot, Metric.DISK_READ, delta(DISK_READ_SECTORS) * SECTOR_SIZE, elapsed, first);
+		recordRate(slot, Metric.DISK_WRITE, delta(DISK_WRITE_SECTORS) * SECTOR_SIZE, elapsed, first);
+		recordRate(slot, Metric.DISK_READ_OPS, delta(DISK_READS), elapsed, first);
+		recordRate(slot, Metric.DISK_WRITE_OPS, delta(DISK_WRITES), elapsed, first);
+
+		var swap = previous;
+		previous = counters;
+		counters = swap;
+		previousTime = now;
+
+		timestamps[slot] = System.currentTimeMillis();
+		head = (head + 1) % capacity;
+		size = Math.min(size + 1, capacity);
+	}
+
+	/**
+	 * @return The number of samples in the history
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The maximum number of samples in the history
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param metric The metric
+	 * @return The metric's latest value or {@link Double#NaN} if there are no
+	 *         samples
+	 */
+	public synchronized double latest(Metric metric) {
+		return size == 0 ? Double.NaN : get(metric, 0);
+	}
+
+	/**
+	 * @param metric The metric
+	 * @param age    The number of samples before the latest one
+	 * @return The metric's value in the given sample
+	 */
+	public synchronized double get(Metric metric, int age) {
+		return history[metric.ordinal() * capacity + slot(age)];
+	}
+
+	/**
+	 * @param age The number of samples before the latest one
+	 * @return The time the given sample was taken in milliseconds since the epoch
+	 */
+	public synchronized long timestamp(int age) {
+		return timestamps[slot(age)];
+	}
+
+	/**
+	 * Copy a metric's history from oldest to newest.
+	 *
+	 * @param metric      The metric
+	 * @param destination The destination which receives the most recent samples
+	 *                    if it's smaller than the history
+	 * @return The number of samples copied
+	 */
+	public synchronized int history(Metric metric, double[] destination) {
+		int count = Math.min(size, destination.length);
+		for (int i = 0; i < count; i++) {
+			destination[i] = get(metric, count - 1 - i);
+		}
+		return count;
+	}
+
+	/**
+	 * Stop sampling and close the files. Closing the shared sampler from
+	 * {@link S7SSystem#sampler()} has no effect because other callers use it.
+	 */
+	@Override
+	public synchronized void close() {
+		if (shared)
+			return;
+
+		if (schedule != null)
+			schedule.cancel(false);
+
+		for (var file : new RandomAccessFile[] { stat, meminfo, loadavg, netdev, diskstats }) {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prevent the sampler from being closed by one of the callers sharing it.
+	 *
+	 * @return {@code this}
+	 */
+	synchronized S7SHostSampler share() {
+		shared = true;
+		return this;
+	}
+
+	private int slot(int age) {
+		if (age < 0 || age >= size)
+			throw new IndexOutOfBoundsException(age);
+
+		return Math.floorMod(head - 1 - age, capacity);
+	}
+
+	/**
+	 * Read an entire file, growing the buffer if the file doesn't fit.
+	 *
+	 * @return The number of bytes read or 0 if the file isn't available
+	 */
+	private int read(RandomAccessFile file) {
+		if (file == null)
+			return 0;
+
+		int n;
+		while ((n = ProcFile.read(file, buffer)) == buffer.length) {
+			buffer = new byte[buffer.length * 2];
+		}
+		return Math.max(n, 0);
+	}
+
+	/**
+	 * Parse consecutive whitespace-separated numbers into {@link #fields}. Missing
+	 * numbers are 0.
+	 */
+	private void parseFields(byte[] buffer, int length, int position, int count) {
+		for (int i = 0; i < count; i++) {
+			long value = ProcFile.parseLong(buffer, length, position);
+			fields[i] = Math.max(value, 0);
+			if (position >= 0)
+				position = ProcFile.endOfField(buffer, length, position);
+		}
+	}
+
+	private double kilobytes(int length, byte[] key) {
+		long value = ProcFile.parseLong(buffer, length, ProcFile.find(buffer, length, key));
+		return value < 0 ? Double.NaN : value * 1024d;
+	}
+
+	private boolean isDisk(int start, int end) {
+		if (disks == null) {
+			return !(startsWith(start, end, "loop") || startsWith(start, end, "ram")
+					|| startsWith(start, end, "zram"));
+		}
+
+		for (var disk : disks) {
+			if (equals(buffer, start, end, disk))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isInterface(int start, int end) {
+		if (interfaces == null)
+			return !equals(buffer, start, end, LOOPBACK);
+
+		for (var name : interfaces) {
+			if (equals(buffer, start, end, name))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean startsWith(int start, int end, String prefix) {
+		if (end - start < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer[start + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equals(byte[] buffer, int start, int end, byte[] value) {
+		return Arrays.equals(buffer, start, end, value, 0, value.length);
+	}
+
+	/**
+	 * @return The increase of a counter since the previous sample, which is 0 if
+	 *         the counter was reset
+	 */
+	private long delta(int counter) {
+		return Math.max(0, counters[counter] - previous[counter]);
+	}
+
+	private void record(int slot, Metric metric, double value) {
+		history[metric.ordinal() * capacity + slot] = value;
+	}
+
+	private void recordFraction(int slot, Metric metric, long part, long total, boolean first) {
+		record(slot, metric, first || total == 0 ? Double.NaN : (double) part / total);
+	}
+
+	private void recordRate(int slot, Metric metric, long delta, double elapsed, boolean first) {
+		record(slot, metric, first || elapsed <= 0 ? Double.NaN : delta / elapsed);
+	}
+}
@@ -29,9 +29,7 @@ import javax.xml.xpath.XPathFactory;
 
 import org.xml.sax.SAXException;
 
-import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
-import com.google.common.io.Files;
 
 /**
  * Represents a Maven Central artifact.
@@ -124,7 +122,6 @@ public record S7SMavenArtifact(String groupId, String artifactId, String version
 	 * @return Whether the given file matches the remote hash
 	 * @throws IOException
 	 */
-	@SuppressWarnings("deprecation")
 	public boolean checkHash(Path artifact) throws IOException {
 
 		if (!exists(artifact))
@@ -142,7 +139,7 @@ public record S7SMavenArtifact(String groupId, String artifactId, String version
 				.readAllBytes();
 
 		// Compare hash
-		return Arrays.equals(Files.asByteSource(artifact.toFile()).hash(Hashing.sha1()).asBytes(), hash);
+		return Arrays.equals(S7SFile.of(artifact).hash("SHA-1"), hash);
 	}
 
 	/**
@@ -0,0 +1,139 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SProcess.ProcessException;
+
+/**
+ * A chain of processes where each stage's stdout is connected directly to the
+ * next stage's stdin by an operating system pipe, so data between stages never
+ * passes through the JVM.
+ *
+ * @param stages The processes in order
+ */
+public record S7SPipeline(List<S7SProcess> stages) {
+
+	private static final Logger log = LoggerFactory.getLogger(S7SPipeline.class);
+
+	/**
+	 * Start a new pipeline.
+	 *
+	 * @param cmdLines The executable and arguments of each stage in order
+	 * @return A new {@link S7SPipeline}
+	 */
+	public static S7SPipeline exec(String[]... cmdLines) {
+		if (cmdLines.length == 0)
+			throw new IllegalArgumentException("Empty pipeline");
+
+		if (log.isTraceEnabled())
+			log.trace("Starting new pipeline: \"{}\"",
+					String.join(" | ", Arrays.stream(cmdLines).map(cmdLine -> String.join(" ", cmdLine)).toList()));
+
+		try {
+			return new S7SPipeline(ProcessBuilder
+					.startPipeline(Arrays.stream(cmdLines).map(ProcessBuilder::new).toList()).stream()
+					.map(S7SProcess::new).toList());
+		} catch (IOException e) {
+			throw new ProcessException(e);
+		}
+	}
+
+	public S7SPipeline {
+		stages = List.copyOf(stages);
+	}
+
+	/**
+	 * @param index The stage index
+	 * @return The stage at the given index
+	 */
+	public S7SProcess stage(int index) {
+		return stages.get(index);
+	}
+
+	/**
+	 * Write to the first stage's stdin.
+	 *
+	 * @param input The desired input
+	 * @return {@code this}
+	 */
+	public S7SPipeline stdin(String input) {
+		stages.get(0).stdin(input);
+		return this;
+	}
+
+	/**
+	 * Close the first stage's stdin so it sees the end of its input.
+	 *
+	 * @return {@code this}
+	 */
+	public S7SPipeline closeStdin() {
+		try {
+			stages.get(0).process().getOutputStream().close();
+		} catch (IOException e) {
+			throw new ProcessException(e);
+		}
+		return this;
+	}
+
+	public Stream<String> stdoutLines() {
+		return last().stdoutLines();
+	}
+
+	/**
+	 * @return The last stage's full stdout
+	 */
+	public String stdout() {
+		return last().stdout();
+	}
+
+	/**
+	 * @return The captured stdout of the last stage
+	 */
+	public ProcessOutput out() {
+		return last().out();
+	}
+
+	/**
+	 * @param index The stage index
+	 * @return The given stage's full stderr
+	 */
+	public String stderr(int index) {
+		return stages.get(index).stderr();
+	}
+
+	/**
+	 * Wait for every stage to complete.
+	 *
+	 * @return The last stage's exit code
+	 */
+	public int complete() {
+		return exits()[stages.size() - 1];
+	}
+
+	/**
+	 * Wait for every stage to complete.
+	 *
+	 * @return The exit code of each stage in order
+	 */
+	public int[] exits() {
+		return stages.stream().mapToInt(S7SProcess::complete).toArray();
+	}
+
+	private S7SProcess last() {
+		return stages.get(stages.size() - 1);
+	}
+}
@@ -8,45 +8,157 @@
 //============================================================================//
 package org.s7s.core.foundation;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ObjectArrays;
-import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Wrapper for {@link Process} that provides a simple interface without checked
- * exceptions.
+ * exceptions. The process's stdout and stderr are captured concurrently from
+ * the time it starts. The streams returned by {@link #process()} read from the
+ * captured output, so they don't compete with the capture.
+ * <p>
+ * This record previously had the process as its only component. The
+ * {@link #S7SProcess(Process)} constructor is kept, but the canonical
+ * constructor, {@link #equals(Object)}, and {@link CompletionHandler} changed.
+ *
+ * @param process The process whose stdout and stderr read from the captured
+ *                output
+ * @param out     The captured stdout
+ * @param err     The captured stderr
  */
-public record S7SProcess(Process process) {
+public record S7SProcess(Process process, ProcessOutput out, ProcessOutput err) {
 
 	private static final Logger log = LoggerFactory.getLogger(S7SProcess.class);
 
+	/**
+	 * The number of bytes of each stream that are kept in memory before the rest
+	 * is spilled to a temporary file. It can be changed with the
+	 * "s7s.process.capture_limit" system property.
+	 */
+	public static final int DEFAULT_CAPTURE_LIMIT = S7SSystemProperty.of("s7s.process.capture_limit").asInt(1 << 20, 0);
+
+	/**
+	 * The number of bytes of each stream that are spilled to a temporary file
+	 * before the rest is discarded. It can be changed with the
+	 * "s7s.process.spill_limit" system property.
+	 */
+	public static final int DEFAULT_SPILL_LIMIT = S7SSystemProperty.of("s7s.process.spill_limit").asInt(1 << 30, 0);
+
+	/**
+	 * The size of each stream's ring buffer for processes started with
+	 * {@link #stream(String...)}.
+	 */
+	public static final int STREAM_BUFFER = 1 << 16;
+
+	/**
+	 * A shared pool that runs completion handlers. Exits are detected by
+	 * {@link Process#onExit()}, so no thread is dedicated to a single process.
+	 */
+	private static class LazyHandlerExecutor {
+		private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+				Math.max(2, Runtime.getRuntime().availableProcessors()),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-process-handler-%d").build());
+	}
+
+	/**
+	 * Receives a finished process's exit code and output. The output used to be
+	 * passed as strings; use {@link ProcessOutput#text()} where a string is still
+	 * needed.
+	 */
 	public static interface CompletionHandler {
-		public void complete(int exit, String stdout, String stderr);
+		public void complete(int exit, ProcessOutput stdout, ProcessOutput stderr);
+	}
+
+	/**
+	 * A snapshot of the resources used by a process. Values that couldn't be
+	 * determined are -1. Where /proc isn't available, only the total CPU time is
+	 * known and it's reported as user time.
+	 *
+	 * @param wallTime   The time since the process started or its lifetime in
+	 *                   nanoseconds
+	 * @param userTime   The CPU time spent in user mode in nanoseconds
+	 * @param systemTime The CPU time spent in kernel mode in nanoseconds
+	 * @param peakRss    The peak resident set size in bytes
+	 * @param readBytes  The number of bytes read from storage
+	 * @param writeBytes The number of bytes written to storage
+	 */
+	public static record ResourceUsage(long wallTime, long userTime, long systemTime, long peakRss, long readBytes,
+			long writeBytes) {
+	}
+
+	/**
+	 * The resources used by every finished process with the same executable name.
+	 *
+	 * @param processes The number of finished processes
+	 * @param peakRss   The largest peak resident set size of any process
+	 */
+	public static record CommandUsage(String command, long processes, long wallTime, long userTime, long systemTime,
+			long peakRss, long readBytes, long writeBytes) {
+	}
+
+	/**
+	 * The result of a command run in a shell session.
+	 */
+	public static record ShellResult(int exit, String stdout, String stderr) {
 	}
 
 	public static class ProcessException extends RuntimeException {
 
-		private ProcessException(InterruptedException e) {
+		ProcessException(InterruptedException e) {
 			super(e);
 		}
 
-		private ProcessException(IOException e) {
+		ProcessException(IOException e) {
 			super(e);
 		}
 
-		private ProcessException(String message) {
+		ProcessException(String message) {
 			super(message);
 		}
 	}
 
+	public S7SProcess {
+		if (!(process instanceof CapturedProcess))
+			process = new CapturedProcess(process, out, err);
+
+		ProcessAccounting.track(process);
+	}
+
+	/**
+	 * Wrap a process and start capturing its output.
+	 *
+	 * @param process The process
+	 */
+	public S7SProcess(Process process) {
+		this(process, DEFAULT_CAPTURE_LIMIT);
+	}
+
+	/**
+	 * Wrap a process and start capturing its output.
+	 *
+	 * @param process The process
+	 * @param limit   The number of bytes of each stream to keep in memory
+	 */
+	public S7SProcess(Process process, int limit) {
+		this(process, ProcessPump.capture(process, process.getInputStream(), limit, true),
+				ProcessPump.capture(process, process.getErrorStream(), limit, true));
+	}
+
 	/**
 	 * Start a new process.
 	 *
@@ -76,6 +188,87 @@ public record S7SProcess(Process process) {
 		}
 	}
 
+	/**
+	 * Start a new process whose output is followed rather than captured. Each
+	 * stream is a ring buffer of {@link #STREAM_BUFFER} bytes that can be read
+	 * once, and the process blocks when its output isn't read fast enough. Use
+	 * this for long-running processes with unbounded output.
+	 *
+	 * @param cmdLine The process executable and arguments
+	 * @return A new {@link S7SProcess}
+	 */
+	public static S7SProcess stream(String... cmdLine) {
+
+		if (log.isTraceEnabled())
+			log.trace("Starting new streaming process: \"{}\"", String.join(" ", cmdLine));
+
+		try {
+			var process = Runtime.getRuntime().exec(cmdLine);
+			return new S7SProcess(process, ProcessPump.capture(process, process.getInputStream(), STREAM_BUFFER, false),
+					ProcessPump.capture(process, process.getErrorStream(), STREAM_BUFFER, false));
+		} catch (IOException e) {
+			throw new ProcessException(e);
+		}
+	}
+
+	/**
+	 * Get the resources used by every process started through this class that
+	 * has finished, grouped by executable name. Because a process's accounting
+	 * disappears when it's reaped, each process's CPU time is read from the growth
+	 * of this process's reaped children counters when it exits. Processes that
+	 * finish at the same time may have their CPU time attributed to each other,
+	 * and the peak RSS and I/O are only known for processes that were sampled
+	 * with {@link #usage()} or the "s7s.process.accounting_interval" property.
+	 *
+	 * @return The totals keyed by executable name
+	 */
+	public static Map<String, CommandUsage> accounting() {
+		return ProcessAccounting.totals();
+	}
+
+	/**
+	 * Run a short command in a pooled shell session instead of starting a new
+	 * process for it. This is much cheaper for small commands, but the command's
+	 * output is buffered in memory and it runs with the shell's environment and
+	 * working directory.
+	 *
+	 * @param cmdLine The command executable and arguments
+	 * @return The command's result
+	 */
+	public static ShellResult shell(String... cmdLine) {
+		if (cmdLine.length == 0)
+			throw new IllegalArgumentException("Empty command");
+
+		if (log.isTraceEnabled())
+			log.trace("Running command in shell session: \"{}\"", String.join(" ", cmdLine));
+
+		return ShellPool.getDefault().run(cmdLine);
+	}
+
+	/**
+	 * Run a command whose output rarely changes, or return its output from a
+	 * previous run if that run completed within the given time to live. Concurrent
+	 * requests for the same command share a single process. Failures and non-zero
+	 * exits aren't cached.
+	 *
+	 * @param ttl     How long the command's output remains valid
+	 * @param cmdLine The command executable and arguments
+	 * @return The command's stdout
+	 */
+	public static String probe(Duration ttl, String... cmdLine) {
+		return ProbeCache.getDefault().get(ttl, cmdLine);
+	}
+
+	/**
+	 * Start a pipeline of processes connected stdout to stdin.
+	 *
+	 * @param cmdLines The executable and arguments of each stage in order
+	 * @return A new {@link S7SPipeline}
+	 */
+	public static S7SPipeline pipeline(String[]... cmdLines) {
+		return S7SPipeline.exec(cmdLines);
+	}
+
 	/**
 	 * Start a new process as a superuser. If the current user is not the superuser,
 	 * then the platform specific "run as" mechanism will be invoked (not
@@ -105,7 +298,7 @@ public record S7SProcess(Process process) {
 		case WINDOWS:
 
 			// Check if we're admin
-			if (exec("net", "user", System.getProperty("user.name")).stdout().contains("*Administrators")) {
+			if (probe(Duration.ofMinutes(1), "net", "user", System.getProperty("user.name")).contains("*Administrators")) {
 				return exec(cmdLine);
 			}
 
@@ -122,12 +315,38 @@ public record S7SProcess(Process process) {
 		throw new ProcessException("Failed to find 'run as' mechanism");
 	}
 
+	/**
+	 * @return The resources used by the process so far, or all of the resources
+	 *         it used once it has finished
+	 */
+	public ResourceUsage usage() {
+		return ProcessAccounting.usage(process);
+	}
+
 	public Stream<String> stdoutLines() {
-		return new BufferedReader(new InputStreamReader(process.getInputStream())).lines();
+		return out.lines();
 	}
 
 	public Stream<String> stderrLines() {
-		return new BufferedReader(new InputStreamReader(process.getErrorStream())).lines();
+		return err.lines();
+	}
+
+	/**
+	 * @return A publisher of stdout lines that reads only as fast as they're
+	 *         requested
+	 * @see ProcessOutput#linePublisher()
+	 */
+	public Flow.Publisher<String> stdoutPublisher() {
+		return out.linePublisher();
+	}
+
+	/**
+	 * @return A publisher of stderr lines that reads only as fast as they're
+	 *         requested
+	 * @see ProcessOutput#linePublisher()
+	 */
+	public Flow.Publisher<String> stderrPublisher() {
+		return err.linePublisher();
 	}
 
 	/**
@@ -150,35 +369,79 @@ public record S7SProcess(Process process) {
 	 * @return The process's full stdout
 	 */
 	public String stdout() {
-		try {
-			return CharStreams.toString(new InputStreamReader(process.getInputStream()));
-		} catch (IOException e) {
-			throw new ProcessException(e);
-		}
+		return out.text();
 	}
 
 	/**
 	 * @return The process's full stderr
 	 */
 	public String stderr() {
+		return err.text();
+	}
+
+	/**
+	 * Wait for the process to complete.
+	 *
+	 * @return The process exit code
+	 */
+	public int complete() {
 		try {
-			return CharStreams.toString(new InputStreamReader(process.getErrorStream()));
-		} catch (IOException e) {
+			int exit = process.waitFor();
+
+			// Finish the output now rather than after onExit() runs on the common pool
+			ProcessPump.exited();
+			return exit;
+		} catch (InterruptedException e) {
 			throw new ProcessException(e);
 		}
 	}
 
 	/**
-	 * Wait for the process to complete.
+	 * Wait for the process to complete or kill it and all of its descendants if it
+	 * doesn't complete in time.
 	 *
+	 * @param timeout The maximum time to wait
 	 * @return The process exit code
+	 * @throws ProcessException If the process timed out
 	 */
-	public int complete() {
+	public int complete(Duration timeout) {
 		try {
-			return process.waitFor();
+			if (process.waitFor(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+				ProcessPump.exited();
+				return process.exitValue();
+			}
 		} catch (InterruptedException e) {
 			throw new ProcessException(e);
 		}
+
+		kill();
+		throw new ProcessException("Process timed out: " + process.pid());
+	}
+
+	/**
+	 * Get a future for the process's exit code that fails with a
+	 * {@link TimeoutException} after the given timeout. The process and all of its
+	 * descendants are killed when the timeout expires.
+	 *
+	 * @param timeout The process's deadline relative to now
+	 * @return A future for the process exit code
+	 */
+	public CompletableFuture<Integer> onExit(Duration timeout) {
+		return process.onExit().thenApply(Process::exitValue).orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS)
+				.whenComplete((exit, e) -> {
+					if (e instanceof TimeoutException || e != null && e.getCause() instanceof TimeoutException)
+						kill();
+				});
+	}
+
+	/**
+	 * Forcibly kill the process and all of its descendants.
+	 */
+	public void kill() {
+		// Find descendants before they're orphaned
+		var descendants = process.descendants().toList();
+		process.destroyForcibly();
+		descendants.forEach(ProcessHandle::destroyForcibly);
 	}
 
 	/**
@@ -188,19 +451,23 @@ public record S7SProcess(Process process) {
 	 */
 	public void complete(CompletionHandler handler) {
 		int exit = complete();
-		handler.complete(exit, stdout(), stderr());
+		handler.complete(exit, out.await(), err.await());
 	}
 
 	/**
-	 * Run the given handler when the process completes.
+	 * Run the given handler when the process completes. Handlers run on a shared
+	 * pool whose size is independent of the number of processes.
 	 *
 	 * @param handler Handler for the stdout, stderr, and exit code
+	 * @return A future that completes after the handler has run
 	 */
-	public void onComplete(CompletionHandler handler) {
-		// Simple, but not scalable
-		new Thread(() -> {
+	public CompletableFuture<Void> onComplete(CompletionHandler handler) {
+		return process.onExit().thenAcceptAsync(p -> {
 			complete(handler);
-		}).start();
+		}, LazyHandlerExecutor.INSTANCE).whenComplete((result, e) -> {
+			if (e != null)
+				log.error("Completion handler failed", e);
+		});
 	}
 
 }
@@ -0,0 +1,198 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SProcess.ProcessException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs batches of commands with a limit on how many processes can be running
+ * at once and a deadline for each process. No thread waits on a running
+ * process, so a wedged command only holds its slot until its deadline.
+ */
+public final class S7SProcessBatch {
+
+	private static final Logger log = LoggerFactory.getLogger(S7SProcessBatch.class);
+
+	/**
+	 * The outcome of one command in a batch.
+	 *
+	 * @param index     The command's position in the batch
+	 * @param process   The process or {@code null} if it failed to start
+	 * @param exit      The exit code or -1 if the process failed to start
+	 * @param timedOut  Whether the process was killed by its deadline
+	 * @param queueTime The time in nanoseconds the command waited for a slot
+	 * @param runTime   The time in nanoseconds the process ran
+	 */
+	public static record Result(int index, List<String> cmdLine, S7SProcess process, int exit, boolean timedOut,
+			long queueTime, long runTime) {
+	}
+
+	/**
+	 * Totals for every command run by a batch executor.
+	 *
+	 * @param queueTime    The total time in nanoseconds commands waited for a slot
+	 * @param maxQueueTime The longest time in nanoseconds a command waited
+	 * @param runTime      The total time in nanoseconds processes ran
+	 * @param maxRunTime   The longest time in nanoseconds a process ran
+	 */
+	public static record Metrics(long completed, long timedOut, long queueTime, long maxQueueTime, long runTime,
+			long maxRunTime) {
+	}
+
+	/**
+	 * @param parallelism The maximum number of processes running at once
+	 * @param timeout     The deadline of each process relative to when it starts
+	 * @return A new batch executor
+	 */
+	public static S7SProcessBatch of(int parallelism, Duration timeout) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+
+		return new S7SProcessBatch(parallelism, timeout);
+	}
+
+	private final Semaphore permits;
+
+	private final Duration timeout;
+
+	private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Starts processes so that process creation doesn't happen on the JDK's
+	 * reaper threads.
+	 */
+	private final ExecutorService launcher = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-process-batch-%d").build());
+
+	private final LongAdder completed = new LongAdder();
+
+	private final LongAdder timedOut = new LongAdder();
+
+	private final LongAdder queueTime = new LongAdder();
+
+	private final LongAccumulator maxQueueTime = new LongAccumulator(Math::max, 0);
+
+	private final LongAdder runTime = new LongAdder();
+
+	private final LongAccumulator maxRunTime = new LongAccumulator(Math::max, 0);
+
+	private S7SProcessBatch(int parallelism, Duration timeout) {
+		this.permits = new Semaphore(parallelism);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Run a batch of commands.
+	 *
+	 * @param cmdLines The executable and arguments of each command
+	 * @return The results in the order that the commands finish
+	 */
+	public Stream<Result> run(List<String[]> cmdLines) {
+		var results = new LinkedBlockingQueue<Result>();
+
+		for (int i = 0; i < cmdLines.size(); i++) {
+			int index = i;
+			var cmdLine = List.of(cmdLines.get(i));
+			long submitted = System.nanoTime();
+
+			waiting.add(() -> launcher.execute(() -> start(index, cmdLine, submitted, results)));
+		}
+		launcher.execute(this::drain);
+
+		return Stream.generate(() -> take(results)).limit(cmdLines.size());
+	}
+
+	/**
+	 * @return The totals for every command run so far
+	 */
+	public Metrics metrics() {
+		return new Metrics(completed.sum(), timedOut.sum(), queueTime.sum(), maxQueueTime.get(), runTime.sum(),
+				maxRunTime.get());
+	}
+
+	private void start(int index, List<String> cmdLine, long submitted, BlockingQueue<Result> results) {
+		long started = System.nanoTime();
+
+		S7SProcess process;
+		try {
+			process = S7SProcess.exec(cmdLine.toArray(String[]::new));
+		} catch (RuntimeException e) {
+			// Including invalid command lines, which must still release their slot
+			log.debug("Failed to start process", e);
+			finish(new Result(index, cmdLine, null, -1, false, started - submitted, 0), results);
+			return;
+		}
+
+		process.onExit(timeout).thenApply(exit -> false)
+				// Wait for the process to actually exit, which takes a moment if it was killed
+				.exceptionallyCompose(e -> process.process().onExit().thenApply(p -> isTimeout(e)))
+				.thenAcceptAsync(killed -> {
+					finish(new Result(index, cmdLine, process, process.process().exitValue(), killed,
+							started - submitted, System.nanoTime() - started), results);
+				}, launcher);
+	}
+
+	private void finish(Result result, BlockingQueue<Result> results) {
+		completed.increment();
+		if (result.timedOut())
+			timedOut.increment();
+		queueTime.add(result.queueTime());
+		maxQueueTime.accumulate(result.queueTime());
+		runTime.add(result.runTime());
+		maxRunTime.accumulate(result.runTime());
+
+		results.add(result);
+		permits.release();
+		drain();
+	}
+
+	private void drain() {
+		while (!waiting.isEmpty() && permits.tryAcquire()) {
+			var next = waiting.poll();
+			if (next == null) {
+				permits.release();
+				continue;
+			}
+			next.run();
+		}
+	}
+
+	private static boolean isTimeout(Throwable e) {
+		if (e instanceof CompletionException)
+			e = e.getCause();
+		return e instanceof TimeoutException;
+	}
+
+	private static Result take(BlockingQueue<Result> results) {
+		try {
+			return results.take();
+		} catch (InterruptedException e) {
+			throw new ProcessException(e);
+		}
+	}
+}
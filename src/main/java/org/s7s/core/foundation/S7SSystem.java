@@ -29,11 +29,28 @@ import static org.s7s.core.foundation.Platform.OsType.SOLARIS;
 import static org.s7s.core.foundation.Platform.OsType.UNKNOWN_OS;
 import static org.s7s.core.foundation.Platform.OsType.WINDOWS;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.s7s.core.foundation.Platform.ArchType;
 import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.Platform.PlatformFingerprint;
 
 public final class S7SSystem {
 
@@ -41,71 +58,719 @@ public final class S7SSystem {
 
 	public static final OsType OS_TYPE = queryOsType();
 
-	public static final ArchType ARCH_TYPE = queryArchType();
-
 	static {
 		log.trace("Determined OS type: {}", OS_TYPE);
-		log.trace("Determined architecture type: {}", ARCH_TYPE);
 	}
 
 	/**
+	 * The system's architecture as far as it can be determined without starting
+	 * a process, or {@link ArchType#UNKNOWN_ARCH}.
+	 *
+	 * @deprecated Use {@link #archType()} which is determined on first use and
+	 *             falls back to uname or wmic
+	 */
+	@Deprecated
+	public static final ArchType ARCH_TYPE = detectArchType();
+
+	/**
+	 * The processor, memory, and cache layout of the system. Cache sizes that
+	 * couldn't be determined are -1.
+	 *
+	 * @param logicalCores         The number of online hardware threads
+	 * @param physicalCores        The number of distinct cores
+	 * @param packages             The number of processor sockets
+	 * @param numaNodes            The number of online NUMA nodes
+	 * @param l1dCache             The size of a core's L1 data cache in bytes
+	 * @param l1iCache             The size of a core's L1 instruction cache in
+	 *                             bytes
+	 * @param l2Cache              The size of the L2 cache in bytes
+	 * @param l3Cache              The size of the L3 cache in bytes
+	 * @param cacheLineSize        The size of a cache line in bytes
+	 * @param pageSize             The size of a memory page in bytes
+	 * @param hugePageSize         The size of a huge page in bytes or 0 if none
+	 *                             are reserved
+	 * @param transparentHugePages Whether transparent huge pages are enabled
+	 *                             always or on request
+	 */
+	public static record Topology(int logicalCores, int physicalCores, int packages, int numaNodes, long l1dCache,
+			long l1iCache, long l2Cache, long l3Cache, int cacheLineSize, int pageSize, long hugePageSize,
+			boolean transparentHugePages) {
+
+		/**
+		 * Read the topology from sysfs and procfs under the given root.
+		 *
+		 * @param root The filesystem root which is only different in tests
+		 * @return The topology
+		 */
+		static Topology read(Path root) {
+			var cpu = root.resolve("sys/devices/system/cpu");
+
+			var online = parseCpuList(readString(cpu.resolve("online")).orElse(""));
+			int logical = online.isEmpty() ? Runtime.getRuntime().availableProcessors() : online.cardinality();
+
+			var cores = new HashSet<Long>();
+			var packages = new HashSet<Long>();
+			for (int i = online.nextSetBit(0); i >= 0; i = online.nextSetBit(i + 1)) {
+				var topology = cpu.resolve("cpu" + i + "/topology");
+				long pkg = readLong(topology.resolve("physical_package_id")).orElse(0);
+				long core = readLong(topology.resolve("core_id")).orElse(i);
+				packages.add(pkg);
+				cores.add(pkg << 32 | core);
+			}
+
+			var nodes = parseCpuList(readString(root.resolve("sys/devices/system/node/online")).orElse(""));
+
+			long l1d = -1, l1i = -1, l2 = -1, l3 = -1;
+			int line = 64;
+			var cache = cpu.resolve("cpu" + Math.max(0, online.nextSetBit(0)) + "/cache");
+			try (var indexes = Files.newDirectoryStream(cache, "index*")) {
+				for (var index : indexes) {
+					long size = parseSize(readString(index.resolve("size")).orElse(""));
+					var type = readString(index.resolve("type")).orElse("");
+					switch ((int) readLong(index.resolve("level")).orElse(0)) {
+					case 1:
+						if (type.equals("Instruction"))
+							l1i = size;
+						else
+							l1d = size;
+						break;
+					case 2:
+						l2 = size;
+						break;
+					case 3:
+						l3 = size;
+						break;
+					default:
+						break;
+					}
+					line = (int) readLong(index.resolve("coherency_line_size")).orElse(line);
+				}
+			} catch (IOException e) {
+				log.trace("Failed to read cache topology", e);
+			}
+
+			var meminfo = readString(root.resolve("proc/meminfo")).orElse("");
+			long hugePageSize = 0;
+			if (parseSize(field(meminfo, "HugePages_Total:").orElse("0")) > 0)
+				hugePageSize = parseSize(field(meminfo, "Hugepagesize:").orElse("0"));
+
+			// The auxiliary vector is tiny compared to smaps which lists every mapping
+			int pageSize = 0;
+			try {
+				pageSize = (int) readAuxv(Files.readAllBytes(root.resolve("proc/self/auxv")), AT_PAGESZ);
+			} catch (IOException e) {
+				// Fall back to smaps
+			}
+			if (pageSize <= 0)
+				pageSize = (int) parseSize(readString(root.resolve("proc/self/smaps"))
+						.flatMap(smaps -> field(smaps, "KernelPageSize:")).orElse("4 kB"));
+			boolean thp = readString(root.resolve("sys/kernel/mm/transparent_hugepage/enabled"))
+					.map(enabled -> enabled.contains("[always]") || enabled.contains("[madvise]")).orElse(false);
+
+			return new Topology(logical, cores.isEmpty() ? logical : cores.size(), Math.max(1, packages.size()),
+					Math.max(1, nodes.cardinality()), l1d, l1i, l2, l3, line, pageSize, hugePageSize, thp);
+		}
+	}
+
+	private static class LazyFingerprint {
+		private static final FingerprintCache.Snapshot INSTANCE = FingerprintCache.load(fingerprintCache(),
+				Paths.get("/"));
+
+		static {
+			log.trace("Loaded platform fingerprint: {}", INSTANCE.topology());
+		}
+	}
+
+	/**
+	 * @return The fingerprint's cache file or {@code null} if the
+	 *         "s7s.platform.cache" property disables it
+	 */
+	static Path fingerprintCache() {
+		var path = S7SSystemProperty.of("s7s.platform.cache").value();
+		if (path.isEmpty())
+			return Paths.get(System.getProperty("user.home"), ".cache", "s7s", "platform.bin");
+		return path.get().isEmpty() ? null : Paths.get(path.get());
+	}
+
+	/**
+	 * Get the facts about the platform that don't change until it reboots. The
+	 * fingerprint is cached in a small file, so it's only detected once per boot
+	 * and later launches only read the file. The file is set with the
+	 * "s7s.platform.cache" property, which disables the cache if it's empty.
+	 *
+	 * @return The platform's {@link PlatformFingerprint}
+	 */
+	public static PlatformFingerprint fingerprint() {
+		return LazyFingerprint.INSTANCE.fingerprint();
+	}
+
+	private static class LazyTopology {
+		private static final Topology INSTANCE = LazyFingerprint.INSTANCE.topology();
+
+		static {
+			log.trace("Determined topology: {}", INSTANCE);
+		}
+	}
+
+	/**
+	 * Get the system's hardware topology. On systems without sysfs, the core
+	 * counts come from {@link Runtime#availableProcessors()} and the cache sizes
+	 * are unknown. The topology is part of the cached {@link #fingerprint()}.
+	 *
+	 * @return The system's {@link Topology}
+	 */
+	public static Topology topology() {
+		return LazyTopology.INSTANCE;
+	}
+
+	/**
+	 * The limits that the process's control groups place on it. Values that
+	 * aren't limited or couldn't be determined are -1.
+	 *
+	 * @param cgroupVersion    The cgroup version or 0 if the process isn't in a
+	 *                         cgroup
+	 * @param cpuQuota         The CPU time in microseconds that the group may use
+	 *                         in each period
+	 * @param cpuPeriod        The length of a quota period in microseconds
+	 * @param cpusetCpus       The number of CPUs that the group may run on
+	 * @param memoryLimit      The group's memory limit in bytes
+	 * @param memoryUsage      The group's current memory usage in bytes
+	 * @param throttledPeriods The number of periods in which the group exhausted
+	 *                         its quota
+	 * @param throttledTime    The total time in nanoseconds that the group was
+	 *                         throttled
+	 * @param cpuPressure      The percentage of the last 10 seconds that some
+	 *                         tasks waited for a CPU
+	 * @param memoryPressure   The percentage of the last 10 seconds that some
+	 *                         tasks waited for memory
+	 * @param ioPressure       The percentage of the last 10 seconds that some
+	 *                         tasks waited for IO
+	 */
+	public static record ResourceLimits(int cgroupVersion, long cpuQuota, long cpuPeriod, int cpusetCpus,
+			long memoryLimit, long memoryUsage, long throttledPeriods, long throttledTime, double cpuPressure,
+			double memoryPressure, double ioPressure) {
+
+		/**
+		 * @return The number of CPUs that the process can keep busy, which may be
+		 *         fractional when the group has a CPU quota
+		 */
+		public double effectiveCpus() {
+			double cpus = cpusetCpus > 0 ? cpusetCpus : Runtime.getRuntime().availableProcessors();
+			if (cpuQuota > 0 && cpuPeriod > 0)
+				cpus = Math.min(cpus, (double) cpuQuota / cpuPeriod);
+			return cpus;
+		}
+	}
+
+	private static class LazyCGroup {
+		private static final CGroup INSTANCE = CGroup.detect(Paths.get("/"));
+
+		static {
+			log.trace("Determined cgroup version: {}", INSTANCE.version);
+		}
+	}
+
+	/**
+	 * Read the process's current cgroup limits and pressure. The limits can change
+	 * while the process runs, so they are read again on every call. Each call
+	 * reads a few small files and doesn't start a process.
+	 *
+	 * @return The process's {@link ResourceLimits}
+	 */
+	public static ResourceLimits limits() {
+		return LazyCGroup.INSTANCE.read();
+	}
+
+	private static class LazySampler {
+		private static final S7SHostSampler INSTANCE = S7SHostSampler
+				.of(S7SSystemProperty.of("s7s.host.history").asInt(300, 1))
+				.start(Duration.ofSeconds(1)).share();
+	}
+
+	/**
+	 * Get the host metrics sampler which samples once per second in the
+	 * background from the first time it's requested. It's shared, so closing it
+	 * has no effect.
+	 *
+	 * @return The shared {@link S7SHostSampler}
+	 */
+	public static S7SHostSampler sampler() {
+		return LazySampler.INSTANCE;
+	}
+
+	private static class LazyArchType {
+		private static final ArchType INSTANCE = ARCH_TYPE != UNKNOWN_ARCH ? ARCH_TYPE : queryArchType();
+
+		static {
+			log.trace("Determined architecture type: {}", INSTANCE);
+		}
+	}
+
+	/**
+	 * @return The system's {@link ArchType}
+	 */
+	public static ArchType archType() {
+		return LazyArchType.INSTANCE;
+	}
+
+	/**
+	 * Determine the system's architecture. The kernel's view is preferred because
+	 * "os.arch" describes the JVM which may be 32-bit on a 64-bit system. A process
+	 * is only started if nothing else works.
+	 *
 	 * @return The system's {@link ArchType}
 	 */
-	private static ArchType queryArchType() {
+	static ArchType queryArchType() {
+		var arch = detectArchType();
+		if (arch != UNKNOWN_ARCH)
+			return arch;
+
+		// Start a process as a last resort
+		if (OS_TYPE == WINDOWS) {
+			return parseArchType(S7SProcess.probe(Duration.ofDays(1), "wmic", "computersystem", "get", "systemtype"));
+		} else {
+			return parseArchType(S7SProcess.probe(Duration.ofDays(1), "uname", "-m"));
+		}
+	}
+
+	/**
+	 * Determine the system's architecture without starting a process.
+	 *
+	 * @return The system's {@link ArchType} or {@link ArchType#UNKNOWN_ARCH}
+	 */
+	private static ArchType detectArchType() {
+		ArchType arch;
+
+		switch (OS_TYPE) {
+		case LINUX:
+			try {
+				arch = parseArchType(Files.readString(Paths.get("/proc/sys/kernel/arch")));
+				if (arch != UNKNOWN_ARCH)
+					return arch;
+			} catch (IOException e) {
+				log.trace("Failed to read /proc/sys/kernel/arch", e);
+			}
+			break;
+		case WINDOWS:
+			// Set for 32-bit processes on 64-bit Windows
+			var processor = System.getenv("PROCESSOR_ARCHITEW6432");
+			if (processor == null)
+				processor = System.getenv("PROCESSOR_ARCHITECTURE");
+			if (processor != null) {
+				arch = parseArchType(processor);
+				if (arch != UNKNOWN_ARCH)
+					return arch;
+			}
+			break;
+		default:
+			break;
+		}
 
-		// Try uname first because many systems have it
-		String uname = S7SProcess.exec("uname", "-m").stdout().toLowerCase();
+		arch = parseArchType(System.getProperty("os.arch", ""));
+		if (arch != UNKNOWN_ARCH)
+			return arch;
 
-		if (!uname.isBlank()) {
-			log.trace("Parsing uname: '{}'", uname);
+		return readElfArchType(Paths.get("/proc/self/exe"));
+	}
 
-			if (uname.contains("x86_64") || uname.contains("ia64"))
+	/**
+	 * @param name An architecture name from uname, os.arch, or Windows
+	 * @return The corresponding {@link ArchType}
+	 */
+	static ArchType parseArchType(String name) {
+		name = name.toLowerCase().trim();
+
+		if (!name.isBlank()) {
+			log.trace("Parsing architecture: '{}'", name);
+
+			if (name.contains("x86_64") || name.contains("amd64") || name.contains("x64") || name.contains("ia64"))
 				return X86_64;
 
-			if (uname.contains("i686") || uname.contains("i386"))
+			if (name.contains("i686") || name.contains("i586") || name.contains("i386") || name.contains("x86"))
 				return X86;
 
-			if (uname.contains("armv7") || uname.contains("armv6"))
-				return ARM;
-
-			if (uname.contains("aarch64") || uname.contains("armv8"))
+			if (name.contains("aarch64") || name.contains("arm64") || name.contains("armv8"))
 				return AARCH64;
 
-			if (uname.contains("ppc64"))
+			if (name.contains("arm"))
+				return ARM;
+
+			if (name.contains("ppc64"))
 				return POWERPC64;
 
-			if (uname.contains("ppc"))
+			if (name.contains("ppc"))
 				return POWERPC;
 
-			if (uname.contains("mips64"))
+			if (name.contains("mips64"))
 				return MIPS64;
 
-			if (uname.contains("mips"))
+			if (name.contains("mips"))
 				return MIPS;
 
-			if (uname.contains("s390"))
+			if (name.contains("s390"))
 				return S390X;
 
-			if (uname.contains("sparc"))
+			if (name.contains("sparc"))
 				return SPARC64;
 		}
 
-		// Also try WMI on windows
-		if (OS_TYPE == WINDOWS) {
-			String wmic = S7SProcess.exec("wmic", "computersystem", "get", "systemtype").stdout().toLowerCase();
+		return UNKNOWN_ARCH;
+	}
 
-			if (!wmic.isBlank()) {
-				log.trace("Parsing wmic: '{}'", wmic);
+	/**
+	 * Determine an executable's architecture from the machine field of its ELF
+	 * header.
+	 *
+	 * @param file The executable
+	 * @return The executable's {@link ArchType}
+	 */
+	static ArchType readElfArchType(Path file) {
+		var header = new byte[20];
+		try (var in = Files.newInputStream(file)) {
+			if (in.readNBytes(header, 0, header.length) != header.length)
+				return UNKNOWN_ARCH;
+		} catch (IOException | RuntimeException e) {
+			return UNKNOWN_ARCH;
+		}
+
+		if (header[0] != 0x7F || header[1] != 'E' || header[2] != 'L' || header[3] != 'F')
+			return UNKNOWN_ARCH;
+
+		boolean wide = header[4] == 2;
+		int machine = header[5] == 2 ? (header[18] & 0xFF) << 8 | header[19] & 0xFF
+				: (header[19] & 0xFF) << 8 | header[18] & 0xFF;
+
+		return switch (machine) {
+		case 3 -> X86;
+		case 62 -> X86_64;
+		case 40 -> ARM;
+		case 183 -> AARCH64;
+		case 20 -> POWERPC;
+		case 21 -> POWERPC64;
+		case 8 -> wide ? MIPS64 : MIPS;
+		case 22 -> S390X;
+		case 43 -> SPARC64;
+		default -> UNKNOWN_ARCH;
+		};
+	}
+
+	/**
+	 * Instruction set extensions that accelerated implementations can depend on.
+	 */
+	public static enum CpuFeature {
+
+		/**
+		 * SSE 4.2 string and CRC32C instructions on x86.
+		 */
+		SSE4_2,
+
+		/**
+		 * The population count instruction on x86.
+		 */
+		POPCNT,
+
+		/**
+		 * Bit manipulation instructions on x86.
+		 */
+		BMI2,
+
+		/**
+		 * 256-bit floating point vectors on x86.
+		 */
+		AVX,
+
+		/**
+		 * 256-bit integer vectors on x86.
+		 */
+		AVX2,
+
+		/**
+		 * The AVX-512 foundation on x86.
+		 */
+		AVX512F,
+
+		/**
+		 * AVX-512 byte and word instructions on x86.
+		 */
+		AVX512BW,
+
+		/**
+		 * AVX-512 instructions on 128 and 256-bit vectors on x86.
+		 */
+		AVX512VL,
+
+		/**
+		 * AES rounds on x86 (AES-NI) or ARM.
+		 */
+		AES,
+
+		/**
+		 * Carry-less multiplication on x86 (PCLMULQDQ) or ARM (PMULL).
+		 */
+		CLMUL,
+
+		/**
+		 * SHA-1 and SHA-256 rounds on x86 (SHA-NI) or ARM.
+		 */
+		SHA,
+
+		/**
+		 * CRC32 instructions on x86 (part of SSE 4.2) or ARM.
+		 */
+		CRC32,
+
+		/**
+		 * Advanced SIMD on ARM.
+		 */
+		NEON;
+	}
+
+	/**
+	 * AT_HWCAP in the auxiliary vector.
+	 */
+	private static final long AT_HWCAP = 16;
+
+	/**
+	 * AT_PAGESZ in the auxiliary vector.
+	 */
+	private static final long AT_PAGESZ = 6;
+
+	/**
+	 * AT_CLKTCK in the auxiliary vector.
+	 */
+	static final long AT_CLKTCK = 17;
+
+	private static class LazyCpuFeatures {
+		private static final long INSTANCE = LazyFingerprint.INSTANCE.cpuFeatures();
+
+		static {
+			log.trace("Determined CPU features: {}", featureSet(INSTANCE));
+		}
+	}
+
+	private static volatile boolean scalar = S7SSystemProperty.of("s7s.cpu.scalar").value()
+			.map(Boolean::parseBoolean).orElse(false);
+
+	/**
+	 * Get the processor's instruction set extensions. The features are detected
+	 * from /proc/cpuinfo or the auxiliary vector without starting a process and
+	 * are part of the cached {@link #fingerprint()}.
+	 *
+	 * @return The available features which are empty if the scalar path is forced
+	 */
+	public static Set<CpuFeature> cpuFeatures() {
+		return featureSet(cpuFeatureBits());
+	}
+
+	/**
+	 * Determine whether the processor supports an instruction set extension. This
+	 * is cheap enough to call before choosing an implementation.
+	 *
+	 * @param feature The feature
+	 * @return Whether the feature is available and the scalar path isn't forced
+	 */
+	public static boolean hasCpuFeature(CpuFeature feature) {
+		return (cpuFeatureBits() & 1L << feature.ordinal()) != 0;
+	}
+
+	/**
+	 * Force code that checks {@link #hasCpuFeature(CpuFeature)} to use its scalar
+	 * implementation, so that it can be tested on any machine. The initial value
+	 * comes from the "s7s.cpu.scalar" property.
+	 *
+	 * @param force Whether to hide every CPU feature
+	 */
+	public static void forceScalar(boolean force) {
+		scalar = force;
+	}
+
+	/**
+	 * @return The available features as bits indexed by {@link CpuFeature}
+	 */
+	public static long cpuFeatureBits() {
+		return scalar ? 0 : LazyCpuFeatures.INSTANCE;
+	}
+
+	private static Set<CpuFeature> featureSet(long bits) {
+		var features = EnumSet.noneOf(CpuFeature.class);
+		for (var feature : CpuFeature.values()) {
+			if ((bits & 1L << feature.ordinal()) != 0)
+				features.add(feature);
+		}
+		return Collections.unmodifiableSet(features);
+	}
 
-				if (wmic.contains("x64"))
-					return X86_64;
+	/**
+	 * Read the CPU features from the first processor in /proc/cpuinfo, falling
+	 * back to the auxiliary vector on ARM systems where cpuinfo doesn't list them.
+	 *
+	 * @param root The filesystem root which is only different in tests
+	 * @param arch The processor architecture
+	 * @return The features as bits indexed by {@link CpuFeature}
+	 */
+	static long readCpuFeatures(Path root, ArchType arch) {
+		try (var lines = Files.lines(root.resolve("proc/cpuinfo"))) {
+			var flags = lines.filter(line -> line.startsWith("flags") || line.startsWith("Features")).findFirst();
+			if (flags.isPresent())
+				return parseCpuFlags(flags.get().substring(flags.get().indexOf(':') + 1));
+		} catch (IOException | UncheckedIOException e) {
+			log.trace("Failed to read cpuinfo", e);
+		}
 
-				if (wmic.contains("x86"))
-					return X86;
+		if (arch == AARCH64) {
+			try {
+				return parseHwcap(readAuxv(Files.readAllBytes(root.resolve("proc/self/auxv")), AT_HWCAP));
+			} catch (IOException e) {
+				log.trace("Failed to read auxv", e);
 			}
 		}
+		return 0;
+	}
 
-		return UNKNOWN_ARCH;
+	/**
+	 * Parse the "flags" field on x86 or the "Features" field on ARM.
+	 */
+	static long parseCpuFlags(String flags) {
+		long bits = 0;
+		for (var flag : flags.trim().split("\\s+")) {
+			bits |= switch (flag) {
+			case "sse4_2" -> bit(CpuFeature.SSE4_2) | bit(CpuFeature.CRC32);
+			case "popcnt" -> bit(CpuFeature.POPCNT);
+			case "bmi2" -> bit(CpuFeature.BMI2);
+			case "avx" -> bit(CpuFeature.AVX);
+			case "avx2" -> bit(CpuFeature.AVX2);
+			case "avx512f" -> bit(CpuFeature.AVX512F);
+			case "avx512bw" -> bit(CpuFeature.AVX512BW);
+			case "avx512vl" -> bit(CpuFeature.AVX512VL);
+			case "aes" -> bit(CpuFeature.AES);
+			case "pclmulqdq", "pmull" -> bit(CpuFeature.CLMUL);
+			case "sha_ni", "sha2" -> bit(CpuFeature.SHA);
+			case "crc32" -> bit(CpuFeature.CRC32);
+			case "asimd", "neon" -> bit(CpuFeature.NEON);
+			default -> 0;
+			};
+		}
+		return bits;
+	}
+
+	/**
+	 * Parse AT_HWCAP on AArch64.
+	 */
+	static long parseHwcap(long hwcap) {
+		long bits = 0;
+		if ((hwcap & 1 << 1) != 0)
+			bits |= bit(CpuFeature.NEON);
+		if ((hwcap & 1 << 3) != 0)
+			bits |= bit(CpuFeature.AES);
+		if ((hwcap & 1 << 4) != 0)
+			bits |= bit(CpuFeature.CLMUL);
+		if ((hwcap & 1 << 6) != 0)
+			bits |= bit(CpuFeature.SHA);
+		if ((hwcap & 1 << 7) != 0)
+			bits |= bit(CpuFeature.CRC32);
+		return bits;
+	}
+
+	/**
+	 * Find an entry in a 64-bit auxiliary vector.
+	 *
+	 * @return The entry's value or 0 if it's missing
+	 */
+	static long readAuxv(byte[] auxv, long type) {
+		var buffer = ByteBuffer.wrap(auxv).order(ByteOrder.nativeOrder());
+		while (buffer.remaining() >= 16) {
+			long key = buffer.getLong();
+			long value = buffer.getLong();
+			if (key == type)
+				return value;
+			if (key == 0)
+				break;
+		}
+		return 0;
+	}
+
+	private static long bit(CpuFeature feature) {
+		return 1L << feature.ordinal();
+	}
+
+	/**
+	 * Parse a list of CPU or node ranges like "0-3,8,10-11".
+	 *
+	 * @param list The list
+	 * @return The listed indexes
+	 */
+	static BitSet parseCpuList(String list) {
+		var set = new BitSet();
+		for (var range : list.trim().split(",")) {
+			if (range.isEmpty())
+				continue;
+
+			int dash = range.indexOf('-');
+			try {
+				if (dash == -1)
+					set.set(Integer.parseInt(range.trim()));
+				else
+					set.set(Integer.parseInt(range.substring(0, dash).trim()),
+							Integer.parseInt(range.substring(dash + 1).trim()) + 1);
+			} catch (NumberFormatException e) {
+				log.trace("Invalid range: {}", range);
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Parse a size like "32K", "2048 kB", or "4096".
+	 *
+	 * @param size The size
+	 * @return The size in bytes or -1 if it's invalid
+	 */
+	static long parseSize(String size) {
+		size = size.trim();
+
+		int end = 0;
+		while (end < size.length() && Character.isDigit(size.charAt(end))) {
+			end++;
+		}
+		if (end == 0)
+			return -1;
+
+		long value = Long.parseLong(size.substring(0, end));
+		var unit = size.substring(end).trim().toUpperCase();
+		if (unit.startsWith("K"))
+			return value << 10;
+		if (unit.startsWith("M"))
+			return value << 20;
+		if (unit.startsWith("G"))
+			return value << 30;
+		return value;
+	}
+
+	/**
+	 * @return The rest of the line that starts with the given key
+	 */
+	static Optional<String> field(String content, String key) {
+		for (var line : content.split("\n")) {
+			if (line.startsWith(key))
+				return Optional.of(line.substring(key.length()).trim());
+		}
+		return Optional.empty();
+	}
+
+	static Optional<String> readString(Path file) {
+		try {
+			return Optional.of(Files.readString(file).trim());
+		} catch (IOException | RuntimeException e) {
+			return Optional.empty();
+		}
+	}
+
+	private static OptionalLong readLong(Path file) {
+		try {
+			return readString(file).map(value -> OptionalLong.of(Long.parseLong(value))).orElse(OptionalLong.empty());
+		} catch (NumberFormatException e) {
+			return OptionalLong.empty();
+		}
 	}
 
 	/**
@@ -29,4 +29,28 @@ public record S7SSystemProperty(String name, Optional<String> value) {
 	public static S7SSystemProperty of(String name) {
 		return new S7SSystemProperty(name, Optional.ofNullable(System.getProperty(name)));
 	}
+
+	/**
+	 * Parse the property as an integer. An invalid value is logged and ignored so
+	 * a bad setting can't prevent a class from initializing.
+	 *
+	 * @param defaultValue The value to use if the property is missing or invalid
+	 * @param minimum      The smallest valid value
+	 * @return The property's value or the default value
+	 */
+	public int asInt(int defaultValue, int minimum) {
+		if (value.isEmpty())
+			return defaultValue;
+
+		try {
+			int parsed = Integer.parseInt(value.get().trim());
+			if (parsed >= minimum)
+				return parsed;
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+
+		log.warn("Ignoring invalid system property: {} -> \"{}\" (using {})", name, value.get(), defaultValue);
+		return defaultValue;
+	}
 }
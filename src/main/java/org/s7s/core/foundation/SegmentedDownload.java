@@ -0,0 +1,425 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SFile.TransferListener;
+
+/**
+ * Downloads a resource over multiple concurrent HTTP range requests into a
+ * preallocated file. Progress is recorded in a sidecar state file so an
+ * interrupted transfer can be resumed by a later download of the same URL.
+ * Ranges are requested with If-Range, so the download starts over if the
+ * resource changes part way through.
+ * Resources that can't be fetched in ranges are copied over a single channel.
+ */
+final class SegmentedDownload {
+
+	private static final Logger log = LoggerFactory.getLogger(SegmentedDownload.class);
+
+	/**
+	 * The smallest range that's worth fetching over its own connection.
+	 */
+	static final long MIN_SEGMENT_SIZE = 1 << 20;
+
+	/**
+	 * The number of times a segment is attempted before the download fails.
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	private static final int STATE_MAGIC = 0x53375344;
+
+	/**
+	 * A contiguous byte range of the resource.
+	 */
+	static final class Segment {
+
+		final int index;
+
+		final long start;
+
+		final long end;
+
+		volatile long position;
+
+		Segment(int index, long start, long end, long position) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Indicates that the resource no longer matches the validator that the
+	 * download started with.
+	 */
+	private static final class ResourceChangedException extends IOException {
+
+		ResourceChangedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The result of probing the server with a one byte range request.
+	 */
+	private record Probe(HttpURLConnection connection, long length, String validator) {
+	}
+
+	private final URL url;
+
+	private final Path file;
+
+	private final Path state;
+
+	private final int segments;
+
+	private final TransferListener listener;
+
+	SegmentedDownload(URL url, Path file, int segments, TransferListener listener) {
+		this.url = url;
+		this.file = file;
+		this.state = stateFile(file);
+		this.segments = segments;
+		this.listener = listener;
+	}
+
+	/**
+	 * @param file The download destination
+	 * @return The sidecar file that tracks the progress of the given destination
+	 */
+	static Path stateFile(Path file) {
+		return file.resolveSibling(file.getFileName() + ".download");
+	}
+
+	void run() throws IOException {
+
+		if (url.getProtocol().equals("file")) {
+			local();
+			return;
+		}
+
+		if (segments < 2 || !url.getProtocol().startsWith("http")) {
+			single(url.openConnection());
+			return;
+		}
+
+		for (int attempt = 1;; attempt++) {
+			try {
+				segmented();
+				return;
+			} catch (ResourceChangedException e) {
+				if (attempt >= MAX_ATTEMPTS)
+					throw e;
+
+				// Nothing that was fetched so far can be trusted
+				log.debug("Restarting download of {}", url, e);
+				Files.deleteIfExists(state);
+			}
+		}
+	}
+
+	private void segmented() throws IOException {
+		var probe = probe();
+		if (probe.length() < 0) {
+			log.debug("Server does not support range requests; using single stream");
+			single(probe.connection());
+			return;
+		}
+		probe.connection().disconnect();
+
+		var parts = load(probe);
+		if (parts == null) {
+			parts = partition(probe.length());
+			save(probe, parts);
+		}
+
+		try (var channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+
+			// Preallocate the file so every segment can write at its own offset
+			if (channel.size() != probe.length()) {
+				channel.truncate(probe.length());
+				if (probe.length() > 0)
+					channel.write(ByteBuffer.allocate(1), probe.length() - 1);
+			}
+
+			long initial = 0;
+			for (var segment : parts) {
+				initial += segment.position - segment.start;
+			}
+
+			var meter = new TransferMeter(listener, probe.length(), initial);
+			try (var progress = FileChannel.open(state, READ, WRITE)) {
+				fetchAll(channel, progress, parts, probe.validator(), meter);
+			}
+			meter.finish();
+		}
+
+		Files.delete(state);
+	}
+
+	/**
+	 * Request the first byte of the resource to find out whether the server
+	 * accepts range requests and how large the resource is.
+	 */
+	private Probe probe() throws IOException {
+		var con = (HttpURLConnection) url.openConnection();
+		con.setRequestProperty("Range", "bytes=0-0");
+
+		String validator = con.getHeaderField("ETag");
+		if (validator == null)
+			validator = con.getHeaderField("Last-Modified");
+		if (validator == null)
+			validator = "";
+
+		if (con.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+			// Content-Range: bytes 0-0/<length>
+			String range = con.getHeaderField("Content-Range");
+			if (range != null && range.indexOf('/') != -1) {
+				try {
+					return new Probe(con, Long.parseLong(range.substring(range.indexOf('/') + 1).trim()), validator);
+				} catch (NumberFormatException e) {
+					// Length is "*" or malformed
+				}
+			}
+
+			// Range support without a usable length is no better than a single stream
+			con.disconnect();
+			con = (HttpURLConnection) url.openConnection();
+		}
+
+		return new Probe(con, -1, validator);
+	}
+
+	/**
+	 * Copy a local resource entirely in the kernel.
+	 */
+	private void local() throws IOException {
+		Path source;
+		try {
+			source = Paths.get(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+
+		try (var src = FileChannel.open(source, READ)) {
+			copy(src, src.size());
+		}
+	}
+
+	private void single(URLConnection con) throws IOException {
+		try (var src = Channels.newChannel(con.getInputStream())) {
+			copy(src, con.getContentLengthLong());
+		}
+	}
+
+	private void copy(ReadableByteChannel src, long total) throws IOException {
+		var meter = new TransferMeter(listener, total, 0);
+		try (var dst = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+			long n;
+			while ((n = ChannelTransfer.transfer(src, dst, meter.transferred(), Long.MAX_VALUE)) != -1) {
+				meter.add(n);
+			}
+		}
+		meter.finish();
+	}
+
+	private List<Segment> partition(long length) {
+		int count = (int) Math.max(1, Math.min(segments, length / MIN_SEGMENT_SIZE));
+		long size = length / count;
+
+		var parts = new ArrayList<Segment>(count);
+		for (int i = 0; i < count; i++) {
+			long start = i * size;
+			long end = i == count - 1 ? length : start + size;
+			parts.add(new Segment(i, start, end, start));
+		}
+		return parts;
+	}
+
+	private void fetchAll(FileChannel channel, FileChannel progress, List<Segment> parts, String validator,
+			TransferMeter meter) throws IOException {
+
+		long header = progressOffset(parts.size());
+		var executor = Executors.newFixedThreadPool(parts.size());
+		try {
+			var futures = new ArrayList<Future<?>>(parts.size());
+			for (var segment : parts) {
+				futures.add(executor.submit(() -> {
+					fetch(channel, progress, header, segment, validator, meter);
+					return null;
+				}));
+			}
+
+			for (var future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io)
+				throw io;
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void fetch(FileChannel channel, FileChannel progress, long header, Segment segment, String validator,
+			TransferMeter meter) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				fetch0(channel, progress, header, segment, validator, meter);
+				return;
+			} catch (ResourceChangedException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= MAX_ATTEMPTS)
+					throw e;
+
+				log.debug("Retrying segment {} at offset {}", segment.index, segment.position, e);
+			}
+		}
+	}
+
+	private void fetch0(FileChannel channel, FileChannel progress, long header, Segment segment, String validator,
+			TransferMeter meter) throws IOException {
+		if (segment.position >= segment.end)
+			return;
+
+		var con = (HttpURLConnection) url.openConnection();
+		con.setRequestProperty("Range", "bytes=" + segment.position + "-" + (segment.end - 1));
+
+		// The server ignores the range if the resource no longer matches, so
+		// segments from two versions are never spliced together. Weak validators
+		// can't be used for ranges.
+		boolean conditional = !validator.isEmpty() && !validator.startsWith("W/");
+		if (conditional)
+			con.setRequestProperty("If-Range", validator);
+		try {
+			if (conditional && con.getResponseCode() == HttpURLConnection.HTTP_OK)
+				throw new ResourceChangedException("Resource changed during download: " + url);
+			if (con.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+				throw new IOException("Unexpected response code: " + con.getResponseCode());
+
+			try (var src = Channels.newChannel(con.getInputStream())) {
+				var record = ByteBuffer.allocate(Long.BYTES);
+
+				long n;
+				while (segment.position < segment.end && (n = ChannelTransfer.transfer(src, channel, segment.position,
+						segment.end - segment.position)) != -1) {
+
+					segment.position += n;
+					meter.add(n);
+
+					// Record progress only after the data has been handed to the OS
+					progress.write(record.clear().putLong(segment.position).flip(), header + segment.index * 24L + 16);
+				}
+			}
+
+			if (segment.position < segment.end)
+				throw new EOFException("Segment " + segment.index + " ended early at offset " + segment.position);
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/**
+	 * Load the segments from an earlier attempt if the state file still matches
+	 * the remote resource.
+	 */
+	private List<Segment> load(Probe probe) throws IOException {
+		if (!Files.exists(state) || !Files.exists(file))
+			return null;
+
+		// A resource that can't be identified can't be safely resumed
+		if (probe.validator().isEmpty())
+			return null;
+
+		try (var in = new DataInputStream(Files.newInputStream(state))) {
+			if (in.readInt() != STATE_MAGIC || in.readLong() != probe.length()
+					|| !in.readUTF().equals(probe.validator()))
+				return null;
+
+			int count = in.readInt();
+			if (count < 1 || count > Math.max(segments, probe.length() / MIN_SEGMENT_SIZE) + 1)
+				return null;
+
+			// The segments must cover the resource exactly once and in order
+			var parts = new ArrayList<Segment>(count);
+			long covered = 0;
+			for (int i = 0; i < count; i++) {
+				var segment = new Segment(i, in.readLong(), in.readLong(), in.readLong());
+				if (segment.start != covered || segment.end <= segment.start || segment.position < segment.start
+						|| segment.position > segment.end)
+					return null;
+				covered = segment.end;
+				parts.add(segment);
+			}
+			if (covered != probe.length() || in.read() != -1)
+				return null;
+
+			log.debug("Resuming download of {} from {}", url, state);
+			return parts;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private void save(Probe probe, List<Segment> parts) throws IOException {
+		try (var out = new DataOutputStream(Files.newOutputStream(state))) {
+			out.writeInt(STATE_MAGIC);
+			out.writeLong(probe.length());
+			out.writeUTF(probe.validator());
+			out.writeInt(parts.size());
+			for (var segment : parts) {
+				out.writeLong(segment.start);
+				out.writeLong(segment.end);
+				out.writeLong(segment.position);
+			}
+		}
+	}
+
+	/**
+	 * @return The offset of the first segment record in the state file
+	 */
+	private long progressOffset(int count) throws IOException {
+		return Files.size(state) - count * 24L;
+	}
+}
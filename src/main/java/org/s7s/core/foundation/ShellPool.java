@@ -0,0 +1,410 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.S7SProcess.ProcessException;
+import org.s7s.core.foundation.S7SProcess.ShellResult;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A pool of long-lived shell processes that run commands sent over their
+ * stdin. After each command the shell prints a unique marker and the exit code
+ * to stdout and the marker to stderr, which frames the command's output.
+ * Sessions that time out, leave extra output behind, or exit are destroyed and
+ * replaced.
+ */
+final class ShellPool {
+
+	private static final Logger log = LoggerFactory.getLogger(ShellPool.class);
+
+	/**
+	 * The number of sessions in the default pool. It can be changed with the
+	 * "s7s.process.shell_sessions" system property.
+	 */
+	private static final int DEFAULT_SIZE = S7SSystemProperty.of("s7s.process.shell_sessions").asInt(4, 1);
+
+	private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * The number of commands a session runs before it's replaced.
+	 */
+	private static final int MAX_USES = 1000;
+
+	private static class LazyDefaultPool {
+		private static final ShellPool INSTANCE = new ShellPool(DEFAULT_SIZE, DEFAULT_TIMEOUT);
+	}
+
+	private static class LazyWatchdog {
+		private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s7s-shell-watchdog").build());
+	}
+
+	static ShellPool getDefault() {
+		return LazyDefaultPool.INSTANCE;
+	}
+
+	private final ConcurrentLinkedDeque<Session> idle = new ConcurrentLinkedDeque<>();
+
+	private final Semaphore permits;
+
+	private final long timeout;
+
+	ShellPool(int size, long timeout) {
+		if (size < 1)
+			throw new IllegalArgumentException("Invalid size: " + size);
+
+		this.permits = new Semaphore(size);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Run a command in the next available session.
+	 *
+	 * @param cmdLine The command executable and arguments
+	 * @return The command's result
+	 */
+	ShellResult run(String... cmdLine) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			throw new ProcessException(e);
+		}
+
+		try {
+			var session = idle.pollFirst();
+			while (session != null && !session.process.isAlive()) {
+				session.close();
+				session = idle.pollFirst();
+			}
+
+			try {
+				if (session == null)
+					session = new Session();
+
+				var result = session.run(cmdLine, timeout);
+				if (session.reusable())
+					idle.addFirst(session);
+				else
+					session.close();
+				return result;
+			} catch (IOException e) {
+				if (session != null)
+					session.close();
+				throw new ProcessException(e);
+			} catch (RuntimeException e) {
+				if (session != null)
+					session.close();
+				throw e;
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Destroy all idle sessions.
+	 */
+	void close() {
+		Session session;
+		while ((session = idle.pollFirst()) != null) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Quote an argument for a cmd.exe command line. The argument is first quoted
+	 * the way programs split their command line into arguments, and then every
+	 * character that cmd.exe interprets is escaped with a caret. Escaping the
+	 * quotes too means cmd.exe never treats part of the argument as quoted, so
+	 * "%" and "!" can't expand a variable anywhere in it.
+	 *
+	 * @param arg The argument
+	 * @return The argument as it should appear on the command line
+	 */
+	static String quoteWindows(String arg) {
+		var quoted = new StringBuilder();
+		if (!arg.isEmpty() && arg.chars().noneMatch(c -> c == ' ' || c == '\t' || c == '\n' || c == '"')) {
+			quoted.append(arg);
+		} else {
+			quoted.append('"');
+			int backslashes = 0;
+			for (int i = 0; i < arg.length(); i++) {
+				char c = arg.charAt(i);
+				if (c == '\\') {
+					backslashes++;
+					continue;
+				}
+
+				// Backslashes are only special before a quote
+				quoted.append("\\".repeat(c == '"' ? backslashes * 2 + 1 : backslashes)).append(c);
+				backslashes = 0;
+			}
+			quoted.append("\\".repeat(backslashes * 2)).append('"');
+		}
+
+		var escaped = new StringBuilder();
+		for (int i = 0; i < quoted.length(); i++) {
+			char c = quoted.charAt(i);
+			if ("()%!^\"<>&|".indexOf(c) != -1)
+				escaped.append('^');
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Build the line that runs a command and then prints the marker. The command
+	 * runs in a subshell with no stdin so it can't consume the next command or
+	 * change the session's state. On Windows the marker is echoed on its own line
+	 * so that %errorlevel% is expanded after the command runs.
+	 *
+	 * @param cmdLine The command executable and arguments
+	 * @param marker  The marker that ends the command's output
+	 * @param os      The platform whose shell runs the line
+	 * @return The framed command
+	 */
+	static String frame(String[] cmdLine, String marker, OsType os) {
+		var line = new StringBuilder();
+		if (os == OsType.WINDOWS) {
+			if (cmdLine.length > 0) {
+				for (var arg : cmdLine) {
+					line.append(quoteWindows(arg)).append(' ');
+				}
+				line.append("< NUL\r\n");
+			}
+			line.append("echo ").append(marker).append("%errorlevel% & 1>&2 echo ").append(marker).append("\r\n");
+		} else {
+			if (cmdLine.length > 0) {
+				line.append('(');
+				for (var arg : cmdLine) {
+					line.append(" '").append(arg.replace("'", "'\\''")).append('\'');
+				}
+				line.append(" ) </dev/null; ");
+			}
+			line.append("printf '%s%d\\n' ").append(marker).append(" \"$?\"; printf '%s\\n' ").append(marker)
+					.append(" >&2\n");
+		}
+		return line.toString();
+	}
+
+	private static final class Session {
+
+		private static final String[] SHELL = S7SSystem.OS_TYPE == OsType.WINDOWS
+				? new String[] { "cmd.exe", "/d", "/q" }
+				: new String[] { "/bin/sh" };
+
+		private static final byte[] NEWLINE = { '\n' };
+
+		final Process process;
+
+		private final OutputStream stdin;
+
+		private final InputStream stdout;
+
+		private final String nonce = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+		private final byte[] buffer = new byte[1 << 13];
+
+		/**
+		 * Everything read from stderr that hasn't been claimed by a command yet.
+		 */
+		private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+		private boolean stderrClosed;
+
+		private int uses;
+
+		private boolean dirty;
+
+		private volatile boolean killed;
+
+		Session() throws IOException {
+			process = new ProcessBuilder(SHELL).start();
+			stdin = process.getOutputStream();
+			stdout = process.getInputStream();
+
+			var reader = new Thread(this::pumpStderr, "s7s-shell-stderr-" + process.pid());
+			reader.setDaemon(true);
+			reader.start();
+
+			log.debug("Started shell session: {}", process.pid());
+
+			// Discard anything the shell prints when it starts
+			try {
+				run(new String[0], DEFAULT_TIMEOUT);
+			} catch (IOException | RuntimeException e) {
+				// Also ends the stderr reader
+				close();
+				throw e;
+			}
+		}
+
+		boolean reusable() {
+			return !dirty && !killed && uses < MAX_USES && process.isAlive();
+		}
+
+		ShellResult run(String[] cmdLine, long timeout) throws IOException {
+			var marker = "S7S_" + nonce + "_" + (uses++) + "_";
+			var framed = frame(cmdLine, marker, S7SSystem.OS_TYPE);
+
+			var watchdog = LazyWatchdog.INSTANCE.schedule(this::kill, timeout, TimeUnit.NANOSECONDS);
+			try {
+				stdin.write(framed.getBytes(Charset.defaultCharset()));
+				stdin.flush();
+
+				var out = readStdout(marker.getBytes(US_ASCII));
+				var err = readStderr(marker.getBytes(US_ASCII));
+				if (killed)
+					throw new IOException("Session was killed");
+
+				return new ShellResult(out.exit(), new String(out.bytes(), 0, out.length(), Charset.defaultCharset()),
+						new String(err, Charset.defaultCharset()));
+			} catch (IOException | NumberFormatException e) {
+				dirty = true;
+				if (killed)
+					throw new ProcessException("Command timed out: " + String.join(" ", cmdLine));
+				throw new IOException("Shell session failed", e);
+			} finally {
+				watchdog.cancel(false);
+			}
+		}
+
+		/**
+		 * A command's stdout and the exit code that followed it.
+		 */
+		private record Stdout(byte[] bytes, int length, int exit) {
+		}
+
+		/**
+		 * Read stdout up to and including the line that contains the marker.
+		 */
+		private Stdout readStdout(byte[] marker) throws IOException {
+			var out = new byte[buffer.length];
+			int length = 0;
+			int found = -1;
+			while (true) {
+				int n = stdout.read(buffer);
+				if (n == -1)
+					throw new IOException("Shell exited");
+
+				if (length + n > out.length)
+					out = Arrays.copyOf(out, Math.max(out.length * 2, length + n));
+				System.arraycopy(buffer, 0, out, length, n);
+				int from = Math.max(0, length - marker.length);
+				length += n;
+
+				if (found == -1)
+					found = indexOf(out, length, marker, from);
+				if (found != -1) {
+					int newline = indexOf(out, length, NEWLINE, found);
+					if (newline != -1) {
+						// Output after the exit code means something is still running
+						if (newline != length - 1 || stdout.available() > 0)
+							dirty = true;
+
+						var exit = new String(out, found + marker.length, newline - found - marker.length, US_ASCII);
+						return new Stdout(out, found, Integer.parseInt(exit.trim()));
+					}
+				}
+			}
+		}
+
+		/**
+		 * Wait for the marker line to appear on stderr and claim everything before
+		 * it.
+		 */
+		private byte[] readStderr(byte[] marker) throws IOException {
+			synchronized (stderr) {
+				try {
+					while (true) {
+						var bytes = stderr.toByteArray();
+						int found = indexOf(bytes, bytes.length, marker, 0);
+						int newline = found == -1 ? -1 : indexOf(bytes, bytes.length, NEWLINE, found);
+						if (newline != -1) {
+							stderr.reset();
+							if (newline != bytes.length - 1)
+								dirty = true;
+							return Arrays.copyOf(bytes, found);
+						}
+						if (stderrClosed)
+							throw new IOException("Shell exited");
+						stderr.wait();
+					}
+				} catch (InterruptedException e) {
+					throw new ProcessException(e);
+				}
+			}
+		}
+
+		private void pumpStderr() {
+			var in = process.getErrorStream();
+			var b = new byte[1 << 12];
+			try {
+				int n;
+				while ((n = in.read(b)) != -1) {
+					synchronized (stderr) {
+						stderr.write(b, 0, n);
+						stderr.notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				// The session was destroyed
+			} finally {
+				synchronized (stderr) {
+					stderrClosed = true;
+					stderr.notifyAll();
+				}
+			}
+		}
+
+		private void kill() {
+			log.debug("Killing shell session: {}", process.pid());
+			killed = true;
+			close();
+		}
+
+		void close() {
+			// Kill the shell first so it can't report the exit of its children
+			var descendants = process.descendants().toList();
+			process.destroyForcibly();
+			descendants.forEach(ProcessHandle::destroyForcibly);
+		}
+
+		private static int indexOf(byte[] array, int length, byte[] target, int from) {
+			outer: for (int i = from; i <= length - target.length; i++) {
+				for (int j = 0; j < target.length; j++) {
+					if (array[i + j] != target[j])
+						continue outer;
+				}
+				return i;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.s7s.core.foundation.S7SFile.TransferListener;
+
+/**
+ * Counts transferred bytes from any number of threads and forwards the
+ * progress to a {@link TransferListener} at most once per interval.
+ */
+final class TransferMeter {
+
+	/**
+	 * The minimum time between listener invocations.
+	 */
+	static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private final TransferListener listener;
+
+	private final long total;
+
+	private final AtomicLong done;
+
+	private final AtomicLong deadline;
+
+	private long lastTime;
+
+	private long lastDone;
+
+	/**
+	 * @param listener The progress listener or {@code null}
+	 * @param total    The expected number of bytes or -1 if unknown
+	 * @param initial  The number of bytes already transferred
+	 */
+	TransferMeter(TransferListener listener, long total, long initial) {
+		this.listener = listener;
+		this.total = total;
+		this.done = new AtomicLong(initial);
+		this.lastTime = System.nanoTime();
+		this.lastDone = initial;
+		this.deadline = new AtomicLong(lastTime + INTERVAL);
+	}
+
+	/**
+	 * Record transferred bytes, notifying the listener if the interval elapsed.
+	 *
+	 * @param bytes The number of newly transferred bytes
+	 */
+	void add(long bytes) {
+		long transferred = done.addAndGet(bytes);
+		if (listener == null)
+			return;
+
+		long now = System.nanoTime();
+		long next = deadline.get();
+		if (now - next >= 0 && deadline.compareAndSet(next, now + INTERVAL)) {
+			report(transferred, now);
+		}
+	}
+
+	/**
+	 * Notify the listener of the final progress regardless of the interval.
+	 */
+	void finish() {
+		if (listener != null)
+			report(done.get(), System.nanoTime());
+	}
+
+	/**
+	 * @return The total number of bytes transferred
+	 */
+	long transferred() {
+		return done.get();
+	}
+
+	private synchronized void report(long transferred, long now) {
+		long elapsed = now - lastTime;
+		double rate = elapsed > 0 ? (transferred - lastDone) * 1e9 / elapsed : 0;
+
+		long eta = -1;
+		if (total >= 0 && rate > 0)
+			eta = (long) ((total - transferred) * 1000 / rate);
+
+		lastTime = now;
+		lastDone = transferred;
+		listener.progress(transferred, total, rate, eta);
+	}
+}
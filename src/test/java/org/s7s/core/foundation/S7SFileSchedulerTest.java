@@ -0,0 +1,146 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class S7SFileSchedulerTest {
+
+	@Test
+	void testHash(@TempDir Path temp) throws Exception {
+		var content = new byte[(3 << 20) + 7];
+		S7SRandom.insecure.nextBytes(content);
+		var file = Files.write(temp.resolve("test.bin"), content);
+
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content),
+				S7SFileScheduler.getDefault().hash(S7SFile.of(file), "SHA-256").get());
+	}
+
+	@Test
+	void testHashMissing(@TempDir Path temp) {
+		var e = assertThrows(ExecutionException.class,
+				() -> S7SFileScheduler.getDefault().hash(S7SFile.of(temp.resolve("missing")), "SHA-256").get());
+		assertTrue(e.getCause() instanceof FileNotFoundException);
+	}
+
+	@Test
+	void testLimit() throws Exception {
+		var scheduler = S7SFileScheduler.of(3);
+		var running = new AtomicInteger();
+		var peak = new AtomicInteger();
+
+		var futures = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 50; i++) {
+			futures.add(scheduler.submit(() -> {
+				peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return running.decrementAndGet();
+			}));
+		}
+
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+		assertEquals(3, peak.get());
+	}
+
+	@Test
+	void testFailureBurst(@TempDir Path temp) throws Exception {
+		var scheduler = S7SFileScheduler.of(1);
+		var gate = new CountDownLatch(1);
+		var blocker = scheduler.submit(() -> {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return 0;
+		});
+
+		// Every queued hash fails as soon as it starts
+		var futures = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < 10_000; i++) {
+			futures.add(scheduler.hash(S7SFile.of(temp.resolve("missing")), "SHA-256"));
+		}
+		gate.countDown();
+		blocker.get();
+
+		for (var future : futures) {
+			var e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.MINUTES));
+			assertTrue(e.getCause() instanceof FileNotFoundException);
+		}
+
+		// Every permit was returned
+		var file = Files.write(temp.resolve("test.bin"), new byte[] { 1 });
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(new byte[] { 1 }),
+				scheduler.hash(S7SFile.of(file), "SHA-256").get());
+	}
+
+	@Test
+	void testCancelQueued() throws Exception {
+		var scheduler = S7SFileScheduler.of(1);
+		var gate = new CountDownLatch(1);
+		var blocker = scheduler.submit(() -> {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return 0;
+		});
+
+		var ran = new AtomicInteger();
+		var queued = scheduler.submit(() -> ran.incrementAndGet());
+		assertTrue(queued.cancel(false));
+
+		gate.countDown();
+		blocker.get();
+		assertEquals(7, scheduler.submit(() -> 7).get(1, TimeUnit.MINUTES));
+		assertEquals(0, ran.get());
+	}
+
+	@Test
+	void testCancelRunning() throws Exception {
+		var scheduler = S7SFileScheduler.of(1);
+		var started = new CountDownLatch(1);
+		var interrupted = new CountDownLatch(1);
+		var running = scheduler.submit(() -> {
+			started.countDown();
+			try {
+				Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			return 0;
+		});
+
+		started.await();
+		assertTrue(running.cancel(true));
+		assertTrue(interrupted.await(1, TimeUnit.MINUTES));
+
+		// The permit was returned and the interrupt didn't leak into the next task
+		assertFalse(scheduler.submit(() -> Thread.currentThread().isInterrupted()).get(1, TimeUnit.MINUTES));
+	}
+}
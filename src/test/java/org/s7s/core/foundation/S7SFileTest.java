@@ -11,14 +11,48 @@ package org.s7s.core.foundation;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.module.FindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.S7SFile.DeltaSignature;
+import org.s7s.core.foundation.S7SFile.Patch;
+import org.s7s.core.foundation.S7SFile.Replacement;
+import org.s7s.core.foundation.S7SFile.WipePattern;
+
+import com.sun.net.httpserver.HttpServer;
 
 class S7SFileTest {
 
@@ -43,12 +77,214 @@ class S7SFileTest {
 		assertFalse(S7SFile.which("123456").isPresent());
 	}
 
+	@Test
+	void testWhichBatchLinux() {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+		var found = S7SFile.which(List.of("id", "sh", "id123"));
+		assertEquals(Set.of("id", "sh"), found.keySet());
+		assertEquals(S7SFile.which("sh").get(), found.get("sh"));
+	}
+
+	@Test
+	void testWhichInvalidation(@TempDir Path temp) throws IOException {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+		var first = Files.createDirectory(temp.resolve("first"));
+		var second = Files.createDirectory(temp.resolve("second"));
+
+		var index = new ExecutableIndex(() -> first + ":" + second, ":", false, 0);
+		assertTrue(index.find("test").isEmpty());
+
+		Files.createFile(second.resolve("test")).toFile().setExecutable(true);
+		assertEquals(second.resolve("test"), index.find("test").get());
+
+		// Directories earlier in the path take precedence
+		Files.createFile(first.resolve("test")).toFile().setExecutable(true);
+		assertEquals(first.resolve("test"), index.find("test").get());
+
+		// Files that aren't executable are skipped
+		Files.createFile(first.resolve("test2"));
+		assertTrue(index.find("test2").isEmpty());
+
+		// Permission changes don't modify the directory but are still noticed
+		first.resolve("test").toFile().setExecutable(false);
+		assertEquals(second.resolve("test"), index.find("test").get());
+		first.resolve("test2").toFile().setExecutable(true);
+		assertEquals(first.resolve("test2"), index.find("test2").get());
+	}
+
+	@Test
+	void testWhichRelative(@TempDir Path temp) throws IOException {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+		var first = Files.createDirectory(temp.resolve("first"));
+		var second = Files.createDirectories(temp.resolve("second/sub"));
+
+		var index = new ExecutableIndex(() -> first + ":" + second.getParent(), ":", false, Long.MAX_VALUE);
+		Files.createFile(second.resolve("test")).toFile().setExecutable(true);
+		assertEquals(second.resolve("test"), index.find("sub/test").get());
+		assertTrue(index.find("sub/test2").isEmpty());
+	}
+
+	@Test
+	void testWhichIgnoreCase(@TempDir Path temp) throws IOException {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+		var first = Files.createDirectory(temp.resolve("first"));
+		Files.createFile(first.resolve("TITLE.exe")).toFile().setExecutable(true);
+
+		var index = new ExecutableIndex(() -> first.toString(), ":", true, 0);
+		var locale = Locale.getDefault();
+		try {
+			Locale.setDefault(new Locale("tr", "TR"));
+			assertEquals(first.resolve("TITLE.exe"), index.find("title.EXE").get());
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
 	@Test
 	void testDownload(@TempDir Path temp) throws IOException {
 		S7SFile.of(temp.resolve(".gitignore"))
 				.download("https://raw.githubusercontent.com/sandpolis/sandpolis/master/.gitignore");
 	}
 
+	@Test
+	void testDownloadSegmented(@TempDir Path temp) throws IOException {
+		var content = random(5 << 20);
+		var served = new AtomicLong();
+		var server = serve(content, true, served, start -> false);
+		try {
+			var file = temp.resolve("test.bin");
+			S7SFile.of(file).download(url(server), 4);
+
+			assertArrayEquals(content, Files.readAllBytes(file));
+			assertEquals(content.length, served.get() - 1);
+			assertFalse(Files.exists(SegmentedDownload.stateFile(file)));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void testDownloadWithoutRanges(@TempDir Path temp) throws IOException {
+		var content = random(3 << 20);
+		var server = serve(content, false, new AtomicLong(), start -> false);
+		try {
+			var file = temp.resolve("test.bin");
+			S7SFile.of(file).download(url(server), 4);
+
+			assertArrayEquals(content, Files.readAllBytes(file));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void testDownloadResume(@TempDir Path temp) throws IOException {
+		var content = random(4 << 20);
+		var file = temp.resolve("test.bin");
+
+		// Fail every request for the last segment
+		var server = serve(content, true, new AtomicLong(), start -> start >= 3 << 20);
+		try {
+			assertThrows(IOException.class, () -> S7SFile.of(file).download(url(server), 4));
+			assertTrue(Files.exists(SegmentedDownload.stateFile(file)));
+		} finally {
+			server.stop(0);
+		}
+
+		var served = new AtomicLong();
+		var resumed = serve(content, true, served, start -> false);
+		try {
+			S7SFile.of(file).download(url(resumed), 4);
+
+			assertArrayEquals(content, Files.readAllBytes(file));
+			assertEquals(1 << 20, served.get() - 1);
+			assertFalse(Files.exists(SegmentedDownload.stateFile(file)));
+		} finally {
+			resumed.stop(0);
+		}
+	}
+
+	@Test
+	void testDownloadChanged(@TempDir Path temp) throws IOException {
+		var original = random(4 << 20);
+		var changed = random(4 << 20);
+
+		// The resource changes right after the probe
+		var requests = new AtomicLong();
+		var server = serve(() -> requests.incrementAndGet() == 1 ? original : changed, true, new AtomicLong(),
+				start -> false);
+		try {
+			var file = temp.resolve("test.bin");
+			S7SFile.of(file).download(url(server), 4);
+
+			assertArrayEquals(changed, Files.readAllBytes(file));
+			assertFalse(Files.exists(SegmentedDownload.stateFile(file)));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void testDownloadInvalidState(@TempDir Path temp) throws IOException {
+		var content = random(4 << 20);
+		var file = Files.write(temp.resolve("test.bin"), new byte[content.length]);
+
+		// A state file whose only segment is complete but doesn't cover the resource
+		try (var out = new DataOutputStream(Files.newOutputStream(SegmentedDownload.stateFile(file)))) {
+			out.writeInt(0x53375344);
+			out.writeLong(content.length);
+			out.writeUTF("\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"");
+			out.writeInt(1);
+			out.writeLong(0);
+			out.writeLong(1 << 20);
+			out.writeLong(1 << 20);
+		}
+
+		var server = serve(content, true, new AtomicLong(), start -> false);
+		try {
+			S7SFile.of(file).download(url(server), 4);
+			assertArrayEquals(content, Files.readAllBytes(file));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void testDownloadProgress(@TempDir Path temp) throws IOException {
+		var content = random(3 << 20);
+		var server = serve(content, true, new AtomicLong(), start -> false);
+		try {
+			var last = new AtomicLong(-1);
+			S7SFile.of(temp.resolve("test.bin")).download(url(server), 3, (transferred, total, rate, eta) -> {
+				assertEquals(content.length, total);
+				assertTrue(transferred >= last.get());
+				last.set(transferred);
+			});
+
+			assertEquals(content.length, last.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void testDownloadLocal(@TempDir Path temp) throws IOException {
+		var content = random(1 << 20);
+		var source = Files.write(temp.resolve("source.bin"), content);
+
+		// A sibling that wasn't created by the download is left alone
+		var sibling = Files.writeString(SegmentedDownload.stateFile(temp.resolve("test.bin")), "unrelated");
+
+		var last = new AtomicLong(-1);
+		S7SFile.of(temp.resolve("test.bin")).download(source.toUri().toURL(), 1, (transferred, total, rate, eta) -> {
+			last.set(transferred);
+		});
+
+		assertArrayEquals(content, Files.readAllBytes(temp.resolve("test.bin")));
+		assertEquals(content.length, last.get());
+		assertEquals("unrelated", Files.readString(sibling));
+	}
+
 	@Test
 	void testOverwrite(@TempDir Path temp) throws IOException {
 		var file = temp.resolve("test.txt");
@@ -58,4 +294,445 @@ class S7SFileTest {
 		assertArrayEquals(new byte[] { 0, 0, 0, 0 }, Files.readAllBytes(file));
 	}
 
+	@Test
+	void testOverwritePasses(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		Files.write(file, random(ChannelTransfer.BUFFER_SIZE * 3 + 5));
+
+		var last = new AtomicLong();
+		S7SFile.of(file).overwrite((transferred, total, rate, eta) -> {
+			assertEquals((ChannelTransfer.BUFFER_SIZE * 3 + 5) * 2, total);
+			last.set(transferred);
+		}, WipePattern.RANDOM, WipePattern.ONES);
+
+		assertEquals((ChannelTransfer.BUFFER_SIZE * 3 + 5) * 2, last.get());
+		for (byte b : Files.readAllBytes(file)) {
+			assertEquals((byte) 0xFF, b);
+		}
+	}
+
+	@Test
+	void testOverwriteBatch(@TempDir Path temp) throws IOException {
+		var files = new ArrayList<S7SFile>();
+		for (int i = 0; i < 8; i++) {
+			files.add(S7SFile.of(Files.write(temp.resolve("test" + i), random(1000 * i))));
+		}
+
+		S7SFile.overwrite(files, 3, null, WipePattern.ZEROS);
+
+		for (int i = 0; i < 8; i++) {
+			assertArrayEquals(new byte[1000 * i], Files.readAllBytes(files.get(i).path()));
+		}
+	}
+
+	@Test
+	void testReplace(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		Files.write(file, new byte[] { 9, 1, 2, 3, 9, 9, 1, 2, 3, 9 });
+		S7SFile.of(file).replace(new short[] { 1, 2, 3 }, new byte[] { 4, 5 });
+
+		assertArrayEquals(new byte[] { 9, 4, 5, 3, 9, 9, 1, 2, 3, 9 }, Files.readAllBytes(file));
+	}
+
+	@Test
+	void testReplaceAll(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		Files.write(file, new byte[] { 1, 2, 3, 0, 7, 8, 8, 9, 1, 2, 3, 7, 0, 0, 9 });
+
+		var patches = S7SFile.of(file).replace(List.of( //
+				new Replacement(new short[] { 1, 2, 3 }, new byte[] { 4, 4, 4 }),
+				new Replacement(new short[] { 7, S7SFile.ANY_BYTE, S7SFile.ANY_BYTE, 9 }, new byte[] { 5 })));
+
+		assertEquals(List.of(new Patch(0, 0), new Patch(4, 1), new Patch(8, 0), new Patch(11, 1)), patches);
+		assertArrayEquals(new byte[] { 4, 4, 4, 0, 5, 8, 8, 9, 4, 4, 4, 5, 0, 0, 9 }, Files.readAllBytes(file));
+	}
+
+	@Test
+	void testReplaceAcrossSegments(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(S7SFile.SEGMENT_SIZE * 2 + 16);
+			raf.seek(S7SFile.SEGMENT_SIZE - 2);
+			raf.write(new byte[] { 1, 2, 3, 4 });
+			raf.seek(S7SFile.SEGMENT_SIZE * 2 + 12);
+			raf.write(new byte[] { 1, 2, 3, 4 });
+		}
+
+		var patches = S7SFile.of(file).replace(List.of(new Replacement(new short[] { 1, 2, 3, 4 }, new byte[] { 5 })));
+
+		assertEquals(List.of(new Patch(S7SFile.SEGMENT_SIZE - 2, 0), new Patch(S7SFile.SEGMENT_SIZE * 2 + 12, 0)),
+				patches);
+	}
+
+	@Test
+	void testSearch(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		Files.write(file, new byte[] { 1, 1, 1, 2, 1, 1, 2, 7, 3, 2 });
+
+		try (var offsets = S7SFile.of(file).search(List.of(new short[] { 1, 1 }, new short[] { 2, S7SFile.ANY_BYTE, 3 }))) {
+			assertArrayEquals(new long[] { 0, 1, 4, 6 }, offsets.toArray());
+		}
+	}
+
+	@Test
+	void testSearchAcrossSegments(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(S7SFile.SEGMENT_SIZE * 3);
+			for (long offset : new long[] { 5, S7SFile.SEGMENT_SIZE - 2, S7SFile.SEGMENT_SIZE * 2 + 9,
+					S7SFile.SEGMENT_SIZE * 3 - 4 }) {
+				raf.seek(offset);
+				raf.write(new byte[] { 1, 2, 3, 4 });
+			}
+		}
+
+		try (var offsets = S7SFile.of(file).search(new short[] { 1, 2, 3, 4 })) {
+			assertArrayEquals(new long[] { 5, S7SFile.SEGMENT_SIZE - 2, S7SFile.SEGMENT_SIZE * 2 + 9,
+					S7SFile.SEGMENT_SIZE * 3 - 4 }, offsets.toArray());
+		}
+	}
+
+	@Test
+	void testSearchSplitsSmallFile(@TempDir Path temp) throws IOException {
+		var file = temp.resolve("test.bin");
+		try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(PatternSpliterator.MIN_SEGMENT_SIZE * 4);
+		}
+
+		try (var ch = FileChannel.open(file)) {
+			var patterns = new BytePatterns(List.of(new short[] { 1, 2, 3, 4 }));
+			assertNotNull(new PatternSpliterator(ch, patterns, PatternSpliterator.segmentSize(ch.size(), 2)).trySplit());
+		}
+	}
+
+	@Test
+	void testSegmentSize() {
+		assertEquals(PatternSpliterator.MIN_SEGMENT_SIZE, PatternSpliterator.segmentSize(1 << 10, 8));
+		assertEquals(1 << 22, PatternSpliterator.segmentSize(1 << 26, 4));
+		assertEquals(S7SFile.SEGMENT_SIZE, PatternSpliterator.segmentSize(1L << 40, 1));
+	}
+
+	@Test
+	void testFindModule(@TempDir Path temp) throws IOException {
+		var lib = Files.createDirectory(temp.resolve("lib"));
+		jar(lib.resolve("a.jar"), "org.example.a");
+		jar(lib.resolve("b.jar"), "org.example.b");
+		jar(lib.resolve("c.txt"), "org.example.c");
+
+		assertEquals(lib.resolve("a.jar"), S7SFile.of(lib).findModule("org.example.a").get());
+		assertEquals(Set.of("org.example.a", "org.example.b"), S7SFile.of(lib).findModules().keySet());
+		assertTrue(S7SFile.of(lib).findModule("org.example.c").isEmpty());
+		assertTrue(Files.exists(ModuleIndex.indexFile(lib)));
+	}
+
+	@Test
+	void testModuleIndexUpdate(@TempDir Path temp) throws IOException {
+		var lib = Files.createDirectory(temp.resolve("lib"));
+		jar(lib.resolve("a.jar"), "org.example.a");
+
+		assertEquals(Set.of("org.example.a"), new ModuleIndex(lib, 0).modules().keySet());
+
+		// Changes are picked up by the same index and by a new index loaded from disk
+		var index = new ModuleIndex(lib, 0);
+		jar(lib.resolve("b.jar"), "org.example.b");
+		Files.delete(lib.resolve("a.jar"));
+		assertEquals(Set.of("org.example.b"), index.modules().keySet());
+		assertEquals(Set.of("org.example.b"), new ModuleIndex(lib, 0).modules().keySet());
+	}
+
+	@Test
+	void testModuleIndexDuplicate(@TempDir Path temp) throws IOException {
+		var lib = Files.createDirectory(temp.resolve("lib"));
+		jar(lib.resolve("a-1.0.jar"), "org.example.a");
+		jar(lib.resolve("a-2.0.jar"), "org.example.a");
+
+		assertThrows(FindException.class, () -> S7SFile.of(lib).findModules());
+	}
+
+	@Test
+	void testModuleIndexExploded(@TempDir Path temp) throws IOException {
+		var lib = Files.createDirectory(temp.resolve("lib"));
+		jar(lib.resolve("a.jar"), "org.example.a");
+
+		var exploded = Files.createDirectory(lib.resolve("d"));
+		Files.write(exploded.resolve("module-info.class"), moduleInfo("org.example.d"));
+
+		assertEquals(exploded, S7SFile.of(lib).findModule("org.example.d").get());
+		assertEquals(Set.of("org.example.a", "org.example.d"), new ModuleIndex(lib, 0).modules().keySet());
+	}
+
+	@Test
+	void testModuleIndexInvalidDescriptor(@TempDir Path temp) throws IOException {
+		var lib = Files.createDirectory(temp.resolve("lib"));
+		try (var out = new JarOutputStream(Files.newOutputStream(lib.resolve("a.jar")))) {
+			out.putNextEntry(new JarEntry("module-info.class"));
+			out.write(new byte[] { 1, 2, 3, 4 });
+			out.closeEntry();
+		}
+
+		assertThrows(FindException.class, () -> S7SFile.of(lib).findModules());
+	}
+
+	@Test
+	void testModuleIndexFileOfRoot() {
+		var root = Paths.get("/").toAbsolutePath().getRoot();
+		assertEquals(root.resolve(".modules"), ModuleIndex.indexFile(root));
+		assertTrue(ModuleIndex.indexFile(root).isAbsolute());
+	}
+
+	private static void jar(Path file, String module) throws IOException {
+		var manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().putValue("Automatic-Module-Name", module);
+		try (var out = new JarOutputStream(Files.newOutputStream(file), manifest)) {
+			out.putNextEntry(new JarEntry(module.replace('.', '/') + "/Test.class"));
+			out.closeEntry();
+		}
+	}
+
+	/**
+	 * Assemble a descriptor for a module that only requires java.base.
+	 */
+	private static byte[] moduleInfo(String module) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(53);
+
+		// Constant pool
+		out.writeShort(8);
+		out.writeByte(7); // #1 Class
+		out.writeShort(2);
+		out.writeByte(1); // #2 Utf8
+		out.writeUTF("module-info");
+		out.writeByte(1); // #3 Utf8
+		out.writeUTF("Module");
+		out.writeByte(19); // #4 Module
+		out.writeShort(5);
+		out.writeByte(1); // #5 Utf8
+		out.writeUTF(module);
+		out.writeByte(19); // #6 Module
+		out.writeShort(7);
+		out.writeByte(1); // #7 Utf8
+		out.writeUTF("java.base");
+
+		out.writeShort(0x8000); // ACC_MODULE
+		out.writeShort(1);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+
+		// Module attribute
+		out.writeShort(1);
+		out.writeShort(3);
+		out.writeInt(22);
+		out.writeShort(4);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(1);
+		out.writeShort(6);
+		out.writeShort(0x8000); // ACC_MANDATED
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	void testHash(@TempDir Path temp) throws Exception {
+		var content = random(3 << 20);
+		var file = Files.write(temp.resolve("test.bin"), content);
+
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), S7SFile.of(file).hash("SHA-256"));
+		assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(new byte[0]),
+				S7SFile.of(Files.createFile(temp.resolve("empty"))).hash("SHA-1"));
+	}
+
+	@Test
+	void testChunkTree(@TempDir Path temp) throws Exception {
+		var content = random((3 << 20) + 17);
+		var file = Files.write(temp.resolve("test.bin"), content);
+
+		var expected = S7SFile.of(file).chunkTree("SHA-256", 1 << 20);
+		assertEquals(4, expected.chunks().length);
+		var leaf = MessageDigest.getInstance("SHA-256");
+		leaf.update((byte) 0);
+		assertArrayEquals(leaf.digest(Arrays.copyOfRange(content, 3 << 20, content.length)), expected.chunks()[3]);
+		assertEquals(0, expected.diff(expected).length);
+		assertEquals(expected, S7SFile.of(file).chunkTree("SHA-256", 1 << 20));
+		assertEquals(expected.hashCode(), S7SFile.of(file).chunkTree("SHA-256", 1 << 20).hashCode());
+
+		// Corrupt the second chunk
+		content[(1 << 20) + 5] ^= 1;
+		Files.write(file, content);
+		var corrupted = S7SFile.of(file).chunkTree("SHA-256", 1 << 20);
+
+		assertArrayEquals(new int[] { 1 }, corrupted.diff(expected));
+		assertFalse(Arrays.equals(expected.root(), corrupted.root()));
+	}
+
+	@Test
+	void testChunkTreeSegments(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("test.bin");
+		try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(S7SFile.SEGMENT_SIZE + 3);
+			raf.seek(S7SFile.SEGMENT_SIZE - 1);
+			raf.write(new byte[] { 1, 2, 3, 4 });
+		}
+
+		// Chunks that don't divide the segment size still cover the file exactly
+		int chunkSize = 3 << 20;
+		var tree = S7SFile.of(file).chunkTree("SHA-256", chunkSize);
+		assertEquals((S7SFile.SEGMENT_SIZE + 3 + chunkSize - 1) / chunkSize, tree.chunks().length);
+
+		var content = Files.readAllBytes(file);
+		for (int i = 0; i < tree.chunks().length; i++) {
+			var leaf = MessageDigest.getInstance("SHA-256");
+			leaf.update((byte) 0);
+			leaf.update(content, i * chunkSize, Math.min(chunkSize, content.length - i * chunkSize));
+			assertArrayEquals(leaf.digest(), tree.chunks()[i]);
+		}
+	}
+
+	@Test
+	void testSignatureEquality(@TempDir Path temp) throws IOException {
+		var file = Files.write(temp.resolve("test.bin"), random(1 << 18));
+
+		var signature = new ByteArrayOutputStream();
+		S7SFile.of(file).signature().write(signature);
+		assertEquals(S7SFile.of(file).signature(),
+				DeltaSignature.read(new ByteArrayInputStream(signature.toByteArray())));
+	}
+
+	@Test
+	void testDelta(@TempDir Path temp) throws IOException {
+		// The delta size depends on where chunk boundaries fall, so fix the content
+		var random = new Random(0x5337);
+		var base = new byte[1 << 20];
+		random.nextBytes(base);
+		var insert = new byte[5000];
+		random.nextBytes(insert);
+
+		// Insert, modify, and remove a few regions
+		var target = new ByteArrayOutputStream();
+		target.write(base, 0, 100_000);
+		target.write(insert);
+		target.write(base, 100_000, 400_000);
+		target.write(base, 600_000, base.length - 600_000);
+		var expected = target.toByteArray();
+		expected[900_000] ^= 1;
+
+		var baseFile = Files.write(temp.resolve("base.bin"), base);
+		var targetFile = Files.write(temp.resolve("target.bin"), expected);
+
+		// Round trip the signature as it would be sent from the agent
+		var signature = new ByteArrayOutputStream();
+		S7SFile.of(baseFile).signature().write(signature);
+
+		var delta = new ByteArrayOutputStream();
+		long literal = S7SFile.of(targetFile).delta(
+				DeltaSignature.read(new ByteArrayInputStream(signature.toByteArray())), delta);
+		assertTrue(literal < expected.length / 10);
+		assertTrue(delta.size() < expected.length / 10);
+
+		var permissions = PosixFilePermissions.fromString("rwxr-xr--");
+		if (Files.getFileAttributeView(baseFile, PosixFileAttributeView.class) != null)
+			Files.setPosixFilePermissions(baseFile, permissions);
+
+		S7SFile.of(baseFile).patch(new ByteArrayInputStream(delta.toByteArray()));
+		assertArrayEquals(expected, Files.readAllBytes(baseFile));
+
+		// The patched file keeps the original's permissions
+		if (Files.getFileAttributeView(baseFile, PosixFileAttributeView.class) != null)
+			assertEquals(permissions, Files.getPosixFilePermissions(baseFile));
+	}
+
+	@Test
+	void testDeltaInvalid(@TempDir Path temp) throws IOException {
+		var base = random(1 << 16);
+		var baseFile = Files.write(temp.resolve("base.bin"), base);
+
+		var signature = new ByteArrayOutputStream();
+		S7SFile.of(baseFile).signature().write(signature);
+		var delta = new ByteArrayOutputStream();
+		S7SFile.of(baseFile).delta(DeltaSignature.read(new ByteArrayInputStream(signature.toByteArray())), delta);
+
+		// The base is shorter than the copy runs in the delta
+		Files.write(baseFile, Arrays.copyOf(base, 1000));
+		assertThrows(IOException.class,
+				() -> S7SFile.of(baseFile).patch(new ByteArrayInputStream(delta.toByteArray())));
+		assertEquals(1000, Files.size(baseFile));
+		try (var files = Files.list(temp)) {
+			assertEquals(1, files.count());
+		}
+
+		// A huge chunk count in a truncated signature
+		var truncated = Arrays.copyOf(signature.toByteArray(), 8);
+		truncated[4] = 0x7F;
+		assertThrows(EOFException.class, () -> DeltaSignature.read(new ByteArrayInputStream(truncated)));
+	}
+
+	private static byte[] random(int length) {
+		var bytes = new byte[length];
+		S7SRandom.insecure.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static URL url(HttpServer server) throws IOException {
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/test.bin");
+	}
+
+	/**
+	 * Serve the given content with optional support for single range requests.
+	 */
+	private static HttpServer serve(byte[] content, boolean ranges, AtomicLong served, LongPredicate fail)
+			throws IOException {
+		return serve(() -> content, ranges, served, fail);
+	}
+
+	/**
+	 * Serve content that may change between requests. Ranges are only honored if
+	 * If-Range still matches the content's ETag.
+	 */
+	private static HttpServer serve(Supplier<byte[]> resource, boolean ranges, AtomicLong served, LongPredicate fail)
+			throws IOException {
+		var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			try (exchange) {
+				var content = resource.get();
+				var etag = "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"";
+				exchange.getResponseHeaders().add("ETag", etag);
+
+				var range = exchange.getRequestHeaders().getFirst("Range");
+				var ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+				if (!ranges || range == null || (ifRange != null && !ifRange.equals(etag))) {
+					exchange.sendResponseHeaders(200, content.length);
+					exchange.getResponseBody().write(content);
+					served.addAndGet(content.length);
+					return;
+				}
+
+				var bounds = range.substring("bytes=".length()).split("-");
+				int start = Integer.parseInt(bounds[0]);
+				int end = Integer.parseInt(bounds[1]) + 1;
+				if (fail.test(start)) {
+					exchange.sendResponseHeaders(500, -1);
+					return;
+				}
+
+				exchange.getResponseHeaders().add("Content-Range",
+						"bytes " + start + "-" + (end - 1) + "/" + content.length);
+				exchange.sendResponseHeaders(206, end - start);
+				exchange.getResponseBody().write(content, start, end - start);
+				served.addAndGet(end - start);
+			}
+		});
+		server.start();
+		return server;
+	}
 }
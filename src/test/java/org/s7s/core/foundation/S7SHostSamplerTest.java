@@ -0,0 +1,195 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.S7SHostSampler.Metric;
+
+class S7SHostSamplerTest {
+
+	private static final String NET_DEV = """
+			Inter-|   Receive                                                |  Transmit
+			 face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed
+			    lo: 5000 50 0 0 0 0 0 0 5000 50 0 0 0 0 0 0
+			  eth0: %d 10 0 0 0 0 0 0 %d 20 0 0 0 0 0 0
+			""";
+
+	private static final String DISKSTATS = """
+			   7       0 loop0 9 0 900 0 9 0 900 0 0 0 0 0 0 0 0 0 0
+			 253       0 vda 10 0 %d 0 20 0 %d 0 0 0 0 0 0 0 0 0 0
+			 253       1 vda1 10 0 100 0 20 0 200 0 0 0 0 0 0 0 0 0 0
+			""";
+
+	@Test
+	void testSample(@TempDir Path root) throws IOException {
+		Files.createDirectories(root.resolve("sys/block/vda"));
+		Files.createDirectories(root.resolve("sys/block/loop0"));
+		write(root, "proc/stat", """
+				cpu  100 0 50 800 50 0 0 0 0 0
+				cpu0 100 0 50 800 50 0 0 0 0 0
+				intr 1 2 3
+				ctxt 1000
+				procs_running 3
+				""");
+		write(root, "proc/meminfo", """
+				MemTotal:        1000 kB
+				MemFree:          200 kB
+				MemAvailable:     500 kB
+				SwapTotal:        100 kB
+				SwapFree:          40 kB
+				""");
+		write(root, "proc/loadavg", "0.52 1.05 12.00 1/123 456\n");
+		write(root, "proc/net/dev", NET_DEV.formatted(1000, 2000));
+		write(root, "proc/diskstats", DISKSTATS.formatted(100, 200));
+
+		try (var sampler = new S7SHostSampler(root, 4)) {
+			sampler.sample();
+			assertEquals(1, sampler.size());
+			assertTrue(Double.isNaN(sampler.latest(Metric.CPU_BUSY)));
+			assertTrue(Double.isNaN(sampler.latest(Metric.NETWORK_RX)));
+			assertEquals(3, sampler.latest(Metric.PROCESSES_RUNNING));
+			assertEquals(1000 * 1024, sampler.latest(Metric.MEMORY_TOTAL));
+			assertEquals(500 * 1024, sampler.latest(Metric.MEMORY_AVAILABLE));
+			assertEquals(60 * 1024, sampler.latest(Metric.SWAP_USED));
+			assertEquals(0.52, sampler.latest(Metric.LOAD_1));
+			assertEquals(1.05, sampler.latest(Metric.LOAD_5));
+			assertEquals(12, sampler.latest(Metric.LOAD_15));
+
+			write(root, "proc/stat", """
+					cpu  160 0 70 900 70 0 0 0 0 0
+					ctxt 2000
+					procs_running 1
+					""");
+			write(root, "proc/net/dev", NET_DEV.formatted(5000, 2000));
+			write(root, "proc/diskstats", DISKSTATS.formatted(110, 200));
+			sampler.sample();
+
+			// 200 ticks elapsed of which 80 were busy
+			assertEquals(2, sampler.size());
+			assertEquals(0.4, sampler.latest(Metric.CPU_BUSY), 1e-9);
+			assertEquals(0.3, sampler.latest(Metric.CPU_USER), 1e-9);
+			assertEquals(0.1, sampler.latest(Metric.CPU_SYSTEM), 1e-9);
+			assertEquals(0.1, sampler.latest(Metric.CPU_IOWAIT), 1e-9);
+			assertEquals(1, sampler.latest(Metric.PROCESSES_RUNNING));
+			assertTrue(sampler.latest(Metric.CONTEXT_SWITCHES) > 0);
+
+			// Loopback, loop devices, and partitions aren't counted
+			assertTrue(sampler.latest(Metric.NETWORK_RX) > 0);
+			assertEquals(0, sampler.latest(Metric.NETWORK_TX));
+			assertTrue(sampler.latest(Metric.DISK_READ) > 0);
+			assertEquals(0, sampler.latest(Metric.DISK_WRITE));
+			assertEquals(0, sampler.latest(Metric.DISK_READ_OPS));
+
+			assertEquals(3, sampler.get(Metric.PROCESSES_RUNNING, 1));
+			assertThrows(IndexOutOfBoundsException.class, () -> sampler.get(Metric.CPU_BUSY, 2));
+		}
+	}
+
+	@Test
+	void testPhysicalDevices(@TempDir Path root) throws IOException {
+		Files.createDirectories(root.resolve("sys/block/vda"));
+		Files.createDirectories(root.resolve("sys/block/dm-0/slaves/vda"));
+		Files.createDirectories(root.resolve("sys/class/net/eth0/device"));
+		Files.createDirectories(root.resolve("sys/class/net/docker0"));
+		Files.createDirectories(root.resolve("sys/class/net/lo"));
+
+		var netdev = """
+				Inter-|   Receive                                                |  Transmit
+				 face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed
+				    lo: 5000 50 0 0 0 0 0 0 5000 50 0 0 0 0 0 0
+				  eth0: %d 10 0 0 0 0 0 0 0 20 0 0 0 0 0 0
+				docker0: %d 10 0 0 0 0 0 0 0 20 0 0 0 0 0 0
+				""";
+		var diskstats = """
+				 253       0 vda 10 0 %d 0 20 0 0 0 0 0 0 0 0 0 0 0 0
+				 252       0 dm-0 10 0 %d 0 20 0 0 0 0 0 0 0 0 0 0 0 0
+				""";
+		write(root, "proc/stat", "ctxt 1000\n");
+		write(root, "proc/net/dev", netdev.formatted(1000, 1000));
+		write(root, "proc/diskstats", diskstats.formatted(100, 100));
+
+		try (var sampler = new S7SHostSampler(root, 2)) {
+			sampler.sample();
+
+			// The bridge and the mapped device repeat the traffic of the devices below
+			write(root, "proc/stat", "ctxt 2000\n");
+			write(root, "proc/net/dev", netdev.formatted(2000, 2000));
+			write(root, "proc/diskstats", diskstats.formatted(200, 200));
+			sampler.sample();
+
+			// Every rate shares the elapsed time, so compare them to 1000 context switches
+			double switches = sampler.latest(Metric.CONTEXT_SWITCHES);
+			assertEquals(switches, sampler.latest(Metric.NETWORK_RX), switches * 1e-9);
+			assertEquals(switches * 100 * 512 / 1000, sampler.latest(Metric.DISK_READ), switches * 1e-9);
+		}
+	}
+
+	@Test
+	void testSharedSampler() {
+		var sampler = S7SSystem.sampler();
+		sampler.close();
+
+		// Other callers can still sample
+		sampler.sample();
+		assertTrue(sampler.size() > 0);
+	}
+
+	@Test
+	void testHistoryWraps(@TempDir Path root) throws IOException {
+		write(root, "proc/loadavg", "0.00 0.00 0.00 1/1 1\n");
+		try (var sampler = new S7SHostSampler(root, 3)) {
+			for (int i = 1; i <= 5; i++) {
+				write(root, "proc/loadavg", i + ".00 0.00 0.00 1/1 1\n");
+				sampler.sample();
+			}
+
+			var history = new double[4];
+			assertEquals(3, sampler.history(Metric.LOAD_1, history));
+			assertArrayEquals(new double[] { 3, 4, 5, 0 }, history);
+
+			history = new double[2];
+			assertEquals(2, sampler.history(Metric.LOAD_1, history));
+			assertArrayEquals(new double[] { 4, 5 }, history);
+
+			assertTrue(sampler.timestamp(0) >= sampler.timestamp(2));
+			assertTrue(Double.isNaN(sampler.latest(Metric.MEMORY_TOTAL)));
+		}
+	}
+
+	@Test
+	void testSampleHost() {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+
+		try (var sampler = S7SHostSampler.of(2)) {
+			sampler.sample();
+			sampler.sample();
+
+			assertTrue(sampler.latest(Metric.MEMORY_TOTAL) > 0);
+			assertTrue(sampler.latest(Metric.LOAD_1) >= 0);
+			assertTrue(sampler.latest(Metric.CPU_BUSY) >= 0 || Double.isNaN(sampler.latest(Metric.CPU_BUSY)));
+			assertTrue(sampler.latest(Metric.CONTEXT_SWITCHES) >= 0);
+		}
+	}
+
+	private static void write(Path root, String path, String content) throws IOException {
+		var file = root.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, content);
+	}
+}
@@ -0,0 +1,59 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.foundation.Platform.OsType;
+
+class S7SPipelineTest {
+
+	@Test
+	void testPipeline() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var pipeline = S7SProcess.pipeline(new String[] { "seq", "1", "100000" }, new String[] { "grep", "7" },
+				new String[] { "wc", "-l" });
+
+		assertEquals(3, pipeline.stages().size());
+		assertArrayEquals(new int[] { 0, 0, 0 }, pipeline.exits());
+		assertEquals("40951", pipeline.stdout().trim());
+
+		// Intermediate output goes straight to the next stage
+		assertEquals(0, pipeline.stage(0).out().await().size());
+	}
+
+	@Test
+	void testPipelineStderr() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var pipeline = S7SProcess.pipeline(new String[] { "sh", "-c", "echo oops >&2; exit 2" },
+				new String[] { "cat" });
+
+		assertEquals(0, pipeline.complete());
+		assertArrayEquals(new int[] { 2, 0 }, pipeline.exits());
+		assertEquals("oops\n", pipeline.stderr(0));
+		assertEquals("", pipeline.stderr(1));
+		assertEquals("", pipeline.stdout());
+	}
+
+	@Test
+	void testPipelineStdin() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var pipeline = S7SProcess.pipeline(new String[] { "tr", "a-z", "A-Z" }, new String[] { "rev" });
+		pipeline.stdin("hello\n").closeStdin();
+
+		assertEquals(0, pipeline.complete());
+		assertEquals("OLLEH\n", pipeline.stdout());
+	}
+}
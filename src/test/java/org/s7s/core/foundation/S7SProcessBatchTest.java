@@ -0,0 +1,88 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.S7SProcessBatch.Result;
+
+class S7SProcessBatchTest {
+
+	@Test
+	void testBatch() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var cmdLines = new ArrayList<String[]>();
+		for (int i = 0; i < 8; i++) {
+			cmdLines.add(new String[] { "sh", "-c", "sleep 0.2; echo " + i });
+		}
+
+		var batch = S7SProcessBatch.of(2, Duration.ofMinutes(1));
+		var results = batch.run(cmdLines).toList();
+
+		assertEquals(8, results.size());
+		var indexes = new ArrayList<Integer>();
+		for (var result : results) {
+			assertEquals(0, result.exit());
+			assertFalse(result.timedOut());
+			assertEquals(result.index() + "\n", result.process().stdout());
+			indexes.add(result.index());
+		}
+		Collections.sort(indexes);
+		assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7), indexes);
+
+		// With two slots the last commands waited for three rounds
+		var metrics = batch.metrics();
+		assertEquals(8, metrics.completed());
+		assertTrue(metrics.maxQueueTime() >= Duration.ofMillis(500).toNanos());
+		assertTrue(metrics.runTime() >= Duration.ofMillis(1600).toNanos());
+	}
+
+	@Test
+	void testBatchTimeout() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var batch = S7SProcessBatch.of(4, Duration.ofMillis(300));
+		var results = batch.run(List.of(new String[] { "sh", "-c", "sleep 30; true" }, new String[] { "true" },
+				new String[] { "nonexistent-command" })).toList();
+
+		// Results arrive in the order that the commands finish
+		assertEquals(3, results.size());
+		Result slow = results.get(2);
+		assertEquals(0, slow.index());
+		assertTrue(slow.timedOut());
+		assertTrue(slow.runTime() < Duration.ofSeconds(10).toNanos());
+
+		assertTrue(results.stream().anyMatch(result -> result.index() == 2 && result.exit() == -1));
+		assertEquals(1, batch.metrics().timedOut());
+	}
+
+	@Test
+	void testBatchInvalidCommand() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		// Each invalid command must release its slot for the next one
+		var batch = S7SProcessBatch.of(1, Duration.ofMinutes(1));
+		var results = batch.run(List.of(new String[0], new String[0], new String[] { "true" })).toList();
+
+		assertEquals(3, results.size());
+		assertEquals(2, results.stream().filter(result -> result.exit() == -1).count());
+		assertTrue(results.stream().anyMatch(result -> result.index() == 2 && result.exit() == 0));
+		assertEquals(0, batch.metrics().timedOut());
+	}
+}
@@ -11,9 +11,25 @@ package org.s7s.core.foundation;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.jupiter.api.Test;
 
 import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.S7SProcess.ProcessException;
+import org.s7s.core.foundation.S7SProcess.ShellResult;
 
 class S7SProcessTest {
 
@@ -23,21 +39,600 @@ class S7SProcessTest {
 
 		S7SProcess.exec("true").complete((exit, stdout, stderr) -> {
 			assertEquals(0, exit);
-			assertEquals("", stdout);
-			assertEquals("", stderr);
+			assertEquals("", stdout.text());
+			assertEquals("", stderr.text());
 		});
 
 		S7SProcess.exec("false").complete((exit, stdout, stderr) -> {
 			assertEquals(1, exit);
-			assertEquals("", stdout);
-			assertEquals("", stderr);
+			assertEquals("", stdout.text());
+			assertEquals("", stderr.text());
 		});
 
 		S7SProcess.exec("echo", "true").complete((exit, stdout, stderr) -> {
 			assertEquals(0, exit);
-			assertEquals("true\n", stdout);
-			assertEquals("", stderr);
+			assertEquals("true\n", stdout.text());
+			assertEquals("", stderr.text());
+		});
+	}
+
+	@Test
+	void testCaptureDoesNotDeadlock() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		// Fill the stderr pipe before writing anything to stdout
+		S7SProcess.exec("sh", "-c", "head -c 1000000 /dev/zero >&2; echo done").complete((exit, stdout, stderr) -> {
+			assertEquals(0, exit);
+			assertEquals("done\n", stdout.text());
+			assertEquals(1000000, stderr.size());
+		});
+	}
+
+	@Test
+	void testCaptureSpill() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = new S7SProcess(new ProcessBuilder("seq", "1", "100000").start(), 1024);
+		assertEquals(0, process.complete());
+
+		var output = process.out().await();
+		assertTrue(output.isSpilled());
+		assertEquals(588895, output.size());
+
+		var lines = output.lines().toList();
+		assertEquals(100000, lines.size());
+		assertEquals("1", lines.get(0));
+		assertEquals("100000", lines.get(99999));
+	}
+
+	@Test
+	void testSpillLimit() throws Exception {
+		var output = new ProcessOutput(null, 16, 32, true);
+		output.write(new byte[100], 0, 100);
+		output.finish(null);
+
+		assertEquals(48, output.size());
+		assertTrue(output.isSpilled());
+		assertTrue(output.isTruncated());
+		assertEquals(48, output.openStream().readAllBytes().length);
+	}
+
+	@Test
+	void testProcessStreamsReadCapture() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.exec("sh", "-c", "echo out; echo err >&2");
+		assertEquals("out\n", new String(process.process().getInputStream().readAllBytes()));
+		assertEquals("err\n", new String(process.process().getErrorStream().readAllBytes()));
+
+		// The capture still has everything
+		assertEquals("out\n", process.stdout());
+		assertEquals("err\n", process.stderr());
+		assertEquals(process, process.process().onExit().thenApply(p -> process).get());
+	}
+
+	@Test
+	void testToStringDoesNotWait() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.exec("sleep", "10");
+		try {
+			assertTrue(assertTimeoutPreemptively(Duration.ofSeconds(5), () -> process.out().toString())
+					.contains("complete=false"));
+		} finally {
+			process.kill();
+		}
+	}
+
+	@Test
+	void testPumpSurvivesFailure() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.exec("sleep", "1");
+		var failing = ProcessPump.capture(process.process(), new InputStream() {
+			@Override
+			public int read() {
+				throw new IllegalStateException();
+			}
+
+			@Override
+			public int available() {
+				throw new IllegalStateException();
+			}
+		}, 1024, true);
+
+		assertThrows(ProcessException.class, () -> failing.await());
+		assertEquals("ok\n", S7SProcess.exec("echo", "ok").stdout());
+		process.kill();
+	}
+
+	@Test
+	void testShell() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		for (int i = 0; i < 20; i++) {
+			var result = S7SProcess.shell("echo", "it's " + i);
+			assertEquals(0, result.exit());
+			assertEquals("it's " + i + "\n", result.stdout());
+			assertEquals("", result.stderr());
+		}
+
+		var result = S7SProcess.shell("sh", "-c", "echo out; echo err >&2; exit 3");
+		assertEquals(3, result.exit());
+		assertEquals("out\n", result.stdout());
+		assertEquals("err\n", result.stderr());
+
+		// Commands can't change the session
+		S7SProcess.shell("sh", "-c", "exit 1");
+		assertEquals("ok\n", S7SProcess.shell("echo", "ok").stdout());
+	}
+
+	@Test
+	void testShellTimeout() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var pool = new ShellPool(1, TimeUnit.MILLISECONDS.toNanos(500));
+		assertThrows(ProcessException.class, () -> pool.run("sleep", "10"));
+
+		// The wedged session is replaced
+		assertEquals("ok\n", pool.run("echo", "ok").stdout());
+		pool.close();
+	}
+
+	@Test
+	void testQuoteWindows() {
+		assertEquals("dir", ShellPool.quoteWindows("dir"));
+		assertEquals("^\"^\"", ShellPool.quoteWindows(""));
+		assertEquals("^\"a b^\"", ShellPool.quoteWindows("a b"));
+		assertEquals("50^%", ShellPool.quoteWindows("50%"));
+		assertEquals("^%PATH^%^!x^!", ShellPool.quoteWindows("%PATH%!x!"));
+		assertEquals("a^&b^|c^>d^^e", ShellPool.quoteWindows("a&b|c>d^e"));
+		assertEquals("^\"say \\^\"hi\\^\"^\"", ShellPool.quoteWindows("say \"hi\""));
+		assertEquals("^\"C:\\my dir\\\\^\"", ShellPool.quoteWindows("C:\\my dir\\"));
+	}
+
+	@Test
+	void testQuoteWindowsRoundTrip() {
+		var random = new Random(0x5337);
+		var alphabet = "ab \t\"\\%!^&|<>()".toCharArray();
+		for (int i = 0; i < 10_000; i++) {
+			var arg = new StringBuilder();
+			for (int j = random.nextInt(8); j > 0; j--) {
+				arg.append(alphabet[random.nextInt(alphabet.length)]);
+			}
+
+			var quoted = ShellPool.quoteWindows(arg.toString());
+			assertEquals(List.of(arg.toString()), splitWindows(unescapeCmd(quoted)), quoted);
+		}
+	}
+
+	@Test
+	void testFrameWindows() {
+		assertEquals("echo ^\"a b^\" 50^% < NUL\r\necho M_%errorlevel% & 1>&2 echo M_\r\n",
+				ShellPool.frame(new String[] { "echo", "a b", "50%" }, "M_", OsType.WINDOWS));
+		assertEquals("echo M_%errorlevel% & 1>&2 echo M_\r\n", ShellPool.frame(new String[0], "M_", OsType.WINDOWS));
+	}
+
+	@Test
+	void testFrameUnix() {
+		assertEquals("( 'echo' 'it'\\''s' ) </dev/null; printf '%s%d\\n' M_ \"$?\"; printf '%s\\n' M_ >&2\n",
+				ShellPool.frame(new String[] { "echo", "it's" }, "M_", OsType.LINUX));
+	}
+
+	@Test
+	void testShellArguments() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var result = S7SProcess.shell("printf", "%s|", "a'b", "$HOME", "`id`", "a\\b", "", "*");
+		assertEquals("a'b|$HOME|`id`|a\\b||*|", result.stdout());
+	}
+
+	/**
+	 * Remove the carets that cmd.exe strips from a line.
+	 */
+	private static String unescapeCmd(String line) {
+		var unescaped = new StringBuilder();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '^') {
+				c = line.charAt(++i);
+			} else {
+				// Everything cmd.exe interprets must be escaped
+				assertEquals(-1, "()%!^\"<>&|".indexOf(c), line);
+			}
+			unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * Split a command line into arguments the way the Microsoft C runtime does.
+	 */
+	private static List<String> splitWindows(String line) {
+		var args = new ArrayList<String>();
+		int i = 0;
+		while (i < line.length()) {
+			while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t'))
+				i++;
+			if (i == line.length())
+				break;
+
+			var arg = new StringBuilder();
+			boolean quoted = false;
+			while (i < line.length()) {
+				char c = line.charAt(i);
+				if (c == '\\') {
+					int backslashes = 0;
+					while (i < line.length() && line.charAt(i) == '\\') {
+						backslashes++;
+						i++;
+					}
+					if (i < line.length() && line.charAt(i) == '"') {
+						arg.append("\\".repeat(backslashes / 2));
+						if (backslashes % 2 == 1) {
+							arg.append('"');
+							i++;
+						}
+					} else {
+						arg.append("\\".repeat(backslashes));
+					}
+				} else if (c == '"') {
+					quoted = !quoted;
+					i++;
+				} else if ((c == ' ' || c == '\t') && !quoted) {
+					break;
+				} else {
+					arg.append(c);
+					i++;
+				}
+			}
+			args.add(arg.toString());
+		}
+		return args;
+	}
+
+	@Test
+	void testProbeSingleFlight() throws Exception {
+		var runs = new AtomicInteger();
+		var cache = new ProbeCache(16, cmdLine -> {
+			runs.incrementAndGet();
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return new ShellResult(0, String.join(" ", cmdLine), "");
+		});
+
+		var executor = Executors.newFixedThreadPool(50);
+		try {
+			var futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 50; i++) {
+				futures.add(executor.submit(() -> cache.get(Duration.ofMinutes(1), "uname", "-m")));
+			}
+			for (var future : futures) {
+				assertEquals("uname -m", future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	void testProbeExpiry() throws Exception {
+		var runs = new AtomicInteger();
+		var cache = new ProbeCache(2, cmdLine -> new ShellResult(0, String.valueOf(runs.incrementAndGet()), ""));
+
+		assertEquals("1", cache.get(Duration.ofMinutes(1), "a"));
+		assertEquals("1", cache.get(Duration.ofMinutes(1), "a"));
+		assertEquals("2", cache.get(Duration.ZERO, "b"));
+		assertEquals("3", cache.get(Duration.ZERO, "b"));
+
+		// The least recently used entry is evicted
+		assertEquals("1", cache.get(Duration.ofMinutes(1), "a"));
+		assertEquals("4", cache.get(Duration.ofMinutes(1), "c"));
+		assertEquals("1", cache.get(Duration.ofMinutes(1), "a"));
+		assertEquals("5", cache.get(Duration.ofMinutes(1), "b"));
+	}
+
+	@Test
+	void testProbeFailuresNotCached() throws Exception {
+		var runs = new AtomicInteger();
+		var cache = new ProbeCache(16, cmdLine -> {
+			int run = runs.incrementAndGet();
+			return switch (cmdLine.get(0)) {
+			case "error" -> throw new AssertionError("run " + run);
+			case "exit" -> new ShellResult(1, String.valueOf(run), "");
+			default -> new ShellResult(0, String.valueOf(run), "");
+			};
 		});
+
+		assertThrows(AssertionError.class, () -> cache.get(Duration.ofMinutes(1), "error"));
+		assertThrows(AssertionError.class, () -> cache.get(Duration.ofMinutes(1), "error"));
+		assertEquals(2, runs.get());
+
+		// The output of a non-zero exit is returned but not cached
+		assertEquals("3", cache.get(Duration.ofMinutes(1), "exit"));
+		assertEquals("4", cache.get(Duration.ofMinutes(1), "exit"));
+	}
+
+	@Test
+	void testProbeExpiryFromCompletion() throws Exception {
+		var runs = new AtomicInteger();
+		var cache = new ProbeCache(16, cmdLine -> {
+			try {
+				Thread.sleep(500);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return new ShellResult(0, String.valueOf(runs.incrementAndGet()), "");
+		});
+
+		// A run longer than the time to live is still fresh when it completes
+		assertEquals("1", cache.get(Duration.ofMillis(400), "a"));
+		assertEquals("1", cache.get(Duration.ofMillis(400), "a"));
+	}
+
+	@Test
+	void testUsage() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+
+		var process = S7SProcess.exec("sh", "-c", "i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done");
+		assertTrue(process.usage().wallTime() >= 0);
+		assertEquals(0, process.complete());
+
+		var usage = process.usage();
+		assertTrue(usage.userTime() + usage.systemTime() > 0);
+		assertTrue(usage.peakRss() > 0);
+
+		// Totals are updated after the process is reaped
+		for (int i = 0; i < 100 && S7SProcess.accounting().values().stream()
+				.noneMatch(command -> command.userTime() > 0); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(S7SProcess.accounting().values().stream().anyMatch(command -> command.userTime() > 0));
+	}
+
+	@Test
+	void testUsageUnsampled() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+
+		// The process is never sampled while it runs
+		var process = S7SProcess.exec("sh", "-c", "i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done");
+		assertEquals(0, process.complete());
+
+		for (int i = 0; i < 100 && process.usage().userTime() + process.usage().systemTime() <= 0; i++) {
+			Thread.sleep(10);
+		}
+		var usage = process.usage();
+		assertTrue(usage.userTime() + usage.systemTime() > 0);
+	}
+
+	@Test
+	void testCompleteTimeout() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.exec("sh", "-c", "sleep 30; true");
+		while (process.process().descendants().findAny().isEmpty()) {
+			Thread.sleep(10);
+		}
+		var child = process.process().descendants().findAny().get();
+
+		assertThrows(ProcessException.class, () -> process.complete(Duration.ofMillis(100)));
+		child.onExit().get(10, TimeUnit.SECONDS);
+		assertFalse(child.isAlive());
+		assertFalse(process.process().isAlive());
+	}
+
+	@Test
+	void testStreamBackpressure() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.stream("yes");
+		try {
+			Thread.sleep(200);
+
+			// Nothing was read, so the process is blocked on its pipe
+			assertEquals(S7SProcess.STREAM_BUFFER, process.out().size());
+			assertTrue(process.process().isAlive());
+
+			var lines = new ArrayList<String>();
+			var done = new CompletableFuture<Void>();
+			process.stdoutPublisher().subscribe(new Flow.Subscriber<String>() {
+
+				private Flow.Subscription subscription;
+
+				@Override
+				public void onSubscribe(Flow.Subscription subscription) {
+					this.subscription = subscription;
+					subscription.request(1);
+				}
+
+				@Override
+				public void onNext(String line) {
+					lines.add(line);
+					if (lines.size() == 100000) {
+						subscription.cancel();
+						done.complete(null);
+					} else {
+						subscription.request(1);
+					}
+				}
+
+				@Override
+				public void onError(Throwable e) {
+					done.completeExceptionally(e);
+				}
+
+				@Override
+				public void onComplete() {
+					done.complete(null);
+				}
+			});
+			done.get(1, TimeUnit.MINUTES);
+
+			assertEquals(100000, lines.size());
+			assertTrue(lines.stream().allMatch("y"::equals));
+			assertThrows(IllegalStateException.class, () -> process.out().openStream());
+		} finally {
+			process.kill();
+		}
+	}
+
+	@Test
+	void testPublisherCancelReleasesOutput() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.stream("sh", "-c", "yes | head -n 1000000");
+		try {
+			var first = new CompletableFuture<String>();
+			process.stdoutPublisher().subscribe(new Flow.Subscriber<String>() {
+
+				private Flow.Subscription subscription;
+
+				@Override
+				public void onSubscribe(Flow.Subscription subscription) {
+					this.subscription = subscription;
+					subscription.request(1);
+				}
+
+				@Override
+				public void onNext(String line) {
+					subscription.cancel();
+					first.complete(line);
+				}
+
+				@Override
+				public void onError(Throwable e) {
+					first.completeExceptionally(e);
+				}
+
+				@Override
+				public void onComplete() {
+				}
+			});
+			assertEquals("y", first.get(1, TimeUnit.MINUTES));
+
+			// The rest of the output is dropped rather than blocking the process
+			assertTrue(process.process().waitFor(1, TimeUnit.MINUTES));
+		} finally {
+			process.kill();
+		}
+	}
+
+	@Test
+	void testPublisherInvalidRequest() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var caller = Thread.currentThread();
+		var error = new CompletableFuture<Thread>();
+		S7SProcess.exec("true").out().linePublisher().subscribe(new Flow.Subscriber<String>() {
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(0);
+			}
+
+			@Override
+			public void onNext(String line) {
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				if (e instanceof IllegalArgumentException)
+					error.complete(Thread.currentThread());
+				else
+					error.completeExceptionally(e);
+			}
+
+			@Override
+			public void onComplete() {
+				error.completeExceptionally(new AssertionError("Completed"));
+			}
+		});
+
+		// The error is signalled from the drain loop rather than inside request()
+		assertNotEquals(caller, error.get(1, TimeUnit.MINUTES));
+	}
+
+	@Test
+	void testLineViewPublisher() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var lengths = new ArrayList<Integer>();
+		var done = new CompletableFuture<Void>();
+		S7SProcess.exec("printf", "a\\r\\nbb\\n\\nccc").out().lineViewPublisher()
+				.subscribe(new Flow.Subscriber<CharSequence>() {
+
+					@Override
+					public void onSubscribe(Flow.Subscription subscription) {
+						subscription.request(Long.MAX_VALUE);
+					}
+
+					@Override
+					public void onNext(CharSequence line) {
+						lengths.add(line.length());
+					}
+
+					@Override
+					public void onError(Throwable e) {
+						done.completeExceptionally(e);
+					}
+
+					@Override
+					public void onComplete() {
+						done.complete(null);
+					}
+				});
+		done.get(1, TimeUnit.MINUTES);
+
+		assertEquals(List.of(1, 2, 0, 3), lengths);
+	}
+
+	@Test
+	void testAwaitLine() {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var process = S7SProcess.stream("sh", "-c", "seq 1 100000; echo ready; sleep 30");
+		try {
+			assertEquals("ready", process.out().awaitLine(line -> line.charAt(0) == 'r').get());
+			assertTrue(process.process().isAlive());
+		} finally {
+			process.kill();
+		}
+
+		assertTrue(S7SProcess.exec("echo", "nothing").out().awaitLine(line -> line.length() == 0).isEmpty());
+	}
+
+	@Test
+	void testOnCompleteSharesThreads() throws Exception {
+		assumeTrue(S7SSystem.OS_TYPE != OsType.WINDOWS);
+
+		var threads = ManagementFactory.getThreadMXBean();
+		int baseline = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		// Keep every process alive at the same time
+		int count = 50;
+		var completed = new AtomicInteger();
+		var futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < count; i++) {
+			futures.add(S7SProcess.exec("sleep", "1").onComplete((exit, stdout, stderr) -> {
+				assertEquals(0, exit);
+				completed.incrementAndGet();
+			}));
+		}
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(1, TimeUnit.MINUTES);
+
+		assertEquals(count, completed.get());
+
+		// The JDK reaps each process on its own thread. Everything else, including
+		// the output pump and completion handlers, must be shared.
+		int shared = 1 + Math.max(2, Runtime.getRuntime().availableProcessors())
+				+ ForkJoinPool.getCommonPoolParallelism();
+		assertTrue(threads.getPeakThreadCount() <= baseline + count + shared + 8,
+				"Peak of " + threads.getPeakThreadCount() + " threads from " + baseline);
 	}
 
 	@Test
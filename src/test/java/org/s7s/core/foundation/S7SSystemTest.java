@@ -0,0 +1,410 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.core.foundation.Platform.ArchType;
+import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.foundation.S7SSystem.CpuFeature;
+
+class S7SSystemTest {
+
+	@TempDir
+	static Path cache;
+
+	@BeforeAll
+	static void setup() {
+		// Keep the platform fingerprint out of the real home directory
+		System.setProperty("s7s.platform.cache", cache.resolve("platform.bin").toString());
+	}
+
+	@Test
+	void testParseArchType() {
+		assertEquals(ArchType.X86_64, S7SSystem.parseArchType("amd64"));
+		assertEquals(ArchType.X86_64, S7SSystem.parseArchType("x86_64\n"));
+		assertEquals(ArchType.X86_64, S7SSystem.parseArchType("AMD64"));
+		assertEquals(ArchType.X86, S7SSystem.parseArchType("i686"));
+		assertEquals(ArchType.X86, S7SSystem.parseArchType("x86"));
+		assertEquals(ArchType.AARCH64, S7SSystem.parseArchType("aarch64"));
+		assertEquals(ArchType.AARCH64, S7SSystem.parseArchType("ARM64"));
+		assertEquals(ArchType.ARM, S7SSystem.parseArchType("armv7l"));
+		assertEquals(ArchType.POWERPC64, S7SSystem.parseArchType("ppc64le"));
+		assertEquals(ArchType.S390X, S7SSystem.parseArchType("s390x"));
+		assertEquals(ArchType.UNKNOWN_ARCH, S7SSystem.parseArchType(""));
+	}
+
+	@Test
+	void testArchTypeWithoutProcess() {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+
+		assertEquals(S7SSystem.parseArchType(S7SProcess.exec("uname", "-m").stdout()), S7SSystem.queryArchType());
+		assertEquals(S7SSystem.parseArchType(System.getProperty("os.arch")),
+				S7SSystem.readElfArchType(Paths.get("/proc/self/exe")));
+		assertEquals(ArchType.UNKNOWN_ARCH, S7SSystem.readElfArchType(Paths.get("/proc/self/status")));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	void testArchTypeConstant() {
+		assertTrue(S7SSystem.ARCH_TYPE == ArchType.UNKNOWN_ARCH || S7SSystem.ARCH_TYPE == S7SSystem.archType());
+	}
+
+	@Test
+	void testParseCpuList() {
+		assertEquals(0, S7SSystem.parseCpuList("").cardinality());
+		assertEquals(1, S7SSystem.parseCpuList("0\n").cardinality());
+		assertEquals(7, S7SSystem.parseCpuList("0-3,8,10-11").cardinality());
+		assertTrue(S7SSystem.parseCpuList("0-3,8,10-11").get(10));
+	}
+
+	@Test
+	void testParseSize() {
+		assertEquals(48 * 1024, S7SSystem.parseSize("48K"));
+		assertEquals(32 * 1024 * 1024, S7SSystem.parseSize("32M"));
+		assertEquals(2048 * 1024, S7SSystem.parseSize("2048 kB"));
+		assertEquals(4096, S7SSystem.parseSize("4096"));
+		assertEquals(-1, S7SSystem.parseSize(""));
+	}
+
+	@Test
+	void testTopology(@TempDir Path root) throws IOException {
+		// Two packages with two cores of two threads each
+		for (int i = 0; i < 8; i++) {
+			write(root, "sys/devices/system/cpu/cpu" + i + "/topology/physical_package_id", "" + i / 4);
+			write(root, "sys/devices/system/cpu/cpu" + i + "/topology/core_id", "" + i / 2 % 2);
+		}
+		write(root, "sys/devices/system/cpu/online", "0-7\n");
+		write(root, "sys/devices/system/node/online", "0-1\n");
+
+		var cache = "sys/devices/system/cpu/cpu0/cache/";
+		write(root, cache + "index0/level", "1");
+		write(root, cache + "index0/type", "Data");
+		write(root, cache + "index0/size", "48K");
+		write(root, cache + "index0/coherency_line_size", "64");
+		write(root, cache + "index1/level", "1");
+		write(root, cache + "index1/type", "Instruction");
+		write(root, cache + "index1/size", "32K");
+		write(root, cache + "index2/level", "2");
+		write(root, cache + "index2/type", "Unified");
+		write(root, cache + "index2/size", "2048K");
+		write(root, cache + "index3/level", "3");
+		write(root, cache + "index3/type", "Unified");
+		write(root, cache + "index3/size", "105M");
+
+		write(root, "proc/meminfo", "MemTotal:       16314128 kB\nHugePages_Total:      16\nHugepagesize:       2048 kB\n");
+		write(root, "sys/kernel/mm/transparent_hugepage/enabled", "always [madvise] never\n");
+
+		var auxv = ByteBuffer.allocate(32).order(ByteOrder.nativeOrder());
+		auxv.putLong(6).putLong(16384).putLong(0).putLong(0);
+		Files.createDirectories(root.resolve("proc/self"));
+		Files.write(root.resolve("proc/self/auxv"), auxv.array());
+
+		assertEquals(new S7SSystem.Topology(8, 4, 2, 2, 48 << 10, 32 << 10, 2048 << 10, 105 << 20, 64, 16384,
+				2048 << 10, true), S7SSystem.Topology.read(root));
+
+		// Without auxv the page size comes from the first mapping in smaps
+		Files.delete(root.resolve("proc/self/auxv"));
+		write(root, "proc/self/smaps", """
+				55d0c4a00000-55d0c4a28000 r--p 00000000 fd:01 1234 /usr/bin/java
+				Size:                160 kB
+				KernelPageSize:       64 kB
+				MMUPageSize:          64 kB
+				""");
+
+		// The huge page size doesn't matter when none are reserved
+		write(root, "proc/meminfo", "MemTotal:       16314128 kB\nHugePages_Total:       0\nHugepagesize:       2048 kB\n");
+
+		var topology = S7SSystem.Topology.read(root);
+		assertEquals(64 << 10, topology.pageSize());
+		assertEquals(0, topology.hugePageSize());
+	}
+
+	@Test
+	void testTopologyMissing(@TempDir Path root) {
+		var topology = S7SSystem.Topology.read(root);
+		assertEquals(Runtime.getRuntime().availableProcessors(), topology.logicalCores());
+		assertEquals(topology.logicalCores(), topology.physicalCores());
+		assertEquals(1, topology.numaNodes());
+		assertEquals(-1, topology.l3Cache());
+		assertEquals(4096, topology.pageSize());
+		assertEquals(0, topology.hugePageSize());
+		assertFalse(topology.transparentHugePages());
+	}
+
+	@Test
+	void testTopologyWithoutProcess() {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+
+		var topology = S7SSystem.topology();
+		assertTrue(topology.logicalCores() > 0);
+		assertTrue(topology.physicalCores() <= topology.logicalCores());
+		assertTrue(topology.pageSize() > 0);
+		assertEquals(0, Integer.bitCount(topology.pageSize()) - 1);
+	}
+
+	@Test
+	void testLimitsV2(@TempDir Path root) throws IOException {
+		write(root, "proc/self/cgroup", "0::/system.slice/agent.service\n");
+		write(root, "sys/fs/cgroup/cgroup.controllers", "cpuset cpu io memory pids\n");
+
+		var group = "sys/fs/cgroup/system.slice/agent.service/";
+		write(root, group + "cpu.max", "150000 100000\n");
+		write(root, group + "cpu.stat", "usage_usec 1000\nnr_periods 20\nnr_throttled 5\nthrottled_usec 7000\n");
+		write(root, group + "cpuset.cpus.effective", "0-3,6\n");
+		write(root, group + "memory.max", "536870912\n");
+		write(root, group + "memory.current", "1048576\n");
+		write(root, group + "cpu.pressure",
+				"some avg10=12.50 avg60=1.00 avg300=0.00 total=100\nfull avg10=3.00 avg60=0.00 avg300=0.00 total=10\n");
+		write(root, group + "memory.pressure", "some avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+
+		var cgroup = CGroup.detect(root);
+		var limits = cgroup.read();
+		assertEquals(new S7SSystem.ResourceLimits(2, 150000, 100000, 5, 512 << 20, 1 << 20, 5, 7000000, 12.5, 0, -1),
+				limits);
+		assertEquals(1.5, limits.effectiveCpus());
+
+		// Limits are read again every time
+		write(root, group + "cpu.max", "max 100000\n");
+		write(root, group + "memory.max", "max\n");
+		limits = cgroup.read();
+		assertEquals(-1, limits.cpuQuota());
+		assertEquals(-1, limits.memoryLimit());
+		assertEquals(5, limits.effectiveCpus());
+	}
+
+	@Test
+	void testLimitsV1(@TempDir Path root) throws IOException {
+		write(root, "proc/self/cgroup", "4:memory:/docker/abc\n3:cpuset:/docker/abc\n2:cpu,cpuacct:/docker/abc\n");
+		write(root, "sys/fs/cgroup/cpu,cpuacct/docker/abc/cpu.cfs_quota_us", "-1\n");
+		write(root, "sys/fs/cgroup/cpu,cpuacct/docker/abc/cpu.cfs_period_us", "100000\n");
+		write(root, "sys/fs/cgroup/cpu,cpuacct/docker/abc/cpu.stat",
+				"nr_periods 0\nnr_throttled 0\nthrottled_time 0\n");
+		write(root, "sys/fs/cgroup/cpuset/docker/abc/cpuset.cpus", "0-1\n");
+		write(root, "sys/fs/cgroup/memory/docker/abc/memory.limit_in_bytes", "9223372036854771712\n");
+		write(root, "sys/fs/cgroup/memory/docker/abc/memory.usage_in_bytes", "4096\n");
+		write(root, "proc/pressure/io.pressure", "some avg10=0.25 avg60=0.00 avg300=0.00 total=0\n");
+
+		assertEquals(new S7SSystem.ResourceLimits(1, -1, 100000, 2, -1, 4096, 0, 0, -1, -1, 0.25),
+				CGroup.detect(root).read());
+	}
+
+	@Test
+	void testLimitsMissing(@TempDir Path root) {
+		var limits = CGroup.detect(root).read();
+		assertEquals(0, limits.cgroupVersion());
+		assertEquals(Runtime.getRuntime().availableProcessors(), limits.effectiveCpus());
+	}
+
+	@Test
+	void testLimitsWithoutProcess() {
+		assumeTrue(S7SSystem.OS_TYPE == OsType.LINUX);
+
+		var limits = S7SSystem.limits();
+		assertTrue(limits.effectiveCpus() > 0);
+		assertNotSame(limits, S7SSystem.limits());
+	}
+
+	@Test
+	void testCpuFeaturesX86(@TempDir Path root) throws IOException {
+		write(root, "proc/cpuinfo", """
+				processor	: 0
+				vendor_id	: GenuineIntel
+				flags		: fpu sse2 pclmulqdq sse4_1 sse4_2 popcnt aes avx avx2 bmi2 avx512f avx512bw sha_ni
+				processor	: 1
+				flags		: fpu
+				""");
+
+		assertEquals(EnumSet.of(CpuFeature.SSE4_2, CpuFeature.CRC32, CpuFeature.CLMUL, CpuFeature.POPCNT,
+				CpuFeature.AES, CpuFeature.AVX, CpuFeature.AVX2, CpuFeature.BMI2, CpuFeature.AVX512F,
+				CpuFeature.AVX512BW, CpuFeature.SHA), bits(S7SSystem.readCpuFeatures(root, ArchType.X86_64)));
+	}
+
+	@Test
+	void testCpuFeaturesArm(@TempDir Path root) throws IOException {
+		write(root, "proc/cpuinfo", """
+				processor	: 0
+				BogoMIPS	: 50.00
+				Features	: fp asimd evtstrm aes pmull sha1 sha2 crc32 cpuid
+				""");
+
+		assertEquals(EnumSet.of(CpuFeature.NEON, CpuFeature.AES, CpuFeature.CLMUL, CpuFeature.SHA, CpuFeature.CRC32),
+				bits(S7SSystem.readCpuFeatures(root, ArchType.AARCH64)));
+	}
+
+	@Test
+	void testCpuFeaturesAuxv(@TempDir Path root) throws IOException {
+		write(root, "proc/cpuinfo", "processor	: 0\n");
+
+		// AT_PAGESZ, AT_HWCAP with fp, asimd, and crc32, AT_NULL
+		var auxv = ByteBuffer.allocate(48).order(ByteOrder.nativeOrder());
+		auxv.putLong(6).putLong(4096).putLong(16).putLong(1 | 1 << 1 | 1 << 7).putLong(0).putLong(0);
+		Files.createDirectories(root.resolve("proc/self"));
+		Files.write(root.resolve("proc/self/auxv"), auxv.array());
+
+		assertEquals(EnumSet.of(CpuFeature.NEON, CpuFeature.CRC32),
+				bits(S7SSystem.readCpuFeatures(root, ArchType.AARCH64)));
+		assertEquals(0, S7SSystem.readCpuFeatures(root, ArchType.X86_64));
+	}
+
+	@Test
+	void testForceScalar() {
+		try {
+			S7SSystem.forceScalar(true);
+			assertEquals(0, S7SSystem.cpuFeatureBits());
+			assertTrue(S7SSystem.cpuFeatures().isEmpty());
+			for (var feature : CpuFeature.values()) {
+				assertFalse(S7SSystem.hasCpuFeature(feature));
+			}
+		} finally {
+			S7SSystem.forceScalar(false);
+		}
+		assertEquals(S7SSystem.cpuFeatures().contains(CpuFeature.AVX2), S7SSystem.hasCpuFeature(CpuFeature.AVX2));
+	}
+
+	@Test
+	void testParseOsRelease() {
+		var release = FingerprintCache.parseOsRelease(List.of("# comment", "PRETTY_NAME=\"Debian GNU/Linux 12 (bookworm)\"",
+				"ID=debian", "VERSION_ID='12'", "", "INVALID"));
+		assertEquals(Map.of("PRETTY_NAME", "Debian GNU/Linux 12 (bookworm)", "ID", "debian", "VERSION_ID", "12"),
+				release);
+	}
+
+	@Test
+	void testFingerprintCache(@TempDir Path root) throws IOException {
+		write(root, "proc/sys/kernel/random/boot_id", "af7e8d8f-8950-4bd8-aa0a-03e419b5d97f\n");
+		write(root, "proc/sys/kernel/osrelease", "6.1.0-13-amd64\n");
+		write(root, "proc/meminfo", "MemTotal:       16314128 kB\n");
+		write(root, "proc/cpuinfo", "flags		: sse4_2 avx2\n");
+		write(root, "etc/os-release", "ID=debian\nVERSION_ID=\"12\"\nPRETTY_NAME=\"Debian GNU/Linux 12 (bookworm)\"\n");
+		write(root, "sys/devices/system/cpu/online", "0-3\n");
+
+		var cache = root.resolve("cache/platform.bin");
+		var snapshot = FingerprintCache.load(cache, root);
+		var fingerprint = snapshot.fingerprint();
+		assertTrue(Files.exists(cache));
+		assertEquals(FingerprintCache.FORMAT, fingerprint.getFormat());
+		assertEquals("6.1.0-13-amd64", fingerprint.getKernelRelease());
+		assertEquals(S7SSystem.OS_TYPE, fingerprint.getOsType());
+		assertEquals("debian", fingerprint.getDistroId());
+		assertEquals("12", fingerprint.getDistroVersion());
+		assertEquals("Debian GNU/Linux 12 (bookworm)", fingerprint.getDistroName());
+		assertEquals(16314128L * 1024, fingerprint.getMemoryTotal());
+		assertEquals(4, fingerprint.getLogicalCores());
+		assertEquals(4, snapshot.topology().logicalCores());
+		assertEquals(EnumSet.of(CpuFeature.SSE4_2, CpuFeature.CRC32, CpuFeature.AVX2),
+				bits(fingerprint.getCpuFeatures()));
+		assertEquals(fingerprint.getCpuFeatures(), snapshot.cpuFeatures());
+
+		// Later loads in the same boot use the cache
+		write(root, "sys/devices/system/cpu/online", "0-7\n");
+		snapshot = FingerprintCache.load(cache, root);
+		assertEquals(fingerprint, snapshot.fingerprint());
+		assertEquals(4, snapshot.topology().logicalCores());
+
+		// A new boot invalidates the cache
+		write(root, "proc/sys/kernel/random/boot_id", "5cf1e0a2-2d0e-4f5c-9bb2-0a7a9f3f6b11\n");
+		var rebooted = FingerprintCache.load(cache, root).fingerprint();
+		assertEquals(8, rebooted.getLogicalCores());
+		assertEquals(rebooted, FingerprintCache.load(cache, root).fingerprint());
+
+		// So does a new kernel
+		write(root, "proc/sys/kernel/osrelease", "6.1.0-15-amd64\n");
+		assertEquals("6.1.0-15-amd64", FingerprintCache.load(cache, root).fingerprint().getKernelRelease());
+
+		// A corrupt cache is replaced
+		Files.write(cache, new byte[] { (byte) 0xFF, 0x01, 0x02 });
+		assertEquals("6.1.0-15-amd64", FingerprintCache.load(cache, root).fingerprint().getKernelRelease());
+		assertEquals(FingerprintCache.load(cache, root).fingerprint(),
+				Platform.PlatformFingerprint.parseFrom(Files.readAllBytes(cache)));
+	}
+
+	@Test
+	void testFingerprintWithoutCache(@TempDir Path root) {
+		var fingerprint = FingerprintCache.load(null, root).fingerprint();
+		assertEquals(S7SSystem.OS_TYPE, fingerprint.getOsType());
+		assertEquals("", fingerprint.getBootId());
+		try (var files = Files.list(root)) {
+			assertEquals(0, files.count());
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Test
+	void testFingerprintWithoutBootId(@TempDir Path root) throws IOException {
+		write(root, "proc/sys/kernel/osrelease", "22.6.0\n");
+
+		// A reboot couldn't be detected, so nothing is cached
+		var cache = root.resolve("platform.bin");
+		assertEquals("22.6.0", FingerprintCache.load(cache, root).fingerprint().getKernelRelease());
+		assertFalse(Files.exists(cache));
+	}
+
+	@Test
+	void testFingerprintCacheProperty() {
+		var property = System.getProperty("s7s.platform.cache");
+		try {
+			System.setProperty("s7s.platform.cache", "");
+			assertNull(S7SSystem.fingerprintCache());
+
+			System.setProperty("s7s.platform.cache", "/tmp/platform.bin");
+			assertEquals(Paths.get("/tmp/platform.bin"), S7SSystem.fingerprintCache());
+
+			System.clearProperty("s7s.platform.cache");
+			assertEquals(Paths.get(System.getProperty("user.home"), ".cache", "s7s", "platform.bin"),
+					S7SSystem.fingerprintCache());
+		} finally {
+			if (property == null)
+				System.clearProperty("s7s.platform.cache");
+			else
+				System.setProperty("s7s.platform.cache", property);
+		}
+	}
+
+	private static Set<CpuFeature> bits(long bits) {
+		var features = EnumSet.noneOf(CpuFeature.class);
+		for (var feature : CpuFeature.values()) {
+			if ((bits & 1L << feature.ordinal()) != 0)
+				features.add(feature);
+		}
+		return features;
+	}
+
+	private static void write(Path root, String path, String content) throws IOException {
+		var file = root.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, content);
+	}
+
+	@Test
+	void testPropertyAsInt() {
+		assertEquals(5, new S7SSystemProperty("test", Optional.empty()).asInt(5, 1));
+		assertEquals(12, new S7SSystemProperty("test", Optional.of(" 12 ")).asInt(5, 1));
+		assertEquals(5, new S7SSystemProperty("test", Optional.of("12k")).asInt(5, 1));
+		assertEquals(5, new S7SSystemProperty("test", Optional.of("0")).asInt(5, 1));
+	}
+}